@@ -1,21 +1,40 @@
 package com.luxx.map;
 
-import com.luxx.map.service.HttpServerInboundHandler;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.luxx.map.cluster.TileCluster;
+import com.luxx.map.metrics.MapMetrics;
+import com.luxx.map.metrics.MetricsHttpServer;
+import com.luxx.map.service.HttpServerInitializer;
+import com.luxx.map.service.MapCache;
 import com.luxx.map.service.MapDbOperation;
+import com.luxx.map.service.StaticMapRenderer;
+import com.luxx.map.service.TileExporter;
+import com.luxx.map.service.TileLoader;
+import com.luxx.map.service.TileWarmUp;
 import com.luxx.map.util.PropertiesUtil;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.http.HttpObjectAggregator;
-import io.netty.handler.codec.http.HttpRequestDecoder;
-import io.netty.handler.codec.http.HttpResponseEncoder;
-import io.netty.util.concurrent.DefaultEventExecutorGroup;
-import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+import javax.net.ssl.SSLException;
+
+import org.HdrHistogram.Histogram;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,30 +50,63 @@ public class MapHttpServer {
 
     private EventLoopGroup bossGroup;
     private EventLoopGroup workerGroup;
-    private EventExecutorGroup eventExecutorGroup;
+    private MetricsHttpServer metricsHttpServer;
+    private final AtomicBoolean destroyed = new AtomicBoolean(false);
 
     public void start(int port) throws Exception {
-        bossGroup = new NioEventLoopGroup();
-        workerGroup = new NioEventLoopGroup();
-        eventExecutorGroup = new DefaultEventExecutorGroup(32);
+        String transport = PropertiesUtil.getInstance().GetTransport();
+        int acceptorThreads = Math.max(1, PropertiesUtil.getInstance().GetAcceptorThreads());
+        int ioThreads = PropertiesUtil.getInstance().GetIoThreads();
+        boolean useEpoll = !"nio".equalsIgnoreCase(transport) && Epoll.isAvailable();
+        if ("epoll".equalsIgnoreCase(transport) && !useEpoll) {
+            log.warn("Epoll transport is not available, fall back to NIO: " + Epoll.unavailabilityCause());
+        }
+        if (useEpoll) {
+            bossGroup = new EpollEventLoopGroup(acceptorThreads);
+            workerGroup = new EpollEventLoopGroup(ioThreads);
+        } else {
+            bossGroup = new NioEventLoopGroup(acceptorThreads);
+            workerGroup = new NioEventLoopGroup(ioThreads);
+        }
         try {
             ServerBootstrap b = new ServerBootstrap();
-            b.group(bossGroup, workerGroup).channel(NioServerSocketChannel.class)
-                    .childHandler(new ChannelInitializer<SocketChannel>() {
-                        @Override
-                        public void initChannel(SocketChannel ch) throws Exception {
-                            ch.pipeline().addLast(new HttpResponseEncoder());
-                            ch.pipeline().addLast(new HttpRequestDecoder());
-                            //aggregates an HttpMessage and its following HttpContents into a single FullHttpRequest or FullHttpResponse
-                            //with no following HttpContents.
-                            ch.pipeline().addLast(new HttpObjectAggregator(65536));
-                            ch.pipeline().addLast(eventExecutorGroup, new HttpServerInboundHandler());
-                        }
-                    }).option(ChannelOption.SO_BACKLOG, 128)
+            b.group(bossGroup, workerGroup)
+                    .channel(useEpoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class)
+                    .childHandler(new HttpServerInitializer(newSslContext(),
+                            PropertiesUtil.getInstance().GetHttp2Enabled(),
+                            PropertiesUtil.getInstance().GetHttp2MaxConcurrentStreams()))
+                    .option(ChannelOption.SO_BACKLOG, 128)
+                    .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                    .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
                     .childOption(ChannelOption.SO_KEEPALIVE, false)
                     .childOption(ChannelOption.TCP_NODELAY, true);
 
-            ChannelFuture f = b.bind(port).sync();
+            // With SO_REUSEPORT every acceptor thread binds its own listening socket on the same port
+            int binds = 1;
+            if (useEpoll && acceptorThreads > 1) {
+                b.option(EpollChannelOption.SO_REUSEPORT, true);
+                binds = acceptorThreads;
+            }
+            // Replay the hot tiles of the last run before accepting requests
+            TileWarmUp.getInstance().start();
+
+            ChannelFuture f = null;
+            for (int i = 0; i < binds; i++) {
+                f = b.bind(port).sync();
+            }
+            log.info("Map Http Server started with " + (useEpoll ? "epoll" : "nio") + " transport, "
+                    + binds + " listening sockets");
+
+            int adminPort = PropertiesUtil.getInstance().GetAdminPort();
+            if (adminPort > 0) {
+                metricsHttpServer = new MetricsHttpServer();
+                metricsHttpServer.start(adminPort);
+            }
+
+            int statsInterval = PropertiesUtil.getInstance().GetTileLoaderStatsInterval();
+            if (statsInterval > 0) {
+                workerGroup.scheduleAtFixedRate(this::logTileLoaderStats, statsInterval, statsInterval, TimeUnit.SECONDS);
+            }
 
             f.channel().closeFuture().sync();
         } finally {
@@ -62,9 +114,26 @@ public class MapHttpServer {
         }
     }
 
+    // ALPN offers h2 only if HTTP/2 is enabled, JDK 8u252+ or 9+ is needed for ALPN with the JDK provider
+    private static SslContext newSslContext() throws SSLException {
+        String certPath = PropertiesUtil.getInstance().GetSslCertPath();
+        if (certPath.isEmpty()) {
+            return null;
+        }
+        String[] protocols = PropertiesUtil.getInstance().GetHttp2Enabled()
+                ? new String[]{ApplicationProtocolNames.HTTP_2, ApplicationProtocolNames.HTTP_1_1}
+                : new String[]{ApplicationProtocolNames.HTTP_1_1};
+        return SslContextBuilder.forServer(new File(certPath), new File(PropertiesUtil.getInstance().GetSslKeyPath()))
+                .ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+                .applicationProtocolConfig(new ApplicationProtocolConfig(ApplicationProtocolConfig.Protocol.ALPN,
+                        ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                        ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT, protocols))
+                .build();
+    }
+
     public void destroy() {
-        if (eventExecutorGroup != null) {
-            eventExecutorGroup.shutdownGracefully();
+        if (!destroyed.compareAndSet(false, true)) {
+            return;
         }
         if (workerGroup != null) {
             workerGroup.shutdownGracefully();
@@ -72,25 +141,55 @@ public class MapHttpServer {
         if (bossGroup != null) {
             bossGroup.shutdownGracefully();
         }
+        if (metricsHttpServer != null) {
+            metricsHttpServer.destroy();
+        }
+        TileWarmUp.getInstance().destroy();
+        TileExporter.getInstance().destroy();
+        StaticMapRenderer.getInstance().destroy();
+        TileLoader.getInstance().destroy();
+        TileCluster.getInstance().destroy();
+        MapDbOperation.destroy();
+        MapCache.getInstance().destroy();
 
+        log.info("Tile loads issued: " + MapCache.getInstance().getIssuedLoads()
+                + ", coalesced: " + MapCache.getInstance().getCoalescedLoads()
+                + ", known missing: " + MapCache.getInstance().getKnownMissing());
+        log.info("Tile loads rejected: " + TileLoader.getInstance().getRejectedCount()
+                + ", expired in queue: " + TileLoader.getInstance().getExpiredCount());
         log.info("Map Http Server is shut down");
     }
 
+    private void logTileLoaderStats() {
+        TileLoader tileLoader = TileLoader.getInstance();
+        Histogram waitTime = MapMetrics.getInstance().getLoaderWaitTime().snapshot();
+        Histogram queueDepth = MapMetrics.getInstance().getLoaderQueueDepth().snapshot();
+        log.info(String.format("Tile loader: %d loads, queue depth now %d p99 %d max %d, "
+                        + "wait time us p50 %d p99 %d max %d, rejected %d, expired %d",
+                waitTime.getTotalCount(), tileLoader.getQueueDepth(),
+                queueDepth.getValueAtPercentile(99), queueDepth.getMaxValue(),
+                waitTime.getValueAtPercentile(50), waitTime.getValueAtPercentile(99), waitTime.getMaxValue(),
+                tileLoader.getRejectedCount(), tileLoader.getExpiredCount()));
+    }
+
     public static void main(String[] args) {
         final String portString = PropertiesUtil.getInstance().GetListenPort();
         final int port = Integer.parseInt(portString);
         boolean isOK = MapDbOperation.init();
         if (isOK) {
+            // Open the caches and start building the tile coverage before accepting requests
+            log.info("Tile cache capacity " + MapCache.getInstance().getTileCache().maxBytes() + " bytes");
             final MapHttpServer server = new MapHttpServer();
             try {
-                log.info("Listening for connections on port " + port);
-                server.start(port);
+                // Registered before start, which blocks until the server channel is closed
                 Runtime.getRuntime().addShutdownHook(new Thread() {
                     @Override
                     public void run() {
                         server.destroy();
                     }
                 });
+                log.info("Listening for connections on port " + port);
+                server.start(port);
             } catch (Exception e) {
                 log.error("Map Http Service failed! " + e.getMessage());
             }
@@ -0,0 +1,399 @@
+package com.luxx.map.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.luxx.map.service.Tile;
+import com.luxx.map.service.TileKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Map服务，本地磁盘二级瓦片缓存
+ * 瓦片追加写入固定大小的段文件，内存中保存 Key -> (段, 偏移) 索引，读取通过mmap完成。
+ * 重启时扫描段文件重建索引；磁盘占用超过配额时删除最久未访问的段，段中写入后被读过的瓦片先复制到当前段。
+ * 图层失效时记录当前写入位置，重启时跳过该位置之前的该图层瓦片
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public class DiskTileCache {
+    private static Logger log = LoggerFactory.getLogger(DiskTileCache.class);
+
+    private static final String SEGMENT_PREFIX = "tiles-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    // data length(4) + key without layer(8) + last modified(8) + layer name length(2)
+    private static final int RECORD_HEADER_BYTES = 22;
+    // Layers invalidated with the write position at that time
+    private static final String TOMBSTONE_FILE = "invalidated.dat";
+    // Set in the offset of an index entry once the tile is read from its segment
+    private static final long ACCESSED = 1L << 31;
+    private static final long OFFSET_MASK = ACCESSED - 1;
+
+    private final File directory;
+    private final long maxBytes;
+    private final int segmentBytes;
+
+    private final Map<Long, Long> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private Segment activeSegment;
+    // Records of the layer before this location are stale, until the segments holding them are evicted
+    private final Map<String, Long> tombstones = new HashMap<>();
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    public DiskTileCache(String path, long maxBytes, int segmentBytes) throws IOException {
+        this.directory = new File(path);
+        this.maxBytes = maxBytes;
+        this.segmentBytes = segmentBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can not create disk cache directory " + path);
+        }
+        recover();
+    }
+
+    public Tile get(long key) {
+        Long location = index.get(key);
+        if (location == null) {
+            missCount.increment();
+            return null;
+        }
+        Segment segment = segments.get((int) (location >>> 32));
+        if (segment == null) {
+            index.remove(key, location);
+            missCount.increment();
+            return null;
+        }
+        segment.lastAccess = System.currentTimeMillis();
+        if ((location & ACCESSED) == 0) {
+            index.replace(key, location, location | ACCESSED);
+        }
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int offset = (int) (location & OFFSET_MASK);
+        int dataLength = buffer.getInt(offset);
+        long lastModified = buffer.getLong(offset + 12);
+        int layerLength = buffer.getShort(offset + 20);
+        byte[] data = new byte[dataLength];
+        buffer.position(offset + RECORD_HEADER_BYTES + layerLength);
+        buffer.get(data);
+        hitCount.increment();
+        return Tile.of(data, lastModified);
+    }
+
+    public synchronized void put(long key, Tile tile) {
+        byte[] layer = TileKey.layer(key).getBytes(StandardCharsets.UTF_8);
+        int dataLength = tile.length();
+        int recordBytes = RECORD_HEADER_BYTES + layer.length + dataLength;
+        // A trailing zero length marks the end of the records in a segment
+        if (recordBytes + 4 > segmentBytes || dataLength == 0) {
+            return;
+        }
+        try {
+            if (activeSegment == null || activeSegment.writePosition + recordBytes + 4 > segmentBytes) {
+                rollSegment();
+            }
+            append(key, layer, tile.lastModified(), tile.content().nioBuffer());
+        } catch (IOException e) {
+            log.error("Write disk tile cache failed: " + e.getMessage());
+        }
+    }
+
+    // The active segment has room for the record
+    private void append(long key, byte[] layer, long lastModified, ByteBuffer data) {
+        Segment segment = activeSegment;
+        int offset = segment.writePosition;
+        int dataLength = data.remaining();
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(offset + 4);
+        buffer.putLong(TileKey.encode(0, TileKey.zoom(key), TileKey.x(key), TileKey.y(key)));
+        buffer.putLong(lastModified);
+        buffer.putShort((short) layer.length);
+        buffer.put(layer);
+        buffer.put(data);
+        // Length is written last, a partially written record is not visible after restart
+        buffer.putInt(offset, dataLength);
+        segment.writePosition = offset + RECORD_HEADER_BYTES + layer.length + dataLength;
+        segment.lastAccess = System.currentTimeMillis();
+        index.put(key, ((long) segment.id << 32) | offset);
+    }
+
+    /**
+     * Forget the tiles of the layers. The records stay in their segments until the segments are
+     * evicted, the layers' tombstones keep a restart from indexing them again.
+     */
+    public synchronized void invalidateLayers(Collection<Integer> layerIndexes) {
+        index.keySet().removeIf(key -> layerIndexes.contains(TileKey.layerIndex(key)));
+        long location = activeSegment == null ? 0 : ((long) activeSegment.id << 32) | activeSegment.writePosition;
+        if (location == 0) {
+            return;
+        }
+        for (int layerIndex : layerIndexes) {
+            tombstones.put(TileKey.layerName(layerIndex), location);
+        }
+        writeTombstones();
+    }
+
+    public long size() {
+        return index.size();
+    }
+
+    public long diskBytes() {
+        return (long) segments.size() * segmentBytes;
+    }
+
+    public long hitCount() {
+        return hitCount.sum();
+    }
+
+    public long missCount() {
+        return missCount.sum();
+    }
+
+    public synchronized void close() {
+        if (activeSegment != null) {
+            activeSegment.buffer.force();
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        openNextSegment();
+        while (diskBytes() > maxBytes && segments.size() > 1) {
+            evictLeastRecentlyUsedSegment();
+        }
+    }
+
+    private void openNextSegment() throws IOException {
+        int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        activeSegment = openSegment(new File(directory, segmentFileName(id)), id);
+        segments.put(id, activeSegment);
+    }
+
+    /**
+     * The tiles read since they were written to the victim are copied to the active segment, up to half a segment,
+     * and have to be read again to survive its next eviction. The rest of the victim's tiles are dropped.
+     */
+    private void evictLeastRecentlyUsedSegment() throws IOException {
+        Segment victim = null;
+        for (Segment segment : segments.values()) {
+            if (segment != activeSegment && (victim == null || segment.lastAccess < victim.lastAccess)) {
+                victim = segment;
+            }
+        }
+        if (victim == null) {
+            return;
+        }
+        segments.remove(victim.id);
+        List<long[]> accessed = new ArrayList<>();
+        int removed = 0;
+        Iterator<Map.Entry<Long, Long>> iterator = index.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, Long> entry = iterator.next();
+            long location = entry.getValue();
+            if ((int) (location >>> 32) == victim.id) {
+                if ((location & ACCESSED) != 0) {
+                    accessed.add(new long[]{entry.getKey(), location & OFFSET_MASK});
+                }
+                iterator.remove();
+                removed++;
+            }
+        }
+        int copied = copyRecords(victim, accessed);
+        // Readers still holding the mapping keep working, it is unmapped when collected
+        if (!victim.file.delete()) {
+            log.warn("Delete disk cache segment " + victim.file + " failed");
+        }
+        log.info("Evict disk cache segment " + victim.file.getName() + " with " + (removed - copied)
+                + " tiles, " + copied + " read tiles kept");
+        pruneTombstones();
+    }
+
+    private int copyRecords(Segment victim, List<long[]> records) throws IOException {
+        ByteBuffer buffer = victim.buffer.duplicate();
+        int budget = segmentBytes / 2;
+        int copied = 0;
+        for (long[] record : records) {
+            int offset = (int) record[1];
+            int dataLength = buffer.getInt(offset);
+            long lastModified = buffer.getLong(offset + 12);
+            int layerLength = buffer.getShort(offset + 20);
+            int recordBytes = RECORD_HEADER_BYTES + layerLength + dataLength;
+            if (recordBytes > budget) {
+                break;
+            }
+            budget -= recordBytes;
+            byte[] layer = new byte[layerLength];
+            buffer.position(offset + RECORD_HEADER_BYTES);
+            buffer.get(layer);
+            ByteBuffer data = buffer.duplicate();
+            data.limit(offset + recordBytes);
+            if (activeSegment.writePosition + recordBytes + 4 > segmentBytes) {
+                openNextSegment();
+            }
+            // A tile put again meanwhile is newer than the copy
+            if (index.containsKey(record[0])) {
+                continue;
+            }
+            append(record[0], layer, lastModified, data);
+            copied++;
+        }
+        return copied;
+    }
+
+    // Tombstones are dropped once every segment they cover is gone
+    private void pruneTombstones() {
+        if (!tombstones.isEmpty() && !segments.isEmpty()
+                && tombstones.values().removeIf(location -> location <= ((long) segments.firstKey() << 32))) {
+            writeTombstones();
+        }
+    }
+
+    private void writeTombstones() {
+        File file = new File(directory, TOMBSTONE_FILE);
+        File tmpFile = new File(directory, TOMBSTONE_FILE + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                out.writeInt(tombstones.size());
+                for (Map.Entry<String, Long> entry : tombstones.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(entry.getValue());
+                }
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Write disk cache tombstones " + file + " failed: " + e.getMessage());
+        }
+    }
+
+    private void readTombstones() {
+        File file = new File(directory, TOMBSTONE_FILE);
+        if (!file.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                tombstones.put(in.readUTF(), in.readLong());
+            }
+        } catch (IOException e) {
+            log.error("Read disk cache tombstones " + file + " failed: " + e.getMessage());
+        }
+    }
+
+    private void recover() throws IOException {
+        readTombstones();
+        File[] files = directory.listFiles();
+        List<File> segmentFiles = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    segmentFiles.add(file);
+                }
+            }
+        }
+        segmentFiles.sort((a, b) -> Integer.compare(segmentId(a), segmentId(b)));
+        for (File file : segmentFiles) {
+            int id = segmentId(file);
+            if (id < 0 || file.length() != segmentBytes) {
+                log.warn("Ignore disk cache segment " + file.getName());
+                continue;
+            }
+            Segment segment = openSegment(file, id);
+            segment.lastAccess = file.lastModified();
+            scanSegment(segment);
+            segments.put(id, segment);
+            activeSegment = segment;
+        }
+        pruneTombstones();
+        log.info("Disk tile cache " + directory + " recovered " + index.size() + " tiles in "
+                + segments.size() + " segments");
+    }
+
+    private void scanSegment(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int offset = 0;
+        while (offset + RECORD_HEADER_BYTES <= segmentBytes) {
+            int dataLength = buffer.getInt(offset);
+            if (dataLength <= 0) {
+                break;
+            }
+            long coordinates = buffer.getLong(offset + 4);
+            int layerLength = buffer.getShort(offset + 20);
+            int recordBytes = RECORD_HEADER_BYTES + layerLength + dataLength;
+            if (layerLength <= 0 || offset + recordBytes > segmentBytes) {
+                break;
+            }
+            byte[] layer = new byte[layerLength];
+            buffer.position(offset + RECORD_HEADER_BYTES);
+            buffer.get(layer);
+            String layerName = new String(layer, StandardCharsets.UTF_8);
+            long location = ((long) segment.id << 32) | offset;
+            Long invalidatedAt = tombstones.get(layerName);
+            long key = TileKey.encode(layerName, TileKey.zoom(coordinates), TileKey.x(coordinates), TileKey.y(coordinates));
+            if (key != TileKey.INVALID && (invalidatedAt == null || location >= invalidatedAt)) {
+                index.put(key, location);
+            }
+            offset += recordBytes;
+        }
+        segment.writePosition = offset;
+    }
+
+    private Segment openSegment(File file, int id) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            return new Segment(id, file, buffer);
+        }
+    }
+
+    private static String segmentFileName(int id) {
+        return String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX);
+    }
+
+    private static int segmentId(File file) {
+        String name = file.getName();
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static class Segment {
+        final int id;
+        final File file;
+        final MappedByteBuffer buffer;
+        volatile long lastAccess = System.currentTimeMillis();
+        int writePosition;
+
+        Segment(int id, File file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.luxx.map.cache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.luxx.map.service.TileKey;
+
+/**
+ * Map服务，最近查询不到的瓦片
+ * 按Key的hash直接寻址的槽，保存瓦片Key和过期时间，不装箱。同一个槽的新瓦片替换旧瓦片，过期的瓦片视为不存在
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public class MissingTileCache {
+    private static final long EMPTY = TileKey.INVALID;
+
+    private final int slots;
+    private final long expireNanos;
+    private volatile Table table;
+
+    /**
+     * @param maxSize tiles kept at most, fewer when their keys share slots
+     */
+    public MissingTileCache(long maxSize, int expireSeconds) {
+        this.slots = Integer.highestOneBit((int) Math.min(1 << 26, Math.max(16, maxSize)));
+        this.expireNanos = TimeUnit.SECONDS.toNanos(expireSeconds);
+        this.table = new Table(slots);
+    }
+
+    public boolean contains(long tileKey) {
+        Table current = table;
+        int slot = TileKey.hash(tileKey) & (slots - 1);
+        // The key is written after its expiry, a key seen has an expiry at least as new
+        return current.keys.get(slot) == tileKey && current.expiries.get(slot) - System.nanoTime() > 0;
+    }
+
+    public void put(long tileKey) {
+        Table current = table;
+        int slot = TileKey.hash(tileKey) & (slots - 1);
+        current.expiries.set(slot, System.nanoTime() + expireNanos);
+        current.keys.set(slot, tileKey);
+    }
+
+    public void invalidate(long tileKey) {
+        Table current = table;
+        current.keys.compareAndSet(TileKey.hash(tileKey) & (slots - 1), tileKey, EMPTY);
+    }
+
+    public void invalidateAll() {
+        table = new Table(slots);
+    }
+
+    private static final class Table {
+        final AtomicLongArray keys;
+        final AtomicLongArray expiries;
+
+        Table(int slots) {
+            keys = new AtomicLongArray(slots);
+            expiries = new AtomicLongArray(slots);
+            for (int i = 0; i < slots; i++) {
+                keys.lazySet(i, EMPTY);
+            }
+        }
+    }
+}
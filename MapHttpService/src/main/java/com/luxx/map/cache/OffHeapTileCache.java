@@ -0,0 +1,479 @@
+package com.luxx.map.cache;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongPredicate;
+
+import com.luxx.map.service.Tile;
+import com.luxx.map.service.TileKey;
+
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * Map服务，堆外瓦片缓存
+ * 瓦片数据保存在直接内存中，按总字节数限制容量，淘汰策略为W-TinyLFU：
+ * 新瓦片先进入窗口区(1%)，被挤出窗口时与主区(SLRU)的淘汰候选比较访问频率，频率高者保留
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public class OffHeapTileCache {
+    private static final int AVERAGE_TILE_BYTES = 16 * 1024;
+
+    private final Segment[] segments;
+    private final int segmentMask;
+    private final ByteBufAllocator allocator;
+    private final long maxBytes;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    public OffHeapTileCache(long maxBytes, int segmentCount, ByteBufAllocator allocator) {
+        int count = Integer.highestOneBit(Math.max(1, Math.min(segmentCount, 256)));
+        this.segments = new Segment[count];
+        this.segmentMask = count - 1;
+        this.allocator = allocator;
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(maxBytes / count);
+        }
+    }
+
+    /**
+     * Get the cached tile with its content retained, the caller must release the content
+     * once it has taken its own duplicate. Returns null if the tile is not cached.
+     */
+    public Tile get(long key) {
+        int hash = TileKey.hash(key);
+        Tile tile = segmentFor(hash).get(key, hash);
+        if (tile != null) {
+            hitCount.increment();
+        } else {
+            missCount.increment();
+        }
+        return tile;
+    }
+
+    /**
+     * Copy the tile into direct memory and cache it, the tile may be rejected
+     * by the admission policy if it is requested less often than the eviction victim.
+     */
+    public void put(long key, Tile tile) {
+        int hash = TileKey.hash(key);
+        Segment segment = segmentFor(hash);
+        if (tile.length() > segment.maxWeight) {
+            return;
+        }
+        segment.put(key, hash, tile.copy(allocator));
+    }
+
+    /**
+     * Whether the tile is cached, without counting it as a request of the tile
+     */
+    public boolean containsKey(long key) {
+        int hash = TileKey.hash(key);
+        return segmentFor(hash).contains(key, hash);
+    }
+
+    /**
+     * Keys of the cached tiles ordered from the most to the least frequently requested,
+     * at most limit of them. Ties are ordered protected, probation then window.
+     */
+    public long[] hotKeys(int limit) {
+        KeyBuckets buckets = new KeyBuckets();
+        for (Segment segment : segments) {
+            segment.collectKeys(buckets);
+        }
+        return buckets.top(limit);
+    }
+
+    /**
+     * ETags of the cached tiles whose keys match the filter
+     */
+    public Map<Long, String> etags(LongPredicate filter) {
+        Map<Long, String> etags = new HashMap<>();
+        for (Segment segment : segments) {
+            segment.collectEtags(filter, etags);
+        }
+        return etags;
+    }
+
+    /**
+     * Drop the tile if it is still cached with the ETag, a tile cached again since then is kept
+     */
+    public void invalidate(long key, String etag) {
+        int hash = TileKey.hash(key);
+        segmentFor(hash).invalidate(key, hash, etag);
+    }
+
+    public void invalidateAll() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.count();
+        }
+        return size;
+    }
+
+    public long weightedSize() {
+        long weightedSize = 0;
+        for (Segment segment : segments) {
+            weightedSize += segment.weightedSize();
+        }
+        return weightedSize;
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    public long hitCount() {
+        return hitCount.sum();
+    }
+
+    public long missCount() {
+        return missCount.sum();
+    }
+
+    public long evictionCount() {
+        return evictionCount.sum();
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[(hash >>> 24) & segmentMask];
+    }
+
+    private static final byte WINDOW = 0;
+    private static final byte PROBATION = 1;
+    private static final byte PROTECTED = 2;
+
+    private static final class Node {
+        final long key;
+        Tile tile;
+        int weight;
+        byte queue;
+        Node next;
+        Node prev;
+        Node after;
+
+        Node(long key) {
+            this.key = key;
+        }
+    }
+
+    private final class Segment {
+        private final long maxWeight;
+        private final long windowMaxWeight;
+        private final long protectedMaxWeight;
+        private final FrequencySketch sketch;
+
+        private Node[] table = new Node[64];
+        private int count;
+        private long windowWeight;
+        private long probationWeight;
+        private long protectedWeight;
+
+        // Sentinels of the LRU lists, head.after is the least recently used node
+        private final Node windowHead = newSentinel();
+        private final Node probationHead = newSentinel();
+        private final Node protectedHead = newSentinel();
+
+        Segment(long maxWeight) {
+            this.maxWeight = maxWeight;
+            this.windowMaxWeight = Math.max(1, maxWeight / 100);
+            this.protectedMaxWeight = (maxWeight - windowMaxWeight) * 8 / 10;
+            this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE / 2, maxWeight / AVERAGE_TILE_BYTES));
+        }
+
+        synchronized Tile get(long key, int hash) {
+            sketch.increment(key);
+            Node node = find(key, hash);
+            if (node == null) {
+                return null;
+            }
+            onHit(node);
+            // Retained under the lock, an eviction can not free it before the caller is done
+            node.tile.content().retain();
+            return node.tile;
+        }
+
+        void put(long key, int hash, Tile tile) {
+            Tile replaced = null;
+            synchronized (this) {
+                sketch.increment(key);
+                Node node = find(key, hash);
+                if (node != null) {
+                    replaced = node.tile;
+                    addWeight(node.queue, tile.length() - node.weight);
+                    node.tile = tile;
+                    node.weight = tile.length();
+                    onHit(node);
+                } else {
+                    node = new Node(key);
+                    node.tile = tile;
+                    node.weight = tile.length();
+                    node.queue = WINDOW;
+                    insert(node, hash);
+                    linkLast(windowHead, node);
+                    windowWeight += node.weight;
+                }
+                evict();
+            }
+            if (replaced != null) {
+                replaced.content().release();
+            }
+        }
+
+        synchronized boolean contains(long key, int hash) {
+            return find(key, hash) != null;
+        }
+
+        synchronized void collectKeys(KeyBuckets buckets) {
+            for (Node head : new Node[]{protectedHead, probationHead, windowHead}) {
+                for (Node node = head.prev; node != head; node = node.prev) {
+                    buckets.add(sketch.frequency(node.key), node.key);
+                }
+            }
+        }
+
+        synchronized void collectEtags(LongPredicate filter, Map<Long, String> etags) {
+            for (Node head : new Node[]{protectedHead, probationHead, windowHead}) {
+                for (Node node = head.after; node != head; node = node.after) {
+                    if (filter.test(node.key)) {
+                        etags.put(node.key, node.tile.etag());
+                    }
+                }
+            }
+        }
+
+        void invalidate(long key, int hash, String etag) {
+            Tile removed = null;
+            synchronized (this) {
+                Node node = find(key, hash);
+                if (node != null && node.tile.etag().equals(etag)) {
+                    unlink(node);
+                    addWeight(node.queue, -node.weight);
+                    delete(node);
+                    removed = node.tile;
+                }
+            }
+            if (removed != null) {
+                removed.content().release();
+            }
+        }
+
+        synchronized void clear() {
+            for (Node head : new Node[]{windowHead, probationHead, protectedHead}) {
+                while (head.after != head) {
+                    Node node = head.after;
+                    unlink(node);
+                    node.tile.content().release();
+                }
+            }
+            table = new Node[64];
+            count = 0;
+            windowWeight = 0;
+            probationWeight = 0;
+            protectedWeight = 0;
+        }
+
+        synchronized int count() {
+            return count;
+        }
+
+        synchronized long weightedSize() {
+            return windowWeight + probationWeight + protectedWeight;
+        }
+
+        private void onHit(Node node) {
+            unlink(node);
+            if (node.queue == WINDOW) {
+                linkLast(windowHead, node);
+            } else if (node.queue == PROBATION) {
+                // Promote to protected, demote the protected LRU if it is over budget
+                probationWeight -= node.weight;
+                node.queue = PROTECTED;
+                protectedWeight += node.weight;
+                linkLast(protectedHead, node);
+                while (protectedWeight > protectedMaxWeight && protectedHead.after != node) {
+                    Node demoted = protectedHead.after;
+                    unlink(demoted);
+                    protectedWeight -= demoted.weight;
+                    demoted.queue = PROBATION;
+                    probationWeight += demoted.weight;
+                    linkLast(probationHead, demoted);
+                }
+            } else {
+                linkLast(protectedHead, node);
+            }
+        }
+
+        private void evict() {
+            // Nodes pushed out of the window become admission candidates in probation
+            Node candidate = null;
+            while (windowWeight > windowMaxWeight && windowHead.after != windowHead) {
+                Node node = windowHead.after;
+                unlink(node);
+                windowWeight -= node.weight;
+                node.queue = PROBATION;
+                probationWeight += node.weight;
+                linkLast(probationHead, node);
+                if (candidate == null) {
+                    candidate = node;
+                }
+            }
+
+            while (windowWeight + probationWeight + protectedWeight > maxWeight) {
+                Node victim = probationHead.after;
+                if (victim == probationHead) {
+                    victim = protectedHead.after != protectedHead ? protectedHead.after : windowHead.after;
+                }
+                if (candidate != null && candidate != victim
+                        && sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                    remove(victim);
+                } else if (candidate != null && candidate != victim) {
+                    Node next = candidate.after != probationHead ? candidate.after : null;
+                    remove(candidate);
+                    candidate = next;
+                } else {
+                    if (victim == candidate) {
+                        candidate = candidate.after != probationHead ? candidate.after : null;
+                    }
+                    remove(victim);
+                }
+            }
+        }
+
+        private void remove(Node node) {
+            unlink(node);
+            addWeight(node.queue, -node.weight);
+            delete(node);
+            node.tile.content().release();
+            evictionCount.increment();
+        }
+
+        private void addWeight(byte queue, long delta) {
+            if (queue == WINDOW) {
+                windowWeight += delta;
+            } else if (queue == PROBATION) {
+                probationWeight += delta;
+            } else {
+                protectedWeight += delta;
+            }
+        }
+
+        private Node find(long key, int hash) {
+            for (Node node = table[hash & (table.length - 1)]; node != null; node = node.next) {
+                if (node.key == key) {
+                    return node;
+                }
+            }
+            return null;
+        }
+
+        private void insert(Node node, int hash) {
+            if (count >= table.length * 3 / 4) {
+                resize();
+            }
+            int index = hash & (table.length - 1);
+            node.next = table[index];
+            table[index] = node;
+            count++;
+        }
+
+        private void delete(Node node) {
+            int index = TileKey.hash(node.key) & (table.length - 1);
+            Node prev = null;
+            for (Node current = table[index]; current != null; prev = current, current = current.next) {
+                if (current == node) {
+                    if (prev == null) {
+                        table[index] = current.next;
+                    } else {
+                        prev.next = current.next;
+                    }
+                    count--;
+                    return;
+                }
+            }
+        }
+
+        private void resize() {
+            Node[] oldTable = table;
+            Node[] newTable = new Node[oldTable.length << 1];
+            for (Node head : oldTable) {
+                Node node = head;
+                while (node != null) {
+                    Node next = node.next;
+                    int index = TileKey.hash(node.key) & (newTable.length - 1);
+                    node.next = newTable[index];
+                    newTable[index] = node;
+                    node = next;
+                }
+            }
+            table = newTable;
+        }
+    }
+
+    // Keys bucketed by their 4 bits frequency
+    private static final class KeyBuckets {
+        private final long[][] keys = new long[16][];
+        private final int[] sizes = new int[16];
+
+        void add(int frequency, long key) {
+            long[] bucket = keys[frequency];
+            if (bucket == null) {
+                bucket = keys[frequency] = new long[64];
+            } else if (sizes[frequency] == bucket.length) {
+                bucket = keys[frequency] = Arrays.copyOf(bucket, bucket.length << 1);
+            }
+            bucket[sizes[frequency]++] = key;
+        }
+
+        long[] top(int limit) {
+            int total = 0;
+            for (int size : sizes) {
+                total += size;
+            }
+            long[] result = new long[Math.min(limit, total)];
+            int count = 0;
+            for (int frequency = keys.length - 1; frequency >= 0 && count < result.length; frequency--) {
+                int length = Math.min(sizes[frequency], result.length - count);
+                if (length > 0) {
+                    System.arraycopy(keys[frequency], 0, result, count, length);
+                    count += length;
+                }
+            }
+            return result;
+        }
+    }
+
+    private static Node newSentinel() {
+        Node sentinel = new Node(TileKey.INVALID);
+        sentinel.prev = sentinel;
+        sentinel.after = sentinel;
+        return sentinel;
+    }
+
+    private static void linkLast(Node head, Node node) {
+        node.prev = head.prev;
+        node.after = head;
+        head.prev.after = node;
+        head.prev = node;
+    }
+
+    private static void unlink(Node node) {
+        node.prev.after = node.after;
+        node.after.prev = node.prev;
+        node.prev = null;
+        node.after = null;
+    }
+}
@@ -0,0 +1,72 @@
+package com.luxx.map.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of packed tile coordinates. Bits are set with CAS so that lookups
+ * on the IO threads run concurrently with the refresh thread adding new tiles.
+ */
+final class TileBloomFilter {
+    private final AtomicLongArray words;
+    private final long bitMask;
+    private final int hashCount;
+    private final long capacity;
+    private volatile long count;
+
+    TileBloomFilter(long expectedInsertions, double fpp) {
+        long n = Math.max(1, expectedInsertions);
+        long bits = (long) (-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        int wordCount = (int) Math.min(1 << 30, Math.max(64, Long.highestOneBit((bits + 63) >>> 6) << 1));
+        this.words = new AtomicLongArray(wordCount);
+        this.bitMask = ((long) wordCount << 6) - 1;
+        this.hashCount = Math.max(1, Math.min(16, (int) Math.round((double) bits / n * Math.log(2))));
+        this.capacity = n;
+    }
+
+    void put(long key) {
+        long hash = mix(key);
+        long h1 = hash;
+        long h2 = (hash >>> 32) | 1L;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = (h1 + i * h2) & bitMask;
+            int index = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long word = words.get(index);
+            while ((word & mask) == 0 && !words.compareAndSet(index, word, word | mask)) {
+                word = words.get(index);
+            }
+        }
+        count++;
+    }
+
+    boolean mightContain(long key) {
+        long hash = mix(key);
+        long h1 = hash;
+        long h2 = (hash >>> 32) | 1L;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = (h1 + i * h2) & bitMask;
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * More tiles than the filter was sized for, the false positive rate is above the target
+     */
+    boolean isOverCapacity() {
+        return count > capacity;
+    }
+
+    // murmur3 64 bit finalizer
+    private static long mix(long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
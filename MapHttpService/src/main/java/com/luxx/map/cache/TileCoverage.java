@@ -0,0 +1,169 @@
+package com.luxx.map.cache;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+import com.luxx.map.service.MapDbOperation;
+import com.luxx.map.service.TileKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Map服务，瓦片覆盖范围
+ * 每个图层一个布隆过滤器，从数据库瓦片表的坐标列构建。不在过滤器中的瓦片一定不存在，不需要查询数据库。
+ * SQLite按行id增量加入新瓦片；MySQL没有自增id，按配置的间隔全量重建后整体替换，默认不使用
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public class TileCoverage {
+    private static Logger log = LoggerFactory.getLogger(TileCoverage.class);
+
+    // Room for tiles added after a rebuild before the filter is over capacity
+    private static final double GROWTH = 1.25;
+    private static final long MIN_EXPECTED_TILES = 1024;
+
+    private final double fpp;
+    private final long rebuildIntervalMillis;
+    // Indexed by layer index, null until the first build is done
+    private volatile TileBloomFilter[] filters;
+    // Only touched by the refresh thread
+    private long lastId;
+    private boolean rebuildPending;
+    private long lastRebuild;
+    // Set when the layers move to other stores, the filters are stale until the next rebuild
+    private volatile boolean invalidated;
+
+    /**
+     * @param rebuildIntervalSeconds seconds between full rebuilds if the stores can not be scanned incrementally,
+     *                               0 does not use the coverage then
+     */
+    public TileCoverage(double fpp, int rebuildIntervalSeconds) {
+        this.fpp = fpp;
+        this.rebuildIntervalMillis = TimeUnit.SECONDS.toMillis(rebuildIntervalSeconds);
+    }
+
+    /**
+     * False if the tile is certainly not in the database. Every tile might exist before the first build.
+     */
+    public boolean mightContain(long tileKey) {
+        TileBloomFilter[] current = filters;
+        if (current == null) {
+            return true;
+        }
+        TileBloomFilter filter = current[TileKey.layerIndex(tileKey)];
+        return filter != null && filter.mightContain(coordinates(tileKey));
+    }
+
+    public boolean isBuilt() {
+        return filters != null;
+    }
+
+    /**
+     * Drop the filters, every tile might exist until the next refresh rebuilds them
+     */
+    public void invalidate() {
+        invalidated = true;
+        filters = null;
+    }
+
+    /**
+     * Add the tiles inserted since the last refresh, or rebuild all filters if a filter is over capacity.
+     * If the database can not be scanned incrementally the filters are only rebuilt every rebuild interval.
+     *
+     * @param onAdded called with the key of every tile added incrementally
+     * @return true if the filters were rebuilt instead of updated
+     */
+    public synchronized boolean refresh(final LongConsumer onAdded) throws SQLException {
+        final TileBloomFilter[] current = filters;
+        if (!MapDbOperation.isIncrementalKeyScanSupported()) {
+            if (rebuildIntervalMillis <= 0) {
+                // Every tile might exist, a full scan of every key is not repeated
+                if (current != null) {
+                    log.info("Tile coverage is not used, the stores can not be scanned incrementally");
+                }
+                filters = null;
+                return false;
+            }
+            if (current != null && !rebuildPending && !invalidated
+                    && System.currentTimeMillis() - lastRebuild < rebuildIntervalMillis) {
+                return false;
+            }
+            rebuild();
+            return true;
+        }
+        if (current == null || rebuildPending || invalidated) {
+            rebuild();
+            return true;
+        }
+        final boolean[] needRebuild = {false};
+        long previousId = lastId;
+        lastId = MapDbOperation.scanTileKeys(lastId, (dbId, zoom, x, y) -> {
+            long tileKey = TileKey.encode(dbId, zoom, x, y);
+            if (tileKey == TileKey.INVALID) {
+                return;
+            }
+            TileBloomFilter filter = current[TileKey.layerIndex(tileKey)];
+            // A new layer or too many new tiles
+            if (filter == null || filter.isOverCapacity()) {
+                needRebuild[0] = true;
+                return;
+            }
+            filter.put(coordinates(tileKey));
+            onAdded.accept(tileKey);
+        });
+        if (needRebuild[0]) {
+            log.info("Tile coverage has a new layer or is over capacity, rebuild it");
+            rebuild();
+            return true;
+        }
+        if (lastId != previousId) {
+            log.info("Tile coverage updated up to row " + lastId);
+        }
+        return false;
+    }
+
+    private void rebuild() throws SQLException {
+        invalidated = false;
+        long start = System.currentTimeMillis();
+        lastRebuild = start;
+        final TileBloomFilter[] built = new TileBloomFilter[TileKey.MAX_LAYERS];
+        for (Map.Entry<String, Long> entry : MapDbOperation.countTilesByLayer().entrySet()) {
+            int layerIndex = TileKey.layerIndex(entry.getKey());
+            if (layerIndex >= 0) {
+                long expected = Math.max(MIN_EXPECTED_TILES, (long) (entry.getValue() * GROWTH));
+                built[layerIndex] = new TileBloomFilter(expected, fpp);
+            }
+        }
+        final long[] tiles = {0};
+        final boolean[] skipped = {false};
+        long lastRowId = MapDbOperation.scanTileKeys(0, (dbId, zoom, x, y) -> {
+            long tileKey = TileKey.encode(dbId, zoom, x, y);
+            if (tileKey == TileKey.INVALID) {
+                return;
+            }
+            TileBloomFilter filter = built[TileKey.layerIndex(tileKey)];
+            if (filter != null) {
+                filter.put(coordinates(tileKey));
+                tiles[0]++;
+            } else {
+                // A layer inserted after the count, it is picked up by the next rebuild
+                skipped[0] = true;
+            }
+        });
+        lastId = lastRowId;
+        rebuildPending = skipped[0];
+        // Invalidated while scanning the old stores, the next refresh builds it again
+        if (!invalidated) {
+            filters = built;
+        }
+        log.info("Tile coverage built with " + tiles[0] + " tiles in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private static long coordinates(long tileKey) {
+        return TileKey.encode(0, TileKey.zoom(tileKey), TileKey.x(tileKey), TileKey.y(tileKey));
+    }
+}
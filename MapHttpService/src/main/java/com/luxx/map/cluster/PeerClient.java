@@ -0,0 +1,197 @@
+package com.luxx.map.cluster;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.luxx.map.service.Tile;
+import com.luxx.map.service.TileKey;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.pool.AbstractChannelPoolHandler;
+import io.netty.channel.pool.ChannelHealthChecker;
+import io.netty.channel.pool.FixedChannelPool;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ScheduledFuture;
+
+/**
+ * Map服务，到一个对等节点的瓦片请求客户端
+ * 复用keep-alive连接池，每个连接同时只有一个请求。连接或IO失败后该节点在一段时间内被视为不可用，
+ * 期间的请求直接失败，由调用方回退到本地存储；错误应答（如503）或超时只让本次请求失败
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+final class PeerClient {
+    private static final int MAX_TILE_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_PENDING_ACQUIRES = 1024;
+
+    private final String address;
+    private final String self;
+    private final FixedChannelPool pool;
+    private final long timeoutMillis;
+    private final long retryMillis;
+    private volatile long downUntil = 0;
+
+    PeerClient(String address, String self, EventLoopGroup group, int maxConnections, long timeoutMillis,
+               long retryMillis) {
+        this.address = address;
+        this.self = self;
+        this.timeoutMillis = timeoutMillis;
+        this.retryMillis = retryMillis;
+        int portStart = address.lastIndexOf(':');
+        Bootstrap bootstrap = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) timeoutMillis)
+                .remoteAddress(address.substring(0, portStart), Integer.parseInt(address.substring(portStart + 1)));
+        pool = new FixedChannelPool(bootstrap, new AbstractChannelPoolHandler() {
+            @Override
+            public void channelCreated(Channel ch) {
+                ch.pipeline().addLast(new HttpClientCodec());
+                ch.pipeline().addLast(new HttpObjectAggregator(MAX_TILE_BYTES));
+                ch.pipeline().addLast(new PeerResponseHandler());
+            }
+        }, ChannelHealthChecker.ACTIVE, FixedChannelPool.AcquireTimeoutAction.FAIL, timeoutMillis,
+                maxConnections, MAX_PENDING_ACQUIRES);
+    }
+
+    String getAddress() {
+        return address;
+    }
+
+    boolean isDown() {
+        return System.currentTimeMillis() < downUntil;
+    }
+
+    /**
+     * The future is completed with the tile, null if the peer does not have it, or exceptionally
+     * if the peer can not be reached, answers with an error or does not answer in time
+     */
+    CompletableFuture<Tile> fetch(long tileKey) {
+        final CompletableFuture<Tile> result = new CompletableFuture<>();
+        if (isDown()) {
+            result.completeExceptionally(new IOException("Peer " + address + " is down"));
+            return result;
+        }
+        final FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET,
+                "/" + TileKey.layer(tileKey) + "/" + TileKey.zoom(tileKey) + "/" + TileKey.x(tileKey)
+                        + "/" + TileKey.y(tileKey));
+        request.headers().set(HttpHeaders.Names.HOST, address);
+        request.headers().set(TileCluster.FORWARDED_HEADER, self);
+        pool.acquire().addListener((Future<Channel> acquired) -> {
+            if (!acquired.isSuccess()) {
+                failed(result, acquired.cause());
+                return;
+            }
+            Channel ch = acquired.getNow();
+            ch.pipeline().get(PeerResponseHandler.class).send(ch, request, result);
+        });
+        return result;
+    }
+
+    // Only a failed connect or connection marks the peer down. A request timing out or the pool running out
+    // of connections fails this request alone, like an error answer of a busy peer
+    private void failed(CompletableFuture<Tile> result, Throwable cause) {
+        if (cause instanceof IOException) {
+            downUntil = System.currentTimeMillis() + retryMillis;
+        }
+        result.completeExceptionally(cause);
+    }
+
+    void close() {
+        pool.close();
+    }
+
+    // One request at a time per pooled connection, every callback runs on the connection's event loop
+    private final class PeerResponseHandler extends SimpleChannelInboundHandler<FullHttpResponse> {
+        private CompletableFuture<Tile> pending;
+        private ScheduledFuture<?> timeout;
+
+        void send(final Channel ch, FullHttpRequest request, CompletableFuture<Tile> result) {
+            if (!ch.eventLoop().inEventLoop()) {
+                ch.eventLoop().execute(() -> send(ch, request, result));
+                return;
+            }
+            pending = result;
+            timeout = ch.eventLoop().schedule(() -> fail(ch, new TimeoutException("Peer " + address + " timed out")),
+                    timeoutMillis, TimeUnit.MILLISECONDS);
+            ch.writeAndFlush(request).addListener(future -> {
+                if (!future.isSuccess()) {
+                    fail(ch, future.cause());
+                }
+            });
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse response) {
+            CompletableFuture<Tile> result = pending;
+            if (result == null) {
+                return;
+            }
+            pending = null;
+            timeout.cancel(false);
+            int status = response.status().code();
+            if (HttpHeaders.isKeepAlive(response)) {
+                pool.release(ctx.channel());
+            } else {
+                ctx.close();
+                pool.release(ctx.channel());
+            }
+            if (status == HttpResponseStatus.OK.code()) {
+                String lastModifiedHeader = response.headers().get(HttpHeaders.Names.LAST_MODIFIED);
+                Date lastModified = lastModifiedHeader != null ? DateFormatter.parseHttpDate(lastModifiedHeader) : null;
+                result.complete(Tile.of(ByteBufUtil.getBytes(response.content()),
+                        lastModified != null ? lastModified.getTime() : 0));
+            } else if (status == HttpResponseStatus.NO_CONTENT.code()) {
+                result.complete(null);
+            } else {
+                // The peer is up, it could not serve this tile
+                result.completeExceptionally(new IOException("Peer " + address + " answered " + status));
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            fail(ctx.channel(), new IOException("Connection to peer " + address + " closed"));
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            fail(ctx.channel(), cause);
+        }
+
+        private void fail(Channel ch, Throwable cause) {
+            CompletableFuture<Tile> result = pending;
+            if (result == null) {
+                return;
+            }
+            pending = null;
+            timeout.cancel(false);
+            ch.close();
+            pool.release(ch);
+            failed(result, cause);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.luxx.map.cluster;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.luxx.map.service.Tile;
+import com.luxx.map.util.PropertiesUtil;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Map服务，对等节点模式
+ * 集群中每个节点按一致性哈希拥有一部分瓦片，只在自己的内存缓存中缓存这些瓦片，缓存容量随节点数增长。
+ * 其他节点的瓦片未命中时转发给拥有它的节点，转发请求带X-Map-Forwarded头，收到的节点不再转发；
+ * 对方不可用时回退到本地存储。其他节点的瓦片保存在一个小的本地近缓存中
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public class TileCluster {
+    private static Logger log = LoggerFactory.getLogger(TileCluster.class);
+
+    public static final String FORWARDED_HEADER = "X-Map-Forwarded";
+
+    private final boolean enabled;
+    private TileRing ring = null;
+    private PeerClient[] peers = null;
+    private int selfIndex = -1;
+    private EventLoopGroup group = null;
+    private final LongAdder forwards = new LongAdder();
+    private final LongAdder forwardFailures = new LongAdder();
+
+    private static class TileClusterHolder {
+        private static final TileCluster instance = new TileCluster();
+    }
+
+    public static TileCluster getInstance() {
+        return TileClusterHolder.instance;
+    }
+
+    private TileCluster() {
+        List<String> addresses = PropertiesUtil.getInstance().GetClusterPeers();
+        String self = PropertiesUtil.getInstance().GetClusterSelf();
+        selfIndex = addresses.indexOf(self);
+        if (addresses.size() < 2 || selfIndex < 0) {
+            if (!addresses.isEmpty()) {
+                log.error("Peer mode is disabled, cluster.self " + self + " is not one of at least two cluster.peers");
+            }
+            enabled = false;
+            return;
+        }
+        ring = new TileRing(addresses, PropertiesUtil.getInstance().GetClusterVirtualNodes());
+        group = new NioEventLoopGroup(PropertiesUtil.getInstance().GetClusterPeerThreads(),
+                new DefaultThreadFactory("peerClient", true));
+        peers = new PeerClient[addresses.size()];
+        for (int i = 0; i < peers.length; i++) {
+            if (i != selfIndex) {
+                peers[i] = new PeerClient(addresses.get(i), self, group,
+                        PropertiesUtil.getInstance().GetClusterPeerConnections(),
+                        PropertiesUtil.getInstance().GetClusterPeerTimeoutMillis(),
+                        PropertiesUtil.getInstance().GetClusterPeerRetrySeconds() * 1000L);
+            }
+        }
+        enabled = true;
+        log.info("Peer mode with " + addresses.size() + " nodes, this node is " + self);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Whether another node owns the tile
+     */
+    public boolean isForeign(long tileKey) {
+        return enabled && ring.nodeOf(tileKey) != selfIndex;
+    }
+
+    /**
+     * Get a tile owned by another node from that node.
+     * The future is completed with the tile, null if it does not exist, or exceptionally if the owner
+     * can not answer and the tile has to be loaded locally.
+     */
+    public CompletableFuture<Tile> fetch(long tileKey) {
+        PeerClient peer = peers[ring.nodeOf(tileKey)];
+        if (peer == null) {
+            CompletableFuture<Tile> result = new CompletableFuture<>();
+            result.completeExceptionally(new IOException("Tile is owned by this node"));
+            return result;
+        }
+        forwards.increment();
+        return peer.fetch(tileKey).whenComplete((tile, e) -> {
+            if (e != null) {
+                forwardFailures.increment();
+                log.debug("Forward to " + peer.getAddress() + " failed: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Number of misses forwarded to the owning node
+     */
+    public long getForwards() {
+        return forwards.sum();
+    }
+
+    /**
+     * Number of forwarded misses loaded locally because the owner did not answer
+     */
+    public long getForwardFailures() {
+        return forwardFailures.sum();
+    }
+
+    /**
+     * Number of peers currently skipped after a failure
+     */
+    public int getPeersDown() {
+        int down = 0;
+        if (peers != null) {
+            for (PeerClient peer : peers) {
+                if (peer != null && peer.isDown()) {
+                    down++;
+                }
+            }
+        }
+        return down;
+    }
+
+    public void destroy() {
+        if (peers != null) {
+            for (PeerClient peer : peers) {
+                if (peer != null) {
+                    peer.close();
+                }
+            }
+        }
+        if (group != null) {
+            group.shutdownGracefully();
+        }
+    }
+}
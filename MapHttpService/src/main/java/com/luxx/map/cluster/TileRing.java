@@ -0,0 +1,74 @@
+package com.luxx.map.cluster;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.hash.Hashing;
+import com.luxx.map.service.TileKey;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Map服务，瓦片Key的一致性哈希环
+ * 每个节点在环上放置多个虚拟节点，瓦片按图层名和行列号哈希到环上顺时针的第一个节点。
+ * 图层序号是每个节点各自分配的，不参与哈希，所有节点对同一个瓦片得到相同的归属
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+final class TileRing {
+    private final long[] points;
+    private final int[] nodes;
+    // Hash of every layer name by layer index, 0 until first used
+    private final long[] layerHashes = new long[TileKey.MAX_LAYERS];
+
+    TileRing(List<String> addresses, int virtualNodes) {
+        long[][] entries = new long[addresses.size() * virtualNodes][];
+        for (int node = 0; node < addresses.size(); node++) {
+            for (int i = 0; i < virtualNodes; i++) {
+                long point = Hashing.murmur3_128().hashString(addresses.get(node) + "#" + i, CharsetUtil.UTF_8).asLong();
+                entries[node * virtualNodes + i] = new long[]{point, node};
+            }
+        }
+        Arrays.sort(entries, (a, b) -> Long.compare(a[0], b[0]));
+        points = new long[entries.length];
+        nodes = new int[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            points[i] = entries[i][0];
+            nodes[i] = (int) entries[i][1];
+        }
+    }
+
+    /**
+     * @return index of the node owning the tile in the address list
+     */
+    int nodeOf(long tileKey) {
+        int i = Arrays.binarySearch(points, hash(tileKey));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return nodes[i == points.length ? 0 : i];
+    }
+
+    private long hash(long tileKey) {
+        int layerIndex = TileKey.layerIndex(tileKey);
+        long layerHash = layerHashes[layerIndex];
+        if (layerHash == 0) {
+            layerHash = Hashing.murmur3_128().hashString(TileKey.layerName(layerIndex), CharsetUtil.UTF_8).asLong();
+            layerHashes[layerIndex] = layerHash;
+        }
+        // Layer bits cleared, what is left is zoom | x | y
+        long position = TileKey.encode(0, TileKey.zoom(tileKey), TileKey.x(tileKey), TileKey.y(tileKey));
+        return mix(layerHash ^ position);
+    }
+
+    // Finalizer of MurmurHash3, spreads neighbouring tiles over the ring
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,53 @@
+package com.luxx.map.metrics;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Map服务，分布型运行指标
+ * 请求路径上无锁、不分配对象地记录数值；读取时把上次读取以来记录的区间合并到累计分布中
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public final class HistogramMetric {
+    private final String name;
+    private final String help;
+    private final Recorder recorder = new Recorder(3);
+    private final Histogram total = new Histogram(3);
+    private Histogram interval;
+
+    HistogramMetric(String name, String help) {
+        this.name = name;
+        this.help = help;
+    }
+
+    public void record(long value) {
+        recorder.recordValue(Math.max(0, value));
+    }
+
+    /**
+     * Record the microseconds elapsed since startNanos
+     */
+    public void recordSince(long startNanos) {
+        recorder.recordValue(Math.max(0, (System.nanoTime() - startNanos) / 1000));
+    }
+
+    /**
+     * Copy of everything recorded since start
+     */
+    public synchronized Histogram snapshot() {
+        interval = recorder.getIntervalHistogram(interval);
+        total.add(interval);
+        return total.copy();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+}
@@ -0,0 +1,240 @@
+package com.luxx.map.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import com.luxx.map.cache.DiskTileCache;
+import com.luxx.map.cache.OffHeapTileCache;
+import com.luxx.map.cluster.TileCluster;
+import com.luxx.map.service.MapCache;
+import com.luxx.map.service.TileKey;
+import com.luxx.map.service.TileLoader;
+import com.luxx.map.service.TilePrefetcher;
+import com.luxx.map.service.TileResponseHeaders;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Map服务，运行指标
+ * 请求路径上只做LongAdder累加和HdrHistogram记录，不分配对象；抓取时按Prometheus文本格式输出
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public class MapMetrics {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final int[] STATUSES = {200, 204, 304, 400, 503};
+
+    private final HistogramMetric parseLatency = new HistogramMetric("map_parse_latency_microseconds",
+            "Time to parse a tile request");
+    private final HistogramMetric cacheLatency = new HistogramMetric("map_cache_latency_microseconds",
+            "Time of a memory cache lookup");
+    private final HistogramMetric dbLatency = new HistogramMetric("map_db_latency_microseconds",
+            "Time of a database tile query");
+    private final HistogramMetric writeLatency = new HistogramMetric("map_write_latency_microseconds",
+            "Time to encode and flush a response");
+    private final HistogramMetric requestLatency = new HistogramMetric("map_request_latency_microseconds",
+            "Time from reading a request to writing its response");
+    private final HistogramMetric loaderWaitTime = new HistogramMetric("map_loader_wait_microseconds",
+            "Time a tile load waits in the loader queue");
+    private final HistogramMetric loaderQueueDepth = new HistogramMetric("map_loader_queue_depth",
+            "Loader queue depth seen by submitted loads");
+
+    private final LongAdder[] requestsByZoom = new LongAdder[TileKey.MAX_ZOOM + 1];
+    private final LongAdder[] responsesByStatus = new LongAdder[STATUSES.length + 1];
+    private final LongAdder bytesServed = new LongAdder();
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+
+    private static class MapMetricsHolder {
+        private static final MapMetrics instance = new MapMetrics();
+    }
+
+    public static MapMetrics getInstance() {
+        return MapMetricsHolder.instance;
+    }
+
+    private MapMetrics() {
+        for (int i = 0; i < requestsByZoom.length; i++) {
+            requestsByZoom[i] = new LongAdder();
+        }
+        for (int i = 0; i < responsesByStatus.length; i++) {
+            responsesByStatus[i] = new LongAdder();
+        }
+    }
+
+    public HistogramMetric getParseLatency() {
+        return parseLatency;
+    }
+
+    public HistogramMetric getCacheLatency() {
+        return cacheLatency;
+    }
+
+    public HistogramMetric getDbLatency() {
+        return dbLatency;
+    }
+
+    public HistogramMetric getWriteLatency() {
+        return writeLatency;
+    }
+
+    public HistogramMetric getRequestLatency() {
+        return requestLatency;
+    }
+
+    public HistogramMetric getLoaderWaitTime() {
+        return loaderWaitTime;
+    }
+
+    public HistogramMetric getLoaderQueueDepth() {
+        return loaderQueueDepth;
+    }
+
+    public void tileRequested(long tileKey) {
+        requestsByZoom[TileKey.zoom(tileKey)].increment();
+    }
+
+    public void responseWritten(int status, long bytes) {
+        int index = STATUSES.length;
+        for (int i = 0; i < STATUSES.length; i++) {
+            if (STATUSES[i] == status) {
+                index = i;
+                break;
+            }
+        }
+        responsesByStatus[index].increment();
+        bytesServed.add(bytes);
+    }
+
+    public void connectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    public void connectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    /**
+     * All metrics in the Prometheus text exposition format
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder(8192);
+        for (HistogramMetric metric : new HistogramMetric[]{parseLatency, cacheLatency, dbLatency, writeLatency,
+                requestLatency, loaderWaitTime, loaderQueueDepth}) {
+            writeSummary(out, metric);
+        }
+
+        header(out, "map_requests_total", "counter", "Tile requests by zoom level");
+        for (int zoom = 0; zoom < requestsByZoom.length; zoom++) {
+            long count = requestsByZoom[zoom].sum();
+            if (count > 0) {
+                out.append("map_requests_total{zoom=\"").append(zoom).append("\"} ").append(count).append('\n');
+            }
+        }
+        header(out, "map_responses_total", "counter", "Responses by status code");
+        for (int i = 0; i < responsesByStatus.length; i++) {
+            out.append("map_responses_total{status=\"").append(i < STATUSES.length ? String.valueOf(STATUSES[i]) : "other")
+                    .append("\"} ").append(responsesByStatus[i].sum()).append('\n');
+        }
+        sample(out, "map_bytes_served_total", "counter", "Response body bytes", bytesServed.sum());
+        long opened = connectionsOpened.sum();
+        sample(out, "map_connections_opened_total", "counter", "Accepted connections", opened);
+        sample(out, "map_connections", "gauge", "Open connections", opened - connectionsClosed.sum());
+
+        OffHeapTileCache tileCache = MapCache.getInstance().getTileCache();
+        sample(out, "map_cache_hits_total", "counter", "Memory cache hits", tileCache.hitCount());
+        sample(out, "map_cache_misses_total", "counter", "Memory cache misses", tileCache.missCount());
+        sample(out, "map_cache_evictions_total", "counter", "Memory cache evictions", tileCache.evictionCount());
+        sample(out, "map_cache_tiles", "gauge", "Tiles in the memory cache", tileCache.size());
+        sample(out, "map_cache_bytes", "gauge", "Bytes in the memory cache", tileCache.weightedSize());
+        sample(out, "map_cache_max_bytes", "gauge", "Memory cache capacity", tileCache.maxBytes());
+        writePartitions(out);
+        sample(out, "map_response_headers_cached", "gauge", "Tiles with an encoded response",
+                TileResponseHeaders.getInstance().size());
+        writeCluster(out);
+        DiskTileCache diskTileCache = MapCache.getInstance().getDiskTileCache();
+        if (diskTileCache != null) {
+            sample(out, "map_disk_cache_hits_total", "counter", "Disk cache hits", diskTileCache.hitCount());
+            sample(out, "map_disk_cache_misses_total", "counter", "Disk cache misses", diskTileCache.missCount());
+            sample(out, "map_disk_cache_tiles", "gauge", "Tiles in the disk cache", diskTileCache.size());
+            sample(out, "map_disk_cache_bytes", "gauge", "Disk cache segment bytes", diskTileCache.diskBytes());
+        }
+        sample(out, "map_loads_issued_total", "counter", "Database loads issued by misses",
+                MapCache.getInstance().getIssuedLoads());
+        sample(out, "map_loads_coalesced_total", "counter", "Misses that joined an in-flight load",
+                MapCache.getInstance().getCoalescedLoads());
+        sample(out, "map_loads_in_flight", "gauge", "Tile loads in flight", MapCache.getInstance().getInFlightLoads());
+        sample(out, "map_known_missing_total", "counter", "Requests answered as missing without a query",
+                MapCache.getInstance().getKnownMissing());
+        TileLoader tileLoader = TileLoader.getInstance();
+        sample(out, "map_loader_queue", "gauge", "Loads waiting in the loader queue", tileLoader.getQueueDepth());
+        sample(out, "map_loader_active", "gauge", "Loader threads running a load", tileLoader.getActiveCount());
+        sample(out, "map_loader_rejected_total", "counter", "Loads rejected by a full queue",
+                tileLoader.getRejectedCount());
+        sample(out, "map_loader_expired_total", "counter", "Loads dropped after the deadline",
+                tileLoader.getExpiredCount());
+        sample(out, "map_prefetch_total", "counter", "Neighbour tiles prefetched",
+                TilePrefetcher.getInstance().getPrefetchCount());
+        return out.toString();
+    }
+
+    private static void writePartitions(StringBuilder out) {
+        StringBuilder bytes = new StringBuilder();
+        StringBuilder hits = new StringBuilder();
+        StringBuilder misses = new StringBuilder();
+        for (int layerIndex = 0; layerIndex < TileKey.MAX_LAYERS; layerIndex++) {
+            OffHeapTileCache partition = MapCache.getInstance().getPartition(layerIndex);
+            if (partition != null) {
+                String label = "{layer=\"" + TileKey.layerName(layerIndex) + "\"} ";
+                bytes.append("map_layer_cache_bytes").append(label).append(partition.weightedSize()).append('\n');
+                hits.append("map_layer_cache_hits_total").append(label).append(partition.hitCount()).append('\n');
+                misses.append("map_layer_cache_misses_total").append(label).append(partition.missCount()).append('\n');
+            }
+        }
+        if (bytes.length() > 0) {
+            header(out, "map_layer_cache_bytes", "gauge", "Bytes in the cache partition of a layer");
+            out.append(bytes);
+            header(out, "map_layer_cache_hits_total", "counter", "Cache partition hits of a layer");
+            out.append(hits);
+            header(out, "map_layer_cache_misses_total", "counter", "Cache partition misses of a layer");
+            out.append(misses);
+        }
+    }
+
+    private static void writeCluster(StringBuilder out) {
+        TileCluster cluster = TileCluster.getInstance();
+        OffHeapTileCache nearCache = MapCache.getInstance().getNearCache();
+        if (!cluster.isEnabled() || nearCache == null) {
+            return;
+        }
+        sample(out, "map_near_cache_hits_total", "counter", "Near cache hits", nearCache.hitCount());
+        sample(out, "map_near_cache_misses_total", "counter", "Near cache misses", nearCache.missCount());
+        sample(out, "map_near_cache_bytes", "gauge", "Bytes in the near cache", nearCache.weightedSize());
+        sample(out, "map_peer_forwards_total", "counter", "Misses forwarded to the owning node", cluster.getForwards());
+        sample(out, "map_peer_forward_failures_total", "counter", "Forwarded misses loaded locally",
+                cluster.getForwardFailures());
+        sample(out, "map_peers_down", "gauge", "Peers skipped after a failure", cluster.getPeersDown());
+    }
+
+    private static void writeSummary(StringBuilder out, HistogramMetric metric) {
+        Histogram histogram = metric.snapshot();
+        header(out, metric.getName(), "summary", metric.getHelp());
+        for (double quantile : QUANTILES) {
+            out.append(metric.getName()).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(histogram.getValueAtPercentile(quantile * 100)).append('\n');
+        }
+        out.append(metric.getName()).append("_sum ")
+                .append((long) (histogram.getMean() * histogram.getTotalCount())).append('\n');
+        out.append(metric.getName()).append("_count ").append(histogram.getTotalCount()).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String type, String help, long value) {
+        header(out, name, type, help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+}
@@ -0,0 +1,29 @@
+package com.luxx.map.service;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.DefaultByteBufHolder;
+
+/**
+ * Map服务，已编码的HTTP/1.1响应
+ * 状态行、header和body已经是完整的响应字节，TileResponseEncoder原样写出，不再经过HttpResponseEncoder编码
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public final class EncodedResponse extends DefaultByteBufHolder {
+    public EncodedResponse(ByteBuf content) {
+        super(content);
+    }
+
+    // Duplicates are encoded responses too
+    @Override
+    public EncodedResponse replace(ByteBuf content) {
+        return new EncodedResponse(content);
+    }
+
+    @Override
+    public EncodedResponse retainedDuplicate() {
+        return replace(content().retainedDuplicate());
+    }
+}
@@ -0,0 +1,86 @@
+package com.luxx.map.service;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Map服务，HTTP/1.1流水线请求排序
+ * 未命中的瓦片异步返回，后面的命中请求可能先写出响应。同一连接上的请求在前一个响应写完之前排队，
+ * 保证响应顺序与请求顺序一致；排队期间停止读取，由TCP对客户端施加背压
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public class HttpPipeliningHandler extends ChannelDuplexHandler {
+    private final Queue<FullHttpRequest> pending = new ArrayDeque<>();
+    private boolean responding = false;
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof FullHttpRequest)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        if (responding) {
+            pending.add((FullHttpRequest) msg);
+            ctx.channel().config().setAutoRead(false);
+            return;
+        }
+        responding = true;
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(final ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        boolean last = msg instanceof FullHttpResponse || msg instanceof LastHttpContent
+                || msg instanceof EncodedResponse;
+        ctx.write(msg, promise);
+        if (last) {
+            // The next response is queued behind this one in the outbound buffer, the order is kept
+            ctx.executor().execute(() -> next(ctx));
+        }
+    }
+
+    private void next(ChannelHandlerContext ctx) {
+        responding = false;
+        if (!ctx.channel().isActive()) {
+            releasePending();
+            return;
+        }
+        FullHttpRequest request = pending.poll();
+        if (request != null) {
+            responding = true;
+            ctx.fireChannelRead(request);
+        }
+        if (pending.isEmpty()) {
+            ctx.channel().config().setAutoRead(true);
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        releasePending();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        releasePending();
+    }
+
+    private void releasePending() {
+        FullHttpRequest request;
+        while ((request = pending.poll()) != null) {
+            ReferenceCountUtil.release(request);
+        }
+    }
+}
@@ -1,22 +1,43 @@
 package com.luxx.map.service;
 
-import java.util.List;
-import java.util.Map;
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import com.luxx.map.cluster.TileCluster;
 
+import com.luxx.map.metrics.MapMetrics;
+import com.luxx.map.store.TileBundle;
+import com.luxx.map.store.TileBundleStore;
+import com.luxx.map.util.PropertiesUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.DateFormatter;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpChunkedInput;
+import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
-import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.ScheduledFuture;
 
 /**
  * Map服务，Netty的Http请求处理
@@ -28,98 +49,427 @@ import io.netty.handler.codec.http.QueryStringDecoder;
 public class HttpServerInboundHandler extends ChannelInboundHandlerAdapter {
     private static Logger log = LoggerFactory.getLogger(HttpServerInboundHandler.class);
 
+    private static final int BATCH_MAX_TILES = PropertiesUtil.getInstance().GetBatchMaxTiles();
+    private static final String RETRY_AFTER = String.valueOf(PropertiesUtil.getInstance().GetTileLoaderRetryAfterSeconds());
+
+    // Whether the connection encodes with TileResponseEncoder, HTTP/2 streams and h2c capable connections do not
+    private Boolean encodedResponses = null;
+    // Whether a FileRegion reaches the socket as is, HTTP/2 frames and SslHandler can not carry one
+    private Boolean fileRegionSupported = null;
+
     @Override
-    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    public void channelRead(final ChannelHandlerContext ctx, Object msg) throws Exception {
         if (msg instanceof FullHttpRequest) {
+            final long requestStart = System.nanoTime();
             FullHttpRequest request = (FullHttpRequest) msg;
             final String uri = request.getUri();
-            byte[] responseContent = null;
             try {
-                FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NO_CONTENT);
-                boolean isKeepAlive = HttpHeaders.isKeepAlive(request);
-                MapRequestParam mapRequestParam = getMapRequestParam(uri);
-                if (!mapRequestParam.isOk()) {
-                    if (!isKeepAlive) {
-                        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
-                    } else {
-                        response.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
-                        ctx.writeAndFlush(response);
-                    }
+                final boolean isKeepAlive = HttpHeaders.isKeepAlive(request);
+                final String ifNoneMatch = request.headers().get(HttpHeaders.Names.IF_NONE_MATCH);
+                final long ifModifiedSince = getIfModifiedSince(request);
+                if (request.getMethod() == HttpMethod.POST && TileBatch.isBatchRequest(uri)) {
+                    writeBatch(ctx, uri, request.content().toString(CharsetUtil.UTF_8), isKeepAlive);
+                    return;
+                }
+                if (StaticMapRenderer.isStaticMapRequest(uri)) {
+                    writeStaticMap(ctx, uri, isKeepAlive);
+                    return;
+                }
+                if (TileExporter.isExportRequest(uri)) {
+                    writeExport(ctx, uri, isKeepAlive);
+                    return;
+                }
+                MapMetrics metrics = MapMetrics.getInstance();
+                long parseStart = System.nanoTime();
+                final long tileKey = TileRequestParser.parse(uri);
+                metrics.getParseLatency().recordSince(parseStart);
+                if (tileKey == TileKey.INVALID) {
+                    writeResponse(ctx, new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NO_CONTENT),
+                            isKeepAlive);
+                    return;
+                }
+                metrics.tileRequested(tileKey);
+                if (writeBundleTile(ctx, tileKey, ifModifiedSince, isKeepAlive)) {
+                    metrics.getRequestLatency().recordSince(requestStart);
                 } else {
-                    responseContent = MapCache.getInstance().getMapCacheTile(mapRequestParam);
-                    if (responseContent != null) {
-                        response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
-                                Unpooled.wrappedBuffer(responseContent));
-                        response.headers().set(HttpHeaders.Names.CONTENT_TYPE, "image/jpeg");
-                        response.headers().set(HttpHeaders.Names.CONTENT_LENGTH, response.content().readableBytes());
-                    }
-
-                    if (!isKeepAlive) {
-                        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+                    long cacheStart = System.nanoTime();
+                    Tile cachedTile = MapCache.getInstance().getCachedTile(tileKey);
+                    metrics.getCacheLatency().recordSince(cacheStart);
+                    if (cachedTile != null) {
+                        try {
+                            writeTile(ctx, tileKey, cachedTile, ifNoneMatch, ifModifiedSince, isKeepAlive);
+                        } finally {
+                            cachedTile.content().release();
+                        }
+                        metrics.getRequestLatency().recordSince(requestStart);
+                    } else if (MapCache.getInstance().isKnownMissing(tileKey)) {
+                        writeTile(ctx, tileKey, null, ifNoneMatch, ifModifiedSince, isKeepAlive);
+                        metrics.getRequestLatency().recordSince(requestStart);
                     } else {
-                        response.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
-                        ctx.writeAndFlush(response);
+                        boolean forwarded = request.headers().contains(TileCluster.FORWARDED_HEADER);
+                        loadTile(ctx, tileKey, ifNoneMatch, ifModifiedSince, isKeepAlive, !forwarded, requestStart);
+                        TilePrefetcher.getInstance().prefetchNeighbours(tileKey);
                     }
                 }
             } catch (Exception e) {
-                log.error(e.getMessage());
+                log.error("Handle request " + uri + " failed: " + e.toString());
+                // The pipelining handler waits for a response to this request, the connection is closed
+                // in case a part of the failed response was written already
+                writeInternalServerError(ctx);
             } finally {
                 request.release();
             }
         }
     }
 
-    //检测请求Url是否合法，以下两种情况合法：
-    //1: http://192.1.114.11:8899/788865972/{z}/{x}/{y} (http://192.1.114.11:8899/788865972/6/50/25)
-    //2: http://192.1.114.11:8899/FileService/image?map=quanguo&type=web&x=5&y=3&z=3
-    private MapRequestParam getMapRequestParam(String url) {
-        MapRequestParam mapRequestParam = new MapRequestParam();
-        QueryStringDecoder queryStringDecoder = new QueryStringDecoder(url);
-        Map<String, List<String>> paramsMap = queryStringDecoder.parameters();
-        if (paramsMap.isEmpty()) {
-            String[] params = url.split("/");
-            if (params != null && params.length == 5) {
-                String dbId = params[1];
-                mapRequestParam.setDbType(dbId);
-                try {
-                    int zoom = Integer.parseInt(params[2]);
-                    mapRequestParam.setZoom(zoom);
-                    int x = Integer.parseInt(params[3]);
-                    mapRequestParam.setX(x);
-                    int y = Integer.parseInt(params[4]);
-                    mapRequestParam.setY(y);
-                    mapRequestParam.setOk(true);
-                } catch (NumberFormatException e) {
-                    log.warn("请求Url:" + url + "不合法，异常：" + e.toString());
-                    mapRequestParam.setOk(false);
-                }
+    // Concurrent requests of the same uncached tile share one database load. The response is written
+    // on the channel's event loop by whichever comes first, the loaded tile or the deadline
+    private void loadTile(final ChannelHandlerContext ctx, final long tileKey, final String ifNoneMatch,
+                          final long ifModifiedSince, final boolean isKeepAlive, boolean mayForward,
+                          final long requestStart) {
+        final ScheduledFuture<?> deadline = ctx.executor().schedule(() -> writeServiceUnavailable(ctx, isKeepAlive),
+                TileLoader.getInstance().getDeadlineMillis(), TimeUnit.MILLISECONDS);
+        MapCache.getInstance().loadTileAsync(tileKey, mayForward).whenCompleteAsync((tile, e) -> {
+            if (!deadline.cancel(false)) {
+                // Already answered when the deadline passed
+                return;
             }
-        } else {
-            if (paramsMap.containsKey("z") && paramsMap.containsKey("x")
-                    && paramsMap.containsKey("y")) {
-                try {
-                    List<String> zoomList = paramsMap.get("z");
-                    if (zoomList.size() > 0) {
-                        mapRequestParam.setZoom(Integer.parseInt(zoomList.get(0)));
-                    }
-                    List<String> xList = paramsMap.get("x");
-                    if (xList.size() > 0) {
-                        mapRequestParam.setX(Integer.parseInt(xList.get(0)));
-                    }
-                    List<String> yList = paramsMap.get("y");
-                    if (yList.size() > 0) {
-                        mapRequestParam.setY(Integer.parseInt(yList.get(0)));
-                    }
-                    mapRequestParam.setDbType("788865972");
-                    mapRequestParam.setOk(true);
-                } catch (NumberFormatException e) {
-                    log.warn("请求Url:" + url + "不合法.异常:" + e.toString());
-                    mapRequestParam.setOk(false);
+            if (e == null) {
+                writeTile(ctx, tileKey, tile, ifNoneMatch, ifModifiedSince, isKeepAlive);
+            } else {
+                loadFailed(TileKey.toString(tileKey), e);
+                writeServiceUnavailable(ctx, isKeepAlive);
+            }
+            MapMetrics.getInstance().getRequestLatency().recordSince(requestStart);
+        }, ctx.executor());
+    }
+
+    // A saturated loader pool is expected under load, any other failure of the store or of the peer is logged.
+    // Both are answered 503 with Retry-After, only a load completed without error is answered as a tile or 204
+    private static void loadFailed(String what, Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (!(cause instanceof RejectedExecutionException) && !(cause instanceof TimeoutException)) {
+            log.warn("Load " + what + " failed: " + cause.toString());
+        }
+    }
+
+    // Cached tiles are answered right away, the misses of all layers are loaded by one loader task
+    private void writeBatch(final ChannelHandlerContext ctx, String uri, String body, final boolean isKeepAlive) {
+        final long[] tileKeys;
+        try {
+            tileKeys = TileBatch.parse(uri, body, BATCH_MAX_TILES);
+        } catch (IllegalArgumentException e) {
+            writeBadRequest(ctx, e.getMessage(), isKeepAlive);
+            return;
+        }
+        final Tile[] tiles = new Tile[tileKeys.length];
+        final int[] missPositions = new int[tileKeys.length];
+        int missCount = 0;
+        for (int i = 0; i < tileKeys.length; i++) {
+            if (!MapCache.getInstance().isKnownMissing(tileKeys[i])
+                    && (tiles[i] = MapCache.getInstance().getCachedTile(tileKeys[i])) == null) {
+                missPositions[missCount++] = i;
+            }
+        }
+        if (missCount == 0) {
+            writeBatchResponse(ctx, tileKeys, tiles, isKeepAlive);
+            return;
+        }
+
+        final long[] missKeys = new long[missCount];
+        for (int i = 0; i < missCount; i++) {
+            missKeys[i] = tileKeys[missPositions[i]];
+        }
+        final ScheduledFuture<?> deadline = ctx.executor().schedule(() -> writeServiceUnavailable(ctx, isKeepAlive),
+                TileLoader.getInstance().getDeadlineMillis(), TimeUnit.MILLISECONDS);
+        MapCache.getInstance().loadTilesAsync(missKeys).whenCompleteAsync((loaded, e) -> {
+            if (!deadline.cancel(false)) {
+                releaseTiles(tiles);
+            } else if (e != null) {
+                releaseTiles(tiles);
+                loadFailed("batch of " + missKeys.length + " tiles", e);
+                writeServiceUnavailable(ctx, isKeepAlive);
+            } else {
+                for (int i = 0; i < missKeys.length; i++) {
+                    tiles[missPositions[i]] = loaded[i];
                 }
+                writeBatchResponse(ctx, tileKeys, tiles, isKeepAlive);
+            }
+        }, ctx.executor());
+    }
+
+    private void writeBatchResponse(ChannelHandlerContext ctx, long[] tileKeys, Tile[] tiles, boolean isKeepAlive) {
+        FullHttpResponse response;
+        try {
+            response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                    TileBatch.encode(ctx.alloc(), tileKeys, tiles));
+        } finally {
+            releaseTiles(tiles);
+        }
+        response.headers().set(HttpHeaders.Names.CONTENT_TYPE, TileBatch.CONTENT_TYPE);
+        response.headers().set(HttpHeaders.Names.CONTENT_LENGTH, response.content().readableBytes());
+        writeResponse(ctx, response, isKeepAlive);
+    }
+
+    private static void releaseTiles(Tile[] tiles) {
+        for (Tile tile : tiles) {
+            if (tile != null) {
+                tile.content().release();
+            }
+        }
+    }
+
+    // Tiles are fetched on the loader pool and the image is encoded on the render pool,
+    // the event loop only writes the result
+    private void writeStaticMap(final ChannelHandlerContext ctx, String uri, final boolean isKeepAlive) {
+        final StaticMapRenderer.StaticMap staticMap;
+        try {
+            staticMap = StaticMapRenderer.getInstance().parse(uri);
+        } catch (IllegalArgumentException e) {
+            writeBadRequest(ctx, e.getMessage(), isKeepAlive);
+            return;
+        }
+        byte[] cachedImage = StaticMapRenderer.getInstance().getCachedImage(staticMap);
+        if (cachedImage != null) {
+            writeImage(ctx, staticMap, cachedImage, isKeepAlive);
+            return;
+        }
+        final ScheduledFuture<?> deadline = ctx.executor().schedule(() -> writeServiceUnavailable(ctx, isKeepAlive),
+                TileLoader.getInstance().getDeadlineMillis(), TimeUnit.MILLISECONDS);
+        StaticMapRenderer.getInstance().render(staticMap).whenCompleteAsync((image, e) -> {
+            if (!deadline.cancel(false)) {
+                return;
+            }
+            if (e != null) {
+                log.warn("Render static map " + uri + " failed: " + e.getMessage());
+                writeServiceUnavailable(ctx, isKeepAlive);
+            } else {
+                writeImage(ctx, staticMap, image, isKeepAlive);
+            }
+        }, ctx.executor());
+    }
+
+    private void writeImage(ChannelHandlerContext ctx, StaticMapRenderer.StaticMap staticMap, byte[] image,
+                            boolean isKeepAlive) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                Unpooled.wrappedBuffer(image));
+        response.headers().set(HttpHeaders.Names.CONTENT_TYPE, staticMap.getContentType());
+        response.headers().set(HttpHeaders.Names.CONTENT_LENGTH, image.length);
+        response.headers().set(HttpHeaders.Names.CACHE_CONTROL, TileCacheControl.of(staticMap.getCenterTileKey()));
+        writeResponse(ctx, response, isKeepAlive);
+    }
+
+    // Stream the export through a ChunkedWriteHandler added for this response only,
+    // the tile responses do not pay for its write queue
+    private void writeExport(final ChannelHandlerContext ctx, String uri, final boolean isKeepAlive) {
+        TileExporter.Export export;
+        try {
+            export = TileExporter.parse(uri);
+        } catch (IllegalArgumentException e) {
+            writeBadRequest(ctx, e.getMessage(), isKeepAlive);
+            return;
+        }
+        final ChunkedWriteHandler writer = new ChunkedWriteHandler();
+        ctx.pipeline().addBefore(ctx.name(), null, writer);
+        TileExportInput input = new TileExportInput(ctx, writer);
+        try {
+            TileExporter.getInstance().export(export, input);
+        } catch (RejectedExecutionException e) {
+            ctx.pipeline().remove(writer);
+            writeServiceUnavailable(ctx, isKeepAlive);
+            return;
+        }
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.headers().set(HttpHeaders.Names.CONTENT_TYPE, TileExporter.CONTENT_TYPE);
+        response.headers().set(HttpHeaderNames.CONTENT_DISPOSITION,
+                "attachment; filename=\"" + export.getFileName() + "\"");
+        response.headers().set(HttpHeaders.Names.TRANSFER_ENCODING, HttpHeaders.Values.CHUNKED);
+        if (isKeepAlive) {
+            response.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+        }
+        ctx.write(response);
+        ctx.writeAndFlush(new HttpChunkedInput(input)).addListener((ChannelFutureListener) future -> {
+            ctx.pipeline().remove(writer);
+            // A failed export can not change the status any more, closing tells the client it is truncated
+            if (!future.isSuccess() || !isKeepAlive) {
+                ctx.close();
             }
+        });
+    }
+
+    private void writeBadRequest(ChannelHandlerContext ctx, String message, boolean isKeepAlive) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.BAD_REQUEST,
+                Unpooled.copiedBuffer(message, CharsetUtil.UTF_8));
+        response.headers().set(HttpHeaders.Names.CONTENT_LENGTH, response.content().readableBytes());
+        writeResponse(ctx, response, isKeepAlive);
+    }
+
+    // Send the tile from its bundle file with sendfile, the bytes never go through the heap.
+    // HTTP/2 streams and TLS connections get the bytes read from the file instead.
+    private boolean writeBundleTile(ChannelHandlerContext ctx, long tileKey, long ifModifiedSince, boolean isKeepAlive)
+            throws IOException {
+        TileBundleStore tileBundleStore = MapDbOperation.getTileBundleStore(tileKey);
+        if (tileBundleStore == null) {
+            return false;
+        }
+        TileBundle tileBundle = tileBundleStore.acquireBundle(tileKey);
+        if (tileBundle == null) {
+            return false;
+        }
+        try {
+            return writeBundleTile(ctx, tileKey, tileBundle, ifModifiedSince, isKeepAlive);
+        } finally {
+            tileBundle.release();
         }
+    }
 
-        return mapRequestParam;
+    private boolean writeBundleTile(ChannelHandlerContext ctx, long tileKey, TileBundle tileBundle,
+                                    long ifModifiedSince, boolean isKeepAlive) throws IOException {
+        int x = TileKey.x(tileKey);
+        int y = TileKey.y(tileKey);
+        int length = tileBundle.lengthOf(x, y);
+        if (length <= 0) {
+            return false;
+        }
+        if (ifModifiedSince > 0 && tileBundle.getLastModified() / 1000 <= ifModifiedSince / 1000) {
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+            response.headers().set(HttpHeaders.Names.CACHE_CONTROL, TileCacheControl.of(tileKey));
+            response.headers().set(HttpHeaders.Names.LAST_MODIFIED, tileBundle.getLastModifiedHeader());
+            writeResponse(ctx, response, isKeepAlive);
+            return true;
+        }
+        if (!isFileRegionSupported(ctx)) {
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                    Unpooled.wrappedBuffer(tileBundle.readTile(x, y)));
+            response.headers().set(HttpHeaders.Names.CONTENT_TYPE, "image/jpeg");
+            response.headers().set(HttpHeaders.Names.CONTENT_LENGTH, length);
+            response.headers().set(HttpHeaders.Names.CACHE_CONTROL, TileCacheControl.of(tileKey));
+            response.headers().set(HttpHeaders.Names.LAST_MODIFIED, tileBundle.getLastModifiedHeader());
+            writeResponse(ctx, response, isKeepAlive);
+            return true;
+        }
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.headers().set(HttpHeaders.Names.CONTENT_TYPE, "image/jpeg");
+        response.headers().set(HttpHeaders.Names.CONTENT_LENGTH, length);
+        response.headers().set(HttpHeaders.Names.CACHE_CONTROL, TileCacheControl.of(tileKey));
+        response.headers().set(HttpHeaders.Names.LAST_MODIFIED, tileBundle.getLastModifiedHeader());
+        if (isKeepAlive) {
+            response.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+        }
+        long writeStart = System.nanoTime();
+        ctx.write(response);
+        ctx.write(tileBundle.newFileRegion(x, y));
+        ChannelFuture future = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        if (!isKeepAlive) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+        MapMetrics.getInstance().getWriteLatency().recordSince(writeStart);
+        MapMetrics.getInstance().responseWritten(HttpResponseStatus.OK.code(), length);
+        return true;
+    }
+
+    private void writeTile(ChannelHandlerContext ctx, long tileKey, Tile tile, String ifNoneMatch,
+                           long ifModifiedSince, boolean isKeepAlive) {
+        FullHttpResponse response;
+        if (tile == null) {
+            response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NO_CONTENT);
+        } else if (isNotModified(tile, ifNoneMatch, ifModifiedSince)) {
+            response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+            setCacheHeaders(response, tileKey, tile);
+        } else if (isKeepAlive && isEncodedResponseSupported(ctx) && writeEncodedTile(ctx, tileKey, tile)) {
+            return;
+        } else {
+            response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                    tile.content().retainedDuplicate());
+            response.headers().set(HttpHeaders.Names.CONTENT_TYPE, "image/jpeg");
+            response.headers().set(HttpHeaders.Names.CONTENT_LENGTH, response.content().readableBytes());
+            setCacheHeaders(response, tileKey, tile);
+        }
+        writeResponse(ctx, response, isKeepAlive);
+    }
+
+    private boolean isFileRegionSupported(ChannelHandlerContext ctx) {
+        if (fileRegionSupported == null) {
+            fileRegionSupported = !(ctx.channel() instanceof Http2StreamChannel)
+                    && ctx.pipeline().get(SslHandler.class) == null;
+        }
+        return fileRegionSupported;
+    }
+
+    private boolean isEncodedResponseSupported(ChannelHandlerContext ctx) {
+        if (encodedResponses == null) {
+            encodedResponses = TileResponseHeaders.getInstance().isEnabled()
+                    && ctx.pipeline().get(TileResponseEncoder.class) != null;
+        }
+        return encodedResponses;
+    }
+
+    // A hit on a keep-alive connection is a duplicate of the cached complete response
+    private boolean writeEncodedTile(ChannelHandlerContext ctx, long tileKey, Tile tile) {
+        long writeStart = System.nanoTime();
+        EncodedResponse response = TileResponseHeaders.getInstance().encode(tileKey, tile);
+        if (response == null) {
+            return false;
+        }
+        ctx.writeAndFlush(response);
+        MapMetrics.getInstance().getWriteLatency().recordSince(writeStart);
+        MapMetrics.getInstance().responseWritten(HttpResponseStatus.OK.code(), tile.length());
+        return true;
+    }
+
+    private void setCacheHeaders(HttpResponse response, long tileKey, Tile tile) {
+        response.headers().set(HttpHeaders.Names.ETAG, tile.etag());
+        response.headers().set(HttpHeaders.Names.CACHE_CONTROL, TileCacheControl.of(tileKey));
+        if (tile.lastModifiedHeader() != null) {
+            response.headers().set(HttpHeaders.Names.LAST_MODIFIED, tile.lastModifiedHeader());
+        }
+    }
+
+    // If-None-Match takes precedence over If-Modified-Since
+    private boolean isNotModified(Tile tile, String ifNoneMatch, long ifModifiedSince) {
+        if (ifNoneMatch != null) {
+            return ifNoneMatch.contains(tile.etag()) || ifNoneMatch.trim().equals("*");
+        }
+        return ifModifiedSince > 0 && tile.lastModified() > 0 && tile.lastModified() / 1000 <= ifModifiedSince / 1000;
+    }
+
+    private long getIfModifiedSince(FullHttpRequest request) {
+        String ifModifiedSince = request.headers().get(HttpHeaders.Names.IF_MODIFIED_SINCE);
+        if (ifModifiedSince == null) {
+            return 0;
+        }
+        Date date = DateFormatter.parseHttpDate(ifModifiedSince);
+        return date != null ? date.getTime() : 0;
+    }
+
+    private void writeServiceUnavailable(ChannelHandlerContext ctx, boolean isKeepAlive) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                HttpResponseStatus.SERVICE_UNAVAILABLE);
+        response.headers().set(HttpHeaders.Names.RETRY_AFTER, RETRY_AFTER);
+        response.headers().set(HttpHeaders.Names.CONTENT_LENGTH, 0);
+        writeResponse(ctx, response, isKeepAlive);
+    }
+
+    private void writeInternalServerError(ChannelHandlerContext ctx) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                HttpResponseStatus.INTERNAL_SERVER_ERROR);
+        response.headers().set(HttpHeaders.Names.CONTENT_LENGTH, 0);
+        writeResponse(ctx, response, false);
+    }
+
+    private void writeResponse(ChannelHandlerContext ctx, FullHttpResponse response, boolean isKeepAlive) {
+        // Read before the write, the encoder releases the content
+        int status = response.status().code();
+        int bytes = response.content().readableBytes();
+        long writeStart = System.nanoTime();
+        if (!isKeepAlive) {
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        } else {
+            response.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+            ctx.writeAndFlush(response);
+        }
+        MapMetrics.getInstance().getWriteLatency().recordSince(writeStart);
+        MapMetrics.getInstance().responseWritten(status, bytes);
     }
 
     @Override
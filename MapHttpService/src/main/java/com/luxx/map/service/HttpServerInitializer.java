@@ -0,0 +1,135 @@
+package com.luxx.map.service;
+
+import com.luxx.map.metrics.MapMetrics;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.HttpMessage;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http2.CleartextHttp2ServerUpgradeHandler;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2ServerUpgradeCodec;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Map服务，连接的Pipeline
+ * HTTP/1.1连接按请求顺序返回流水线请求的响应；开启HTTP/2后，明文连接支持h2c(升级或直接HTTP/2)，
+ * TLS连接通过ALPN协商h2。HTTP/2的每个流是一个子Channel，瓦片请求在同一连接上并发返回
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public class HttpServerInitializer extends ChannelInitializer<SocketChannel> {
+    private static final int MAX_CONTENT_LENGTH = 65536;
+
+    private final SslContext sslContext;
+    private final boolean http2;
+    private final int maxConcurrentStreams;
+
+    /**
+     * @param sslContext TLS of the connections, null for cleartext
+     */
+    public HttpServerInitializer(SslContext sslContext, boolean http2, int maxConcurrentStreams) {
+        this.sslContext = sslContext;
+        this.http2 = http2;
+        this.maxConcurrentStreams = maxConcurrentStreams;
+    }
+
+    @Override
+    public void initChannel(SocketChannel ch) throws Exception {
+        MapMetrics.getInstance().connectionOpened();
+        ch.closeFuture().addListener(future -> MapMetrics.getInstance().connectionClosed());
+
+        ChannelPipeline pipeline = ch.pipeline();
+        if (sslContext != null) {
+            pipeline.addLast(sslContext.newHandler(ch.alloc()));
+            pipeline.addLast(new ApplicationProtocolNegotiationHandler(ApplicationProtocolNames.HTTP_1_1) {
+                @Override
+                protected void configurePipeline(ChannelHandlerContext ctx, String protocol) {
+                    if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+                        addHttp2(ctx.pipeline());
+                    } else {
+                        ctx.pipeline().addLast(new TileResponseEncoder());
+                        ctx.pipeline().addLast(new HttpRequestDecoder());
+                        addHttp1(ctx.pipeline());
+                    }
+                }
+            });
+        } else if (http2) {
+            // Prior knowledge connections start with the HTTP/2 preface, the others may ask to upgrade
+            HttpServerCodec httpServerCodec = new HttpServerCodec();
+            HttpServerUpgradeHandler upgradeHandler = new HttpServerUpgradeHandler(httpServerCodec, protocol ->
+                    AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol)
+                            ? new Http2ServerUpgradeCodec(newHttp2FrameCodec(), newHttp2MultiplexHandler())
+                            : null, MAX_CONTENT_LENGTH);
+            pipeline.addLast(new CleartextHttp2ServerUpgradeHandler(httpServerCodec, upgradeHandler,
+                    new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                            addHttp2(ch.pipeline());
+                        }
+                    }));
+            // Added with the first HTTP/1.1 request, an upgraded or prior knowledge connection never gets them
+            pipeline.addLast(new SimpleChannelInboundHandler<HttpMessage>() {
+                @Override
+                protected void channelRead0(ChannelHandlerContext ctx, HttpMessage msg) {
+                    addHttp1(ctx.pipeline());
+                    ctx.pipeline().remove(this);
+                    ctx.fireChannelRead(ReferenceCountUtil.retain(msg));
+                }
+            });
+        } else {
+            pipeline.addLast(new TileResponseEncoder());
+            pipeline.addLast(new HttpRequestDecoder());
+            addHttp1(pipeline);
+        }
+    }
+
+    private static void addHttp1(ChannelPipeline pipeline) {
+        //aggregates an HttpMessage and its following HttpContents into a single FullHttpRequest or FullHttpResponse
+        //with no following HttpContents.
+        pipeline.addLast(new HttpObjectAggregator(MAX_CONTENT_LENGTH));
+        pipeline.addLast(new HttpPipeliningHandler());
+        //runs on the IO thread, cache hits are answered inline and misses go to the tile loader pool
+        pipeline.addLast(new HttpServerInboundHandler());
+    }
+
+    private void addHttp2(ChannelPipeline pipeline) {
+        pipeline.addLast(newHttp2FrameCodec());
+        pipeline.addLast(newHttp2MultiplexHandler());
+    }
+
+    private Http2FrameCodec newHttp2FrameCodec() {
+        return Http2FrameCodecBuilder.forServer()
+                .initialSettings(Http2Settings.defaultSettings().maxConcurrentStreams(maxConcurrentStreams))
+                .build();
+    }
+
+    // Every stream gets its own child channel running the HTTP/1.1 handler on the connection's event loop
+    private static Http2MultiplexHandler newHttp2MultiplexHandler() {
+        return new Http2MultiplexHandler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                ch.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(true));
+                ch.pipeline().addLast(new HttpObjectAggregator(MAX_CONTENT_LENGTH));
+                ch.pipeline().addLast(new HttpServerInboundHandler());
+            }
+        });
+    }
+}
@@ -0,0 +1,262 @@
+package com.luxx.map.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.luxx.map.store.MysqlTileStore;
+import com.luxx.map.store.SqliteTileStore;
+import com.luxx.map.store.TileBundleStore;
+import com.luxx.map.store.TileStore;
+import com.luxx.map.util.PropertiesUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Map服务，图层注册表
+ * 每个图层可以配置自己的存储(SQLite文件、MySQL表、瓦片包目录)和内存缓存分区，未配置的图层使用database.*的存储。
+ * 配置文件修改后定期重新加载，新增、修改、删除图层不需要重启服务
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public class LayerRegistry {
+    private static Logger log = LoggerFactory.getLogger(LayerRegistry.class);
+
+    // Indexed by layer index, replaced as a whole so the request path reads them without locking
+    private volatile TileStore[] stores = new TileStore[TileKey.MAX_LAYERS];
+    private volatile MapNames mapNames = new MapNames(new String[0], new int[0]);
+    private volatile int defaultLayerIndex;
+    private volatile String defaultLayer;
+    // Only touched under the lock of apply
+    private final String[] storeConfigs = new String[TileKey.MAX_LAYERS];
+    private ScheduledExecutorService reloader = null;
+
+    private static class LayerRegistryHolder {
+        private static final LayerRegistry instance = new LayerRegistry();
+    }
+
+    public static LayerRegistry getInstance() {
+        return LayerRegistryHolder.instance;
+    }
+
+    private LayerRegistry() {
+        defaultLayer = PropertiesUtil.getInstance().GetDefaultLayer();
+        defaultLayerIndex = TileKey.registerLayer(defaultLayer);
+    }
+
+    /**
+     * Open the stores of the configured layers and watch the properties file for changes
+     */
+    public synchronized void start() {
+        if (reloader != null) {
+            return;
+        }
+        // The disk cache only recovers tiles of registered layers, and apply builds MapCache
+        discoverLayers();
+        for (String name : PropertiesUtil.getInstance().GetLayers()) {
+            TileKey.registerLayer(name);
+        }
+        apply();
+        int interval = PropertiesUtil.getInstance().GetLayerReloadInterval();
+        reloader = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("layerRegistry", true));
+        if (interval > 0) {
+            reloader.scheduleWithFixedDelay(this::reload, interval, interval, TimeUnit.SECONDS);
+        }
+        int discoverInterval = PropertiesUtil.getInstance().GetLayerDiscoverInterval();
+        if (discoverInterval > 0) {
+            reloader.scheduleWithFixedDelay(this::discoverLayers, discoverInterval, discoverInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Register the layers the database.* store and bundle.path have.
+     * Tile requests only resolve registered layers, other layer names are rejected without registering them.
+     */
+    public void discoverLayers() {
+        try {
+            for (String layer : MapDbOperation.listLayers()) {
+                if (TileKey.registerLayer(layer) < 0) {
+                    log.error("Too many layers, layer " + layer + " and the ones after it are ignored");
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            log.error("List layers of the stores failed: " + e.getMessage());
+        }
+    }
+
+    private void reload() {
+        try {
+            if (PropertiesUtil.getInstance().reloadIfModified()) {
+                apply();
+            }
+        } catch (Exception e) {
+            log.error("Reload layers failed: " + e.getMessage());
+        }
+    }
+
+    private synchronized void apply() {
+        PropertiesUtil properties = PropertiesUtil.getInstance();
+        String layer = properties.GetDefaultLayer();
+        int layerIndex = TileKey.registerLayer(layer);
+        if (layerIndex >= 0) {
+            defaultLayer = layer;
+            defaultLayerIndex = layerIndex;
+        }
+
+        TileStore[] updated = stores.clone();
+        List<TileStore> closing = new ArrayList<>();
+        List<Integer> changed = new ArrayList<>();
+        boolean[] listed = new boolean[TileKey.MAX_LAYERS];
+        List<String> names = new ArrayList<>();
+        List<Integer> nameLayers = new ArrayList<>();
+        for (String name : properties.GetLayers()) {
+            layerIndex = TileKey.registerLayer(name);
+            if (layerIndex < 0) {
+                log.error("Too many layers, layer " + name + " is ignored");
+                continue;
+            }
+            listed[layerIndex] = true;
+            String storeConfig = storeConfig(properties, name);
+            if (!storeConfig.equals(storeConfigs[layerIndex])) {
+                try {
+                    TileStore store = openStore(properties, name);
+                    if (updated[layerIndex] != null) {
+                        closing.add(updated[layerIndex]);
+                        changed.add(layerIndex);
+                    } else if (store != null) {
+                        changed.add(layerIndex);
+                    }
+                    updated[layerIndex] = store;
+                    storeConfigs[layerIndex] = storeConfig;
+                    log.info("Layer " + name + " is served from " + (store != null ? storeConfig : "the default store"));
+                } catch (Exception e) {
+                    log.error("Open store of layer " + name + " failed: " + e.getMessage());
+                }
+            }
+            MapCache.getInstance().setPartition(layerIndex, properties.GetLayerCacheMaxBytes(name));
+            String mapName = properties.GetLayerMapName(name);
+            if (!mapName.isEmpty()) {
+                names.add(mapName);
+                nameLayers.add(layerIndex);
+            }
+        }
+        for (int i = 0; i < storeConfigs.length; i++) {
+            if (storeConfigs[i] != null && !listed[i]) {
+                if (updated[i] != null) {
+                    closing.add(updated[i]);
+                    updated[i] = null;
+                    changed.add(i);
+                }
+                storeConfigs[i] = null;
+                MapCache.getInstance().setPartition(i, 0);
+                log.info("Layer " + TileKey.layerName(i) + " is removed, it is served from the default store");
+            }
+        }
+
+        int[] layers = new int[nameLayers.size()];
+        for (int i = 0; i < layers.length; i++) {
+            layers[i] = nameLayers.get(i);
+        }
+        mapNames = new MapNames(names.toArray(new String[0]), layers);
+        stores = updated;
+        // max-age may have changed with the configuration
+        TileCacheControl.clear();
+        TileResponseHeaders.getInstance().clear();
+        // Nothing is cached or covered yet when the layers are first applied
+        if (!changed.isEmpty() && reloader != null) {
+            MapCache.getInstance().layerStoresChanged(changed);
+        }
+        // The next requests use the new stores, SQLite lets the running ones finish before closing
+        for (TileStore store : closing) {
+            store.close();
+        }
+    }
+
+    private static String storeConfig(PropertiesUtil properties, String layer) {
+        String type = properties.GetLayerStoreType(layer);
+        if (type.equals("mysql")) {
+            return "mysql " + properties.GetLayerMysqlUrl(layer) + " " + properties.GetLayerMysqlUser(layer)
+                    + " " + properties.GetLayerMysqlPassword(layer).hashCode() + " " + properties.GetLayerMysqlTable(layer);
+        }
+        return type.isEmpty() ? "" : type + " " + properties.GetLayerPath(layer);
+    }
+
+    private static TileStore openStore(PropertiesUtil properties, String layer) throws ClassNotFoundException {
+        String type = properties.GetLayerStoreType(layer);
+        switch (type) {
+            case "":
+                return null;
+            case "sqlite":
+                Class.forName("org.sqlite.JDBC");
+                SqliteTileStore store = new SqliteTileStore(properties.GetLayerPath(layer), properties.GetSqliteMmapSize(),
+                        properties.GetSqlitePoolSize());
+                MapDbOperation.watch(store);
+                return store;
+            case "mysql":
+                return new MysqlTileStore(properties.GetLayerMysqlUrl(layer), properties.GetLayerMysqlUser(layer),
+                        properties.GetLayerMysqlPassword(layer), properties.GetLayerMysqlTable(layer));
+            case "bundle":
+                return new TileBundleStore(properties.GetLayerPath(layer));
+            default:
+                throw new IllegalArgumentException("Unknown store type " + type);
+        }
+    }
+
+    /**
+     * @return the layer's own store, null if it uses the default store
+     */
+    public TileStore getStore(int layerIndex) {
+        return stores[layerIndex];
+    }
+
+    public int getDefaultLayerIndex() {
+        return defaultLayerIndex;
+    }
+
+    public String getDefaultLayer() {
+        return defaultLayer;
+    }
+
+    /**
+     * Index of the layer whose map name is s[start, end)
+     *
+     * @return -1 if no layer has that map name
+     */
+    public int getLayerIndexOfMap(String s, int start, int end) {
+        MapNames current = mapNames;
+        int length = end - start;
+        for (int i = 0; i < current.names.length; i++) {
+            if (current.names[i].length() == length && s.regionMatches(start, current.names[i], 0, length)) {
+                return current.layers[i];
+            }
+        }
+        return -1;
+    }
+
+    public void destroy() {
+        if (reloader != null) {
+            reloader.shutdownNow();
+        }
+        for (TileStore store : stores) {
+            if (store != null) {
+                store.close();
+            }
+        }
+    }
+
+    private static class MapNames {
+        final String[] names;
+        final int[] layers;
+
+        MapNames(String[] names, int[] layers) {
+            this.names = names;
+            this.layers = layers;
+        }
+    }
+}
@@ -1,15 +1,42 @@
 package com.luxx.map.service;
 
 import java.sql.SQLException;
-import java.util.concurrent.Callable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import com.luxx.map.cache.DiskTileCache;
+import com.luxx.map.cache.MissingTileCache;
+import com.luxx.map.cache.OffHeapTileCache;
+import com.luxx.map.cache.TileCoverage;
+import com.luxx.map.cluster.TileCluster;
+import com.luxx.map.metrics.MapMetrics;
+import com.luxx.map.store.TileStore;
+import com.luxx.map.util.PropertiesUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Map服务，地图缓存
+ * 瓦片缓存在堆外内存中，按字节数限制容量；可选的本地磁盘二级缓存位于内存缓存与数据库之间
+ * 同一瓦片的并发未命中请求合并为一次数据库加载，所有等待者共享同一个结果
+ * 不存在的瓦片由覆盖范围布隆过滤器和负缓存直接拒绝，不再访问数据库
+ * 配置了缓存分区的图层使用自己的内存缓存和容量，热点大的图层不会把其它图层的热点淘汰出去
+ * 对等节点模式下其他节点拥有的瓦片只进入近缓存，未命中时从拥有它的节点获取
  *
  * @author luxiaoxun
  * @version 1.0
@@ -18,7 +45,24 @@ import org.slf4j.LoggerFactory;
 public class MapCache {
     private static Logger log = LoggerFactory.getLogger(MapCache.class);
 
-    private Cache<MapRequestParam, byte[]> mapCacheLoader = null;
+    private OffHeapTileCache tileCache = null;
+    // Indexed by layer index, null for the layers sharing tileCache. Replaced as a whole on change
+    private volatile OffHeapTileCache[] partitions = new OffHeapTileCache[TileKey.MAX_LAYERS];
+    private DiskTileCache diskTileCache = null;
+    // Tiles owned by the other nodes in peer mode
+    private OffHeapTileCache nearCache = null;
+    private MissingTileCache negativeCache = null;
+    private TileCoverage tileCoverage = null;
+    private ScheduledExecutorService coverageRefresher = null;
+    private final ConcurrentMap<Long, CompletableFuture<Tile>> inFlightLoads = new ConcurrentHashMap<>();
+    // Indexed by layer index, bumped when the store of the layer switched to a new file.
+    // A load that started in an earlier epoch may have read the old file and is not cached
+    private final AtomicIntegerArray layerEpochs = new AtomicIntegerArray(TileKey.MAX_LAYERS);
+    private final LongAdder issuedLoads = new LongAdder();
+    private final LongAdder coalescedLoads = new LongAdder();
+    private final LongAdder knownMissing = new LongAdder();
+
+    private static final int REVALIDATE_BATCH_SIZE = 500;
 
     private static class MapCacheHolder {
         private static final MapCache instance = new MapCache();
@@ -29,36 +73,494 @@ public class MapCache {
     }
 
     private MapCache() {
-        // mapCacheLoader =
-        // CacheBuilder.newBuilder().maximumSize(1000).expireAfterAccess(5,
-        // TimeUnit.MINUTES).build();
-        mapCacheLoader = CacheBuilder.newBuilder().maximumSize(5000).build();
+        long maxBytes = PropertiesUtil.getInstance().GetCacheMaxBytes();
+        int segments = PropertiesUtil.getInstance().GetCacheSegments();
+        tileCache = new OffHeapTileCache(maxBytes, segments, PooledByteBufAllocator.DEFAULT);
+
+        String diskPath = PropertiesUtil.getInstance().GetDiskCachePath();
+        if (diskPath != null && !diskPath.isEmpty()) {
+            try {
+                diskTileCache = new DiskTileCache(diskPath, PropertiesUtil.getInstance().GetDiskCacheMaxBytes(),
+                        PropertiesUtil.getInstance().GetDiskCacheSegmentBytes());
+            } catch (Exception e) {
+                log.error("Open disk tile cache " + diskPath + " failed: " + e.getMessage());
+            }
+        }
+
+        if (TileCluster.getInstance().isEnabled()) {
+            nearCache = new OffHeapTileCache(PropertiesUtil.getInstance().GetClusterNearCacheMaxBytes(), segments,
+                    PooledByteBufAllocator.DEFAULT);
+        }
+
+        negativeCache = new MissingTileCache(PropertiesUtil.getInstance().GetNegativeCacheMaxSize(),
+                PropertiesUtil.getInstance().GetNegativeCacheExpireSeconds());
+
+        if (PropertiesUtil.getInstance().GetCoverageEnabled()) {
+            tileCoverage = new TileCoverage(PropertiesUtil.getInstance().GetCoverageFpp(),
+                    PropertiesUtil.getInstance().GetCoverageRebuildInterval());
+            int interval = PropertiesUtil.getInstance().GetCoverageRefreshInterval();
+            coverageRefresher = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("tileCoverage", true));
+            // Built in the background, every tile might exist until the first build is done
+            coverageRefresher.scheduleWithFixedDelay(this::refreshCoverage, 0, Math.max(1, interval), TimeUnit.SECONDS);
+        }
     }
 
-    public byte[] getMapCacheTile(final MapRequestParam mapRequestParam) {
-        byte[] tileBytes = null;
-        try {
-            tileBytes = mapCacheLoader.get(mapRequestParam, new Callable<byte[]>() {
-                public byte[] call() throws SQLException {
-                    return getMapTile(mapRequestParam);
+    private OffHeapTileCache cacheOf(long tileKey) {
+        if (nearCache != null && TileCluster.getInstance().isForeign(tileKey)) {
+            return nearCache;
+        }
+        OffHeapTileCache partition = partitions[TileKey.layerIndex(tileKey)];
+        return partition != null ? partition : tileCache;
+    }
+
+    /**
+     * Give the layer its own memory cache of maxBytes, or put it back into the shared cache if maxBytes is 0.
+     * The tiles cached under the previous budget are dropped.
+     */
+    synchronized void setPartition(int layerIndex, long maxBytes) {
+        OffHeapTileCache current = partitions[layerIndex];
+        if (current == null ? maxBytes <= 0 : current.maxBytes() == maxBytes) {
+            return;
+        }
+        OffHeapTileCache[] updated = partitions.clone();
+        updated[layerIndex] = maxBytes > 0 ? new OffHeapTileCache(maxBytes,
+                PropertiesUtil.getInstance().GetCacheSegments(), PooledByteBufAllocator.DEFAULT) : null;
+        partitions = updated;
+        if (current != null) {
+            current.invalidateAll();
+        }
+        log.info("Layer " + TileKey.layerName(layerIndex) + (maxBytes > 0 ? " has a cache partition of "
+                + maxBytes + " bytes" : " shares the tile cache"));
+    }
+
+    /**
+     * The layers are served from other stores now, forget what is cached or known missing about them
+     */
+    void layerStoresChanged(List<Integer> layerIndexes) {
+        boolean sharedCacheChanged = false;
+        for (int layerIndex : layerIndexes) {
+            OffHeapTileCache partition = partitions[layerIndex];
+            if (partition != null) {
+                partition.invalidateAll();
+            } else {
+                sharedCacheChanged = true;
+            }
+        }
+        // The shared cache can not drop a single layer
+        if (sharedCacheChanged) {
+            tileCache.invalidateAll();
+        }
+        if (nearCache != null) {
+            nearCache.invalidateAll();
+        }
+        if (diskTileCache != null) {
+            diskTileCache.invalidateLayers(layerIndexes);
+        }
+        negativeCache.invalidateAll();
+        if (tileCoverage != null) {
+            tileCoverage.invalidate();
+            coverageRefresher.execute(this::refreshCoverage);
+        }
+    }
+
+    /**
+     * The store switched to a replaced database file. Every cached tile of the layers it serves is
+     * looked up in the new file, only the tiles whose content hash changed or that are gone are dropped.
+     * Runs on the store's watcher thread.
+     */
+    public void storeReloaded(final TileStore store) {
+        long start = System.currentTimeMillis();
+        // The new file may have layers the old one did not have
+        LayerRegistry.getInstance().discoverLayers();
+        final Set<Integer> layerIndexes = new HashSet<>();
+        for (int layerIndex = 0; layerIndex < TileKey.MAX_LAYERS; layerIndex++) {
+            if (MapDbOperation.storeOf(layerIndex) == store) {
+                layerIndexes.add(layerIndex);
+                // Before the caches are cleared, loads still running against the old file drop their results
+                layerEpochs.incrementAndGet(layerIndex);
+            }
+        }
+        negativeCache.invalidateAll();
+        if (tileCoverage != null) {
+            tileCoverage.invalidate();
+            coverageRefresher.execute(this::refreshCoverage);
+        }
+        // The disk cache has no ETags in memory, the layers start over there
+        if (diskTileCache != null) {
+            diskTileCache.invalidateLayers(layerIndexes);
+        }
+        int checked = 0;
+        int changed = 0;
+        for (OffHeapTileCache cache : caches()) {
+            Map<Long, String> etags = cache.etags(key -> layerIndexes.contains(TileKey.layerIndex(key)));
+            checked += etags.size();
+            try {
+                changed += revalidate(cache, store, etags);
+            } catch (SQLException e) {
+                log.error("Check cached tiles against the new database failed, drop them: " + e.getMessage());
+                for (Map.Entry<Long, String> entry : etags.entrySet()) {
+                    cache.invalidate(entry.getKey(), entry.getValue());
                 }
-            });
+                changed += etags.size();
+            }
+        }
+        log.info("Checked " + checked + " cached tiles against the new database, dropped " + changed
+                + " changed ones in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private static int revalidate(OffHeapTileCache cache, TileStore store, Map<Long, String> etags)
+            throws SQLException {
+        Map<Integer, List<Long>> keysByLayer = new HashMap<>();
+        for (long key : etags.keySet()) {
+            keysByLayer.computeIfAbsent(TileKey.layerIndex(key), k -> new ArrayList<>()).add(key);
+        }
+        int changed = 0;
+        for (List<Long> keys : keysByLayer.values()) {
+            String layer = TileKey.layer(keys.get(0));
+            for (int start = 0; start < keys.size(); start += REVALIDATE_BATCH_SIZE) {
+                int end = Math.min(keys.size(), start + REVALIDATE_BATCH_SIZE);
+                int[] zoom = new int[end - start];
+                int[] x = new int[zoom.length];
+                int[] y = new int[zoom.length];
+                for (int i = 0; i < zoom.length; i++) {
+                    long key = keys.get(start + i);
+                    zoom[i] = TileKey.zoom(key);
+                    x[i] = TileKey.x(key);
+                    y[i] = TileKey.y(key);
+                }
+                Tile[] tiles = store.getTiles(layer, zoom, x, y);
+                for (int i = 0; i < tiles.length; i++) {
+                    long key = keys.get(start + i);
+                    String etag = etags.get(key);
+                    if (tiles[i] == null || !tiles[i].etag().equals(etag)) {
+                        cache.invalidate(key, etag);
+                        changed++;
+                    }
+                }
+            }
+        }
+        return changed;
+    }
+
+    private List<OffHeapTileCache> caches() {
+        List<OffHeapTileCache> caches = new ArrayList<>();
+        caches.add(tileCache);
+        if (nearCache != null) {
+            caches.add(nearCache);
+        }
+        for (OffHeapTileCache partition : partitions) {
+            if (partition != null) {
+                caches.add(partition);
+            }
+        }
+        return caches;
+    }
+
+    /**
+     * @return the layer's own memory cache, null if it shares the tile cache
+     */
+    public OffHeapTileCache getPartition(int layerIndex) {
+        return partitions[layerIndex];
+    }
+
+    private void refreshCoverage() {
+        try {
+            // Tiles added to the database are no longer missing
+            if (tileCoverage.refresh(negativeCache::invalidate)) {
+                negativeCache.invalidateAll();
+            }
         } catch (Exception e) {
-            log.error(e.getMessage());
+            log.error("Refresh tile coverage failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Whether the tile is known not to exist, either it is not in the coverage of its layer
+     * or a recent load found nothing. Such requests are answered without touching the database.
+     */
+    public boolean isKnownMissing(long tileKey) {
+        boolean missing = (tileCoverage != null && !tileCoverage.mightContain(tileKey))
+                || negativeCache.contains(tileKey);
+        if (missing) {
+            knownMissing.increment();
+        }
+        return missing;
+    }
+
+    /**
+     * Get the cached tile, or null if it is not cached.
+     * Its content is retained, the caller must release it when the response is written.
+     */
+    public Tile getCachedTile(long tileKey) {
+        return cacheOf(tileKey).get(tileKey);
+    }
+
+    /**
+     * Load an uncached tile on the tile loader pool and cache it.
+     * Only the first request of an uncached tile loads it, concurrent requests
+     * of the same tile wait on the same future without blocking.
+     * The future is completed with null if the tile does not exist, or exceptionally
+     * with RejectedExecutionException or TimeoutException if the loader pool is saturated
+     * and with the error of the store if the load failed.
+     */
+    public CompletableFuture<Tile> loadTileAsync(final long tileKey) {
+        return loadTileAsync(tileKey, true);
+    }
+
+    /**
+     * Load an uncached tile like loadTileAsync(tileKey)
+     *
+     * @param mayForward whether a tile owned by another node is loaded from that node, false for
+     *                   requests forwarded by a peer so they are never forwarded again
+     */
+    public CompletableFuture<Tile> loadTileAsync(final long tileKey, boolean mayForward) {
+        final CompletableFuture<Tile> future = new CompletableFuture<>();
+        CompletableFuture<Tile> inFlight = inFlightLoads.putIfAbsent(tileKey, future);
+        if (inFlight != null) {
+            coalescedLoads.increment();
+            return inFlight;
+        }
+
+        CompletableFuture<Tile> load = mayForward && TileCluster.getInstance().isForeign(tileKey)
+                ? forwardTile(tileKey) : TileLoader.getInstance().submit(() -> loadTile(tileKey));
+        load.whenComplete((tile, e) -> {
+            if (e != null) {
+                future.completeExceptionally(e);
+            } else {
+                future.complete(tile);
+            }
+            inFlightLoads.remove(tileKey, future);
+        });
+        return future;
+    }
+
+    /**
+     * Load several distinct uncached tiles on the tile loader pool and cache them. The tiles
+     * not found in the disk cache are looked up with one multi-row query per layer.
+     * The future is completed with the tiles in the order of the keys, null where a tile
+     * does not exist, or exceptionally like loadTileAsync.
+     */
+    public CompletableFuture<Tile[]> loadTilesAsync(final long[] tileKeys) {
+        return TileLoader.getInstance().submit(() -> loadTiles(tileKeys));
+    }
+
+    // Ask the owner, the local store is only used if it does not answer
+    private CompletableFuture<Tile> forwardTile(final long tileKey) {
+        final CompletableFuture<Tile> future = new CompletableFuture<>();
+        TileCluster.getInstance().fetch(tileKey).whenComplete((tile, e) -> {
+            if (e != null) {
+                TileLoader.getInstance().submit(() -> loadTile(tileKey)).whenComplete((loaded, loadError) -> {
+                    if (loadError != null) {
+                        future.completeExceptionally(loadError);
+                    } else {
+                        future.complete(loaded);
+                    }
+                });
+                return;
+            }
+            if (tile != null) {
+                nearCache.put(tileKey, tile);
+            } else {
+                negativeCache.put(tileKey);
+            }
+            future.complete(tile);
+        });
+        return future;
+    }
+
+    private Tile[] loadTiles(long[] tileKeys) throws SQLException {
+        Tile[] tiles = new Tile[tileKeys.length];
+        int[] epochs = new int[tileKeys.length];
+        Map<Integer, List<Integer>> missesByLayer = new HashMap<>();
+        for (int i = 0; i < tileKeys.length; i++) {
+            epochs[i] = layerEpochs.get(TileKey.layerIndex(tileKeys[i]));
+            Tile cached = cacheOf(tileKeys[i]).get(tileKeys[i]);
+            if (cached != null) {
+                tiles[i] = cached.toHeap();
+                cached.content().release();
+            } else if ((tiles[i] = diskTileCache != null ? diskTileCache.get(tileKeys[i]) : null) != null) {
+                cacheLoaded(cacheOf(tileKeys[i]), tileKeys[i], tiles[i], false, epochs[i]);
+            } else {
+                missesByLayer.computeIfAbsent(TileKey.layerIndex(tileKeys[i]), k -> new ArrayList<>()).add(i);
+            }
+        }
+        for (List<Integer> positions : missesByLayer.values()) {
+            long[] keys = new long[positions.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = tileKeys[positions.get(i)];
+            }
+            issuedLoads.increment();
+            long queryStart = System.nanoTime();
+            Tile[] loaded = MapDbOperation.getTiles(TileKey.layer(keys[0]), keys);
+            MapMetrics.getInstance().getDbLatency().recordSince(queryStart);
+            for (int i = 0; i < keys.length; i++) {
+                cacheLoaded(cacheOf(keys[i]), keys[i], loaded[i], true, epochs[positions.get(i)]);
+                tiles[positions.get(i)] = loaded[i];
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Load the tile into the cache on the calling thread, used to warm up the cache
+     *
+     * @return true if the tile is cached
+     */
+    public boolean warmTile(long tileKey) throws SQLException {
+        if (cacheOf(tileKey).containsKey(tileKey)) {
+            return true;
+        }
+        if (tileCoverage != null && !tileCoverage.mightContain(tileKey)) {
+            return false;
+        }
+        return loadTile(tileKey) != null;
+    }
+
+    /**
+     * Whether a request of the tile would be answered without loading it, it is cached,
+     * known to be missing or already being loaded. Does not count as a request of the tile.
+     */
+    public boolean isCachedOrLoading(long tileKey) {
+        return cacheOf(tileKey).containsKey(tileKey) || inFlightLoads.containsKey(tileKey)
+                || (tileCoverage != null && !tileCoverage.mightContain(tileKey))
+                || negativeCache.contains(tileKey);
+    }
+
+    /**
+     * Keys of the most frequently requested cached tiles, hottest first
+     */
+    public long[] getHotKeys(int limit) {
+        OffHeapTileCache[] current = partitions;
+        long[] hotKeys = tileCache.hotKeys(limit);
+        for (OffHeapTileCache partition : current) {
+            if (partition != null) {
+                hotKeys = merge(hotKeys, partition.hotKeys(limit), limit);
+            }
+        }
+        return hotKeys;
+    }
+
+    // Interleave two hottest first lists, the frequencies of different caches are not comparable
+    private static long[] merge(long[] first, long[] second, int limit) {
+        long[] merged = new long[Math.min(limit, first.length + second.length)];
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < merged.length; k++) {
+            merged[k] = (j >= second.length || (i < first.length && i <= j)) ? first[i++] : second[j++];
+        }
+        return merged;
+    }
+
+    private Tile loadTile(long tileKey) throws SQLException {
+        int epoch = layerEpochs.get(TileKey.layerIndex(tileKey));
+        // A load may have finished between cache lookup and registering the future
+        OffHeapTileCache tileCache = cacheOf(tileKey);
+        Tile cached = tileCache.get(tileKey);
+        if (cached != null) {
+            Tile tile = cached.toHeap();
+            cached.content().release();
+            return tile;
+        }
+        Tile tile = diskTileCache != null ? diskTileCache.get(tileKey) : null;
+        boolean fromStore = tile == null;
+        if (fromStore) {
+            issuedLoads.increment();
+            long queryStart = System.nanoTime();
+            tile = MapDbOperation.getTile(tileKey);
+            MapMetrics.getInstance().getDbLatency().recordSince(queryStart);
         }
-        return tileBytes;
+        cacheLoaded(tileCache, tileKey, tile, fromStore, epoch);
+        return tile;
     }
 
-    private byte[] getMapTile(final MapRequestParam mapRequestParam) throws SQLException {
-        byte[] allBytesInBlob = null;
-        if (mapRequestParam.isOk()) {
-            String dbId = mapRequestParam.getDbType();
-            int zoom = mapRequestParam.getZoom();
-            int x = mapRequestParam.getX();
-            int y = mapRequestParam.getY();
-            allBytesInBlob = MapDbOperation.getTile(x, y, zoom, dbId);
+    // A loaded tile, or the fact that it is missing, is cached only if the layer is still in the epoch the load
+    // started in. The epoch is checked again after the puts, a reload that collected the cached ETags in between
+    // did not see them and they are taken back
+    private void cacheLoaded(OffHeapTileCache cache, long tileKey, Tile tile, boolean fromStore, int epoch) {
+        int layerIndex = TileKey.layerIndex(tileKey);
+        if (layerEpochs.get(layerIndex) != epoch) {
+            return;
         }
-        return allBytesInBlob;
+        if (tile != null) {
+            if (fromStore && diskTileCache != null) {
+                diskTileCache.put(tileKey, tile);
+            }
+            cache.put(tileKey, tile);
+        } else {
+            negativeCache.put(tileKey);
+        }
+        if (layerEpochs.get(layerIndex) != epoch) {
+            if (tile != null) {
+                cache.invalidate(tileKey, tile.etag());
+                if (fromStore && diskTileCache != null) {
+                    diskTileCache.invalidateLayers(Collections.singleton(layerIndex));
+                }
+            } else {
+                negativeCache.invalidate(tileKey);
+            }
+        }
+    }
+
+    public OffHeapTileCache getTileCache() {
+        return tileCache;
+    }
+
+    /**
+     * @return the cache of the tiles owned by the other nodes, null if peer mode is disabled
+     */
+    public OffHeapTileCache getNearCache() {
+        return nearCache;
+    }
+
+    public DiskTileCache getDiskTileCache() {
+        return diskTileCache;
+    }
+
+    public TileCoverage getTileCoverage() {
+        return tileCoverage;
+    }
+
+    public void destroy() {
+        if (coverageRefresher != null) {
+            coverageRefresher.shutdownNow();
+        }
+        tileCache.invalidateAll();
+        if (nearCache != null) {
+            nearCache.invalidateAll();
+        }
+        for (OffHeapTileCache partition : partitions) {
+            if (partition != null) {
+                partition.invalidateAll();
+            }
+        }
+        if (diskTileCache != null) {
+            diskTileCache.close();
+        }
+    }
+
+    /**
+     * Number of database loads issued by cache misses
+     */
+    public long getIssuedLoads() {
+        return issuedLoads.sum();
+    }
+
+    /**
+     * Number of cache misses that joined an in-flight load instead of loading again
+     */
+    public long getCoalescedLoads() {
+        return coalescedLoads.sum();
+    }
+
+    /**
+     * Number of requests answered as missing by the coverage or the negative cache
+     */
+    public long getKnownMissing() {
+        return knownMissing.sum();
+    }
+
+    public int getInFlightLoads() {
+        return inFlightLoads.size();
     }
 
 }
@@ -1,17 +1,25 @@
 package com.luxx.map.service;
 
 import com.luxx.map.config.DbTypeEnum;
+import com.luxx.map.store.MysqlTileStore;
+import com.luxx.map.store.SqliteTileStore;
+import com.luxx.map.store.TileBundleStore;
+import com.luxx.map.store.TileStore;
 import com.luxx.map.util.PropertiesUtil;
-import com.zaxxer.hikari.HikariConfig;
-import com.zaxxer.hikari.HikariDataSource;
 
-import java.sql.*;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Map服务，数据库操作
+ * 按图层把请求路由到LayerRegistry中配置的存储，未配置的图层使用database.*的存储
  *
  * @author luxiaoxun
  * @version 1.0
@@ -20,129 +28,196 @@ import org.slf4j.LoggerFactory;
 public class MapDbOperation {
     private static Logger log = LoggerFactory.getLogger(MapDbOperation.class);
 
-    private static int dbType;
-    private static String sqliteDbPath;
-    private static HikariDataSource dataSource;
-
-    private static final String querySqlite = "select Tile from TilesData where id = " +
-            "(select id from Tiles where X = %s and Y = %s and Zoom = %s and Type = %s)";
-    private static final String queryMysql = "select Tile from gmapnetcache where " +
-            "X = %s and Y = %s and Zoom = %s and Type = %s";
+    private static TileStore defaultStore;
+    private static TileBundleStore tileBundleStore;
 
     public static boolean init() {
         try {
-            dbType = PropertiesUtil.getInstance().GetDbType();
+            String bundlePath = PropertiesUtil.getInstance().GetBundlePath();
+            if (bundlePath != null && !bundlePath.isEmpty()) {
+                tileBundleStore = new TileBundleStore(bundlePath);
+            }
+            int dbType = PropertiesUtil.getInstance().GetDbType();
             if (dbType == DbTypeEnum.sqlite.getType()) {
-                sqliteDbPath = PropertiesUtil.getInstance().GetSqliteDbPath();
+                String sqliteDbPath = PropertiesUtil.getInstance().GetSqliteDbPath();
+                long mmapSize = PropertiesUtil.getInstance().GetSqliteMmapSize();
                 Class.forName("org.sqlite.JDBC");
-                return true;
+                SqliteTileStore sqliteTileStore = new SqliteTileStore(sqliteDbPath, mmapSize,
+                        PropertiesUtil.getInstance().GetSqlitePoolSize());
+                watch(sqliteTileStore);
+                defaultStore = sqliteTileStore;
             } else if (dbType == DbTypeEnum.mysql.getType()) {
                 String url = PropertiesUtil.getInstance().GetMysqlUrl();
                 String user = PropertiesUtil.getInstance().GetMysqlUser();
                 String pswd = PropertiesUtil.getInstance().GetMysqlPassword();
-                HikariConfig config = new HikariConfig();
-                config.setJdbcUrl(url);
-                config.setUsername(user);
-                config.setPassword(pswd);
-                config.addDataSourceProperty("cachePrepStmts", "true");
-                config.addDataSourceProperty("prepStmtCacheSize", "250");
-                config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
-                config.setMaximumPoolSize(32);
-                dataSource = new HikariDataSource(config);
-                return true;
+                defaultStore = new MysqlTileStore(url, user, pswd, MysqlTileStore.DEFAULT_TABLE);
+            } else {
+                return false;
             }
-            return false;
+            LayerRegistry.getInstance().start();
+            return true;
         } catch (Exception e) {
             log.error(e.toString());
             return false;
         }
     }
 
-    public static byte[] getTile(int x, int y, int zoom, String dbId) {
-        try {
-            if (dbType == DbTypeEnum.sqlite.getType()) {
-                return getTileFromSqlite(x, y, zoom, dbId);
-            }
-            if (dbType == DbTypeEnum.mysql.getType()) {
-                return getTileFromMySql(x, y, zoom, dbId);
-            } else {
-                return null;
-            }
-        } catch (Exception ex) {
-            log.error(ex.getMessage());
-            return null;
+    /**
+     * The store serving the layer
+     */
+    static TileStore storeOf(int layerIndex) {
+        TileStore store = layerIndex >= 0 ? LayerRegistry.getInstance().getStore(layerIndex) : null;
+        return store != null ? store : defaultStore;
+    }
+
+    /**
+     * Switch the store to its database file when the file is replaced, the cache keeps the unchanged tiles
+     */
+    static void watch(final SqliteTileStore store) {
+        store.watch(PropertiesUtil.getInstance().GetSqliteReloadInterval(),
+                () -> MapCache.getInstance().storeReloaded(store));
+    }
+
+    private static TileStore storeOf(String dbId) {
+        return storeOf(TileKey.layerIndex(dbId));
+    }
+
+    /**
+     * Tile bundles of the layer served with sendfile, the layer's own bundle store or the one
+     * of bundle.path. Null if there is neither.
+     */
+    public static TileBundleStore getTileBundleStore(long tileKey) {
+        TileStore store = LayerRegistry.getInstance().getStore(TileKey.layerIndex(tileKey));
+        return store instanceof TileBundleStore ? (TileBundleStore) store : tileBundleStore;
+    }
+
+    /**
+     * @return the tile, null if it does not exist
+     * @throws SQLException if the database fails, a missing tile and a failed query are told apart
+     */
+    public static Tile getTile(long tileKey) throws SQLException {
+        return storeOf(TileKey.layerIndex(tileKey)).getTile(TileKey.x(tileKey), TileKey.y(tileKey),
+                TileKey.zoom(tileKey), TileKey.layer(tileKey));
+    }
+
+    public static Tile getTile(int x, int y, int zoom, String dbId) throws SQLException {
+        return storeOf(dbId).getTile(x, y, zoom, dbId);
+    }
+
+    /**
+     * Look up several distinct tiles of a layer with multi-row queries instead of one query per tile
+     *
+     * @return the tiles in the order of the keys, null where a tile does not exist
+     */
+    public static Tile[] getTiles(String dbId, long[] tileKeys) throws SQLException {
+        int[] zoom = new int[tileKeys.length];
+        int[] x = new int[tileKeys.length];
+        int[] y = new int[tileKeys.length];
+        for (int i = 0; i < tileKeys.length; i++) {
+            zoom[i] = TileKey.zoom(tileKeys[i]);
+            x[i] = TileKey.x(tileKeys[i]);
+            y[i] = TileKey.y(tileKeys[i]);
         }
+        return storeOf(dbId).getTiles(dbId, zoom, x, y);
     }
 
-    public static byte[] getTileFromSqlite(int x, int y, int zoom, String dbId) throws SQLException {
-        byte[] allBytesInBlob = null;
-        Connection dbConnection = null;
-        Statement stm = null;
-        ResultSet res = null;
-        try {
-            dbConnection = DriverManager.getConnection("jdbc:sqlite:" + sqliteDbPath);
-            stm = dbConnection.createStatement();
-            res = stm.executeQuery(String.format(querySqlite, x, y, zoom, dbId));
-            if (res != null) {
-                if (res.next()) {
-                    allBytesInBlob = res.getBytes("Tile");
-                }
-            }
-        } finally {
-            attemptClose(res);
-            attemptClose(stm);
-            attemptClose(dbConnection);
+    /**
+     * @return {minX, minY, maxX, maxY} of the tiles in the zoom level, null if there is no tile
+     */
+    public static int[] getTileBounds(String dbId, int zoom) throws SQLException {
+        return storeOf(dbId).getTileBounds(dbId, zoom);
+    }
+
+    /**
+     * Iterate the tiles in a range of a zoom level with a database cursor, ordered by X and Y.
+     * The rows are streamed, so the whole range is never held in memory.
+     */
+    public static void scanTiles(String dbId, int zoom, int minX, int minY, int maxX, int maxY,
+                                 TileRowHandler handler) throws SQLException, IOException {
+        storeOf(dbId).scanTiles(dbId, zoom, minX, minY, maxX, maxY, handler);
+    }
+
+    /**
+     * @return the layers of the database.* store and of bundle.path
+     */
+    public static List<String> listLayers() throws SQLException {
+        List<String> layers = new ArrayList<>();
+        if (defaultStore != null) {
+            layers.addAll(defaultStore.listLayers());
         }
-        return allBytesInBlob;
+        if (tileBundleStore != null) {
+            layers.addAll(tileBundleStore.listLayers());
+        }
+        return layers;
     }
 
-    public static byte[] getTileFromMySql(int x, int y, int zoom, String dbId) throws SQLException {
-        byte[] allBytesInBlob = null;
-        Connection dbConnection = null;
-        Statement stm = null;
-        ResultSet res = null;
-        try {
-            dbConnection = dataSource.getConnection();
-            stm = dbConnection.createStatement();
-            res = stm.executeQuery(String.format(queryMysql, x, y, zoom, dbId));
-            if (res != null) {
-                if (res.next()) {
-                    allBytesInBlob = res.getBytes("Tile");
-                }
+    /**
+     * @return number of tiles of every layer, each layer counted in the store serving it
+     */
+    public static Map<String, Long> countTilesByLayer() throws SQLException {
+        Map<String, Long> counts = new HashMap<>();
+        for (Map.Entry<String, Long> entry : defaultStore.countTilesByLayer().entrySet()) {
+            if (storeOf(entry.getKey()) == defaultStore) {
+                counts.put(entry.getKey(), entry.getValue());
             }
-        } finally {
-            attemptClose(res);
-            attemptClose(stm);
-            attemptClose(dbConnection);
         }
-
-        return allBytesInBlob;
+        for (int layerIndex = 0; layerIndex < TileKey.MAX_LAYERS; layerIndex++) {
+            TileStore store = LayerRegistry.getInstance().getStore(layerIndex);
+            if (store != null) {
+                String layer = TileKey.layerName(layerIndex);
+                counts.put(layer, store.countTilesByLayer().getOrDefault(layer, 0L));
+            }
+        }
+        return counts;
     }
 
-    private static void attemptClose(ResultSet o) {
-        try {
-            if (o != null) {
-                o.close();
+    /**
+     * Whether scanTileKeys can return only the tiles added after a row id. A single row id
+     * only makes sense for one store, so not when any layer has its own store.
+     */
+    public static boolean isIncrementalKeyScanSupported() {
+        if (!defaultStore.isIncrementalKeyScanSupported()) {
+            return false;
+        }
+        for (int layerIndex = 0; layerIndex < TileKey.MAX_LAYERS; layerIndex++) {
+            if (LayerRegistry.getInstance().getStore(layerIndex) != null) {
+                return false;
             }
-        } catch (Exception e) {
         }
+        return true;
     }
 
-    private static void attemptClose(Statement o) {
-        try {
-            if (o != null) {
-                o.close();
+    /**
+     * Iterate the key columns of the tiles, only the tiles added after the row id
+     * if incremental key scan is supported, otherwise all of them.
+     * Every layer is read from the store serving it.
+     *
+     * @return the largest row id seen
+     */
+    public static long scanTileKeys(long afterId, final TileKeyHandler handler) throws SQLException {
+        long lastId = defaultStore.scanTileKeys(afterId, (dbId, zoom, x, y) -> {
+            if (storeOf(dbId) == defaultStore) {
+                handler.onTileKey(dbId, zoom, x, y);
+            }
+        });
+        for (int layerIndex = 0; layerIndex < TileKey.MAX_LAYERS; layerIndex++) {
+            TileStore store = LayerRegistry.getInstance().getStore(layerIndex);
+            if (store != null) {
+                final String layer = TileKey.layerName(layerIndex);
+                store.scanTileKeys(0, (dbId, zoom, x, y) -> {
+                    if (dbId.equals(layer)) {
+                        handler.onTileKey(dbId, zoom, x, y);
+                    }
+                });
             }
-        } catch (Exception e) {
         }
+        return lastId;
     }
 
-    private static void attemptClose(Connection o) {
-        try {
-            if (o != null) {
-                o.close();
-            }
-        } catch (Exception e) {
+    public static void destroy() {
+        LayerRegistry.getInstance().destroy();
+        if (defaultStore != null) {
+            defaultStore.close();
         }
     }
 }
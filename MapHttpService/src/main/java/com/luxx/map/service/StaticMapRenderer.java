@@ -0,0 +1,259 @@
+package com.luxx.map.service;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.luxx.map.util.PropertiesUtil;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Map服务，静态地图渲染
+ * GET /static/{layer}?center=lon,lat&zoom=12&size=400x300&format=png
+ * 通过MapCache并行获取覆盖范围内的瓦片，拼接裁剪后一次编码。结果按请求参数缓存
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public class StaticMapRenderer {
+    private static Logger log = LoggerFactory.getLogger(StaticMapRenderer.class);
+
+    public static final String PATH = "/static";
+
+    private static final int TILE_SIZE = 256;
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    private final ThreadPoolExecutor executor;
+    private final Cache<String, byte[]> imageCache;
+    private final int maxSize;
+
+    private static class StaticMapRendererHolder {
+        private static final StaticMapRenderer instance = new StaticMapRenderer();
+    }
+
+    public static StaticMapRenderer getInstance() {
+        return StaticMapRendererHolder.instance;
+    }
+
+    private StaticMapRenderer() {
+        System.setProperty("java.awt.headless", "true");
+        int threads = PropertiesUtil.getInstance().GetRenderThreads();
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(PropertiesUtil.getInstance().GetRenderQueueSize()),
+                new DefaultThreadFactory("staticMapRenderer"));
+        imageCache = CacheBuilder.newBuilder()
+                .maximumWeight(PropertiesUtil.getInstance().GetRenderCacheMaxBytes())
+                .weigher((String key, byte[] image) -> image.length)
+                .expireAfterWrite(PropertiesUtil.getInstance().GetRenderCacheExpireSeconds(), TimeUnit.SECONDS)
+                .build();
+        maxSize = PropertiesUtil.getInstance().GetRenderMaxSize();
+    }
+
+    public static boolean isStaticMapRequest(String uri) {
+        return uri.startsWith(PATH + "/");
+    }
+
+    /**
+     * @throws IllegalArgumentException if the request is malformed
+     */
+    public StaticMap parse(String uri) {
+        QueryStringDecoder decoder = new QueryStringDecoder(uri);
+        String layer = decoder.path().substring(PATH.length() + 1);
+        if (layer.isEmpty() || layer.indexOf('/') >= 0) {
+            throw new IllegalArgumentException("Layer is required, /static/{layer}");
+        }
+        if (TileKey.layerIndex(layer) < 0) {
+            throw new IllegalArgumentException("Unknown layer " + layer);
+        }
+        String[] center = parameter(decoder, "center", null).split(",");
+        String[] size = parameter(decoder, "size", "256x256").split("x");
+        String format = parameter(decoder, "format", "png");
+        if (center.length != 2 || size.length != 2) {
+            throw new IllegalArgumentException("center is lon,lat and size is WIDTHxHEIGHT");
+        }
+        if (!format.equals("png") && !format.equals("jpg")) {
+            throw new IllegalArgumentException("format is png or jpg");
+        }
+        try {
+            StaticMap staticMap = new StaticMap(layer, Double.parseDouble(center[0]), Double.parseDouble(center[1]),
+                    Integer.parseInt(parameter(decoder, "zoom", null)),
+                    Integer.parseInt(size[0]), Integer.parseInt(size[1]), format);
+            if (staticMap.zoom < 0 || staticMap.zoom > TileKey.MAX_ZOOM || staticMap.width <= 0
+                    || staticMap.height <= 0 || staticMap.width > maxSize || staticMap.height > maxSize) {
+                throw new IllegalArgumentException("zoom or size is out of range");
+            }
+            return staticMap;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("center, zoom and size must be numbers");
+        }
+    }
+
+    private static String parameter(QueryStringDecoder decoder, String name, String defaultValue) {
+        List<String> values = decoder.parameters().get(name);
+        if (values == null || values.isEmpty()) {
+            if (defaultValue == null) {
+                throw new IllegalArgumentException(name + " is required");
+            }
+            return defaultValue;
+        }
+        return values.get(0);
+    }
+
+    public byte[] getCachedImage(StaticMap staticMap) {
+        return imageCache.getIfPresent(staticMap.cacheKey());
+    }
+
+    /**
+     * Fetch the covering tiles through MapCache, the misses are loaded in parallel on the
+     * tile loader pool, then stitch and encode the image on the render pool and cache it.
+     * Missing tiles are left blank. If a tile load fails, like with a saturated loader pool, the future
+     * fails with it and nothing is cached, so a map with holes is never kept.
+     */
+    public CompletableFuture<byte[]> render(final StaticMap staticMap) {
+        final int worldTiles = 1 << staticMap.zoom;
+        final double centerX = longitudeToPixel(staticMap.longitude, staticMap.zoom);
+        final double centerY = latitudeToPixel(staticMap.latitude, staticMap.zoom);
+        final int left = (int) Math.floor(centerX - staticMap.width / 2.0);
+        final int top = (int) Math.floor(centerY - staticMap.height / 2.0);
+        final int minTileX = Math.floorDiv(left, TILE_SIZE);
+        final int minTileY = Math.floorDiv(top, TILE_SIZE);
+        final int columns = Math.floorDiv(left + staticMap.width - 1, TILE_SIZE) - minTileX + 1;
+        final int rows = Math.floorDiv(top + staticMap.height - 1, TILE_SIZE) - minTileY + 1;
+
+        final List<CompletableFuture<Tile>> tiles = new ArrayList<>(columns * rows);
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                int y = minTileY + row;
+                // Wrap around the antimeridian, there is nothing above or below the world
+                int x = Math.floorMod(minTileX + column, worldTiles);
+                long tileKey = y >= 0 && y < worldTiles ? TileKey.encode(staticMap.layer, staticMap.zoom, x, y)
+                        : TileKey.INVALID;
+                tiles.add(fetchTile(tileKey));
+            }
+        }
+
+        return CompletableFuture.allOf(tiles.toArray(new CompletableFuture<?>[0])).thenApplyAsync(ignored -> {
+            BufferedImage image = new BufferedImage(staticMap.width, staticMap.height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = image.createGraphics();
+            try {
+                graphics.setColor(Color.WHITE);
+                graphics.fillRect(0, 0, staticMap.width, staticMap.height);
+                for (int row = 0; row < rows; row++) {
+                    for (int column = 0; column < columns; column++) {
+                        Tile tile = tiles.get(row * columns + column).join();
+                        BufferedImage tileImage = decode(tile);
+                        if (tileImage != null) {
+                            graphics.drawImage(tileImage, (minTileX + column) * TILE_SIZE - left,
+                                    (minTileY + row) * TILE_SIZE - top, null);
+                        }
+                    }
+                }
+            } finally {
+                graphics.dispose();
+            }
+            ByteArrayOutputStream output = new ByteArrayOutputStream(staticMap.width * staticMap.height / 4);
+            try {
+                ImageIO.write(image, staticMap.format, output);
+            } catch (IOException e) {
+                throw new IllegalStateException("Encode static map failed: " + e.getMessage());
+            }
+            byte[] encoded = output.toByteArray();
+            imageCache.put(staticMap.cacheKey(), encoded);
+            return encoded;
+        }, executor);
+    }
+
+    private static CompletableFuture<Tile> fetchTile(long tileKey) {
+        if (tileKey == TileKey.INVALID || MapCache.getInstance().isKnownMissing(tileKey)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Tile cached = MapCache.getInstance().getCachedTile(tileKey);
+        if (cached != null) {
+            Tile tile = cached.toHeap();
+            cached.content().release();
+            return CompletableFuture.completedFuture(tile);
+        }
+        return MapCache.getInstance().loadTileAsync(tileKey);
+    }
+
+    private static BufferedImage decode(Tile tile) {
+        if (tile == null || tile.length() == 0) {
+            return null;
+        }
+        try {
+            return ImageIO.read(new ByteBufInputStream(tile.content().duplicate()));
+        } catch (IOException e) {
+            log.debug("Decode tile failed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static double longitudeToPixel(double longitude, int zoom) {
+        return (longitude + 180) / 360 * TILE_SIZE * (1L << zoom);
+    }
+
+    private static double latitudeToPixel(double latitude, int zoom) {
+        double radians = Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude)));
+        double y = (1 - Math.log(Math.tan(radians) + 1 / Math.cos(radians)) / Math.PI) / 2;
+        return y * TILE_SIZE * (1L << zoom);
+    }
+
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    public static class StaticMap {
+        final String layer;
+        final double longitude;
+        final double latitude;
+        final int zoom;
+        final int width;
+        final int height;
+        final String format;
+
+        StaticMap(String layer, double longitude, double latitude, int zoom, int width, int height, String format) {
+            this.layer = layer;
+            this.longitude = longitude;
+            this.latitude = latitude;
+            this.zoom = zoom;
+            this.width = width;
+            this.height = height;
+            this.format = format;
+        }
+
+        String cacheKey() {
+            return layer + '/' + longitude + ',' + latitude + '/' + zoom + '/' + width + 'x' + height + '.' + format;
+        }
+
+        public String getContentType() {
+            return format.equals("png") ? "image/png" : "image/jpeg";
+        }
+
+        /**
+         * Key of the center tile, used for the Cache-Control of the layer and zoom
+         */
+        public long getCenterTileKey() {
+            int worldTiles = 1 << zoom;
+            int x = (int) Math.min(worldTiles - 1, Math.max(0, longitudeToPixel(longitude, zoom) / TILE_SIZE));
+            int y = (int) Math.min(worldTiles - 1, Math.max(0, latitudeToPixel(latitude, zoom) / TILE_SIZE));
+            return TileKey.encode(layer, zoom, x, y);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.luxx.map.service;
+
+import java.util.Date;
+
+import com.google.common.hash.Hashing;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DateFormatter;
+
+/**
+ * Map服务，瓦片数据
+ * ETag和Last-Modified在瓦片加载时计算一次，随瓦片一起缓存
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public final class Tile {
+    private final ByteBuf content;
+    private final String etag;
+    private final long lastModified;
+    private final String lastModifiedHeader;
+
+    private Tile(ByteBuf content, String etag, long lastModified, String lastModifiedHeader) {
+        this.content = content;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.lastModifiedHeader = lastModifiedHeader;
+    }
+
+    /**
+     * Heap tile loaded from a store, its content is never freed so it can be shared by any number of requests
+     *
+     * @param lastModified milliseconds since epoch, 0 if the store does not provide it
+     */
+    public static Tile of(byte[] data, long lastModified) {
+        String etag = "\"" + Hashing.murmur3_128().hashBytes(data).toString() + "\"";
+        String lastModifiedHeader = lastModified > 0 ? DateFormatter.format(new Date(lastModified)) : null;
+        return new Tile(Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(data)), etag, lastModified,
+                lastModifiedHeader);
+    }
+
+    /**
+     * Copy the content into a buffer of the allocator, the copy keeps the ETag and must be released
+     */
+    public Tile copy(ByteBufAllocator allocator) {
+        int length = content.readableBytes();
+        ByteBuf copy = allocator.directBuffer(length, length);
+        copy.writeBytes(content, content.readerIndex(), length);
+        return new Tile(copy, etag, lastModified, lastModifiedHeader);
+    }
+
+    /**
+     * Copy the content to the heap, the copy keeps the ETag and is never freed
+     */
+    public Tile toHeap() {
+        return new Tile(Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(ByteBufUtil.getBytes(content))),
+                etag, lastModified, lastModifiedHeader);
+    }
+
+    public ByteBuf content() {
+        return content;
+    }
+
+    public int length() {
+        return content.readableBytes();
+    }
+
+    public String etag() {
+        return etag;
+    }
+
+    public long lastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Last-Modified header value, null if the store does not provide it
+     */
+    public String lastModifiedHeader() {
+        return lastModifiedHeader;
+    }
+}
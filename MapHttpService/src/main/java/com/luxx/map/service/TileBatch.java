@@ -0,0 +1,162 @@
+package com.luxx.map.service;
+
+import java.util.Arrays;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+
+/**
+ * Map服务，批量瓦片请求
+ * 一次POST请求获取整个视口的瓦片，以下两种请求体合法，图层在路径中，省略时为默认图层：
+ * 1: POST /batch/788865972  请求体为 z/x/y 列表，以空白或逗号分隔 (6/50/25 6/51/25)
+ * 2: POST /batch/788865972  请求体为 bbox=minX,minY,maxX,maxY&z=6，瓦片坐标范围
+ * 响应为长度前缀的二进制格式，按请求顺序：
+ * [int count] 然后每个瓦片 [byte zoom][int x][int y][int length][data]，length为0表示瓦片不存在
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public final class TileBatch {
+    public static final String PATH = "/batch";
+    public static final String CONTENT_TYPE = "application/octet-stream";
+
+    private static final int ENTRY_HEADER_BYTES = 13;
+
+    private TileBatch() {
+    }
+
+    public static boolean isBatchRequest(String uri) {
+        return uri.startsWith(PATH) && (uri.length() == PATH.length() || uri.charAt(PATH.length()) == '/'
+                || uri.charAt(PATH.length()) == '?');
+    }
+
+    /**
+     * @return the distinct tile keys of the request in the order they are listed
+     * @throws IllegalArgumentException if the request is malformed or lists more than maxTiles tiles
+     */
+    public static long[] parse(String uri, String body, int maxTiles) {
+        int layer = parseLayer(uri);
+        body = body.trim();
+        if (body.startsWith("bbox=") || body.startsWith("z=")) {
+            return parseBoundingBox(layer, body, maxTiles);
+        }
+        String[] tiles = body.isEmpty() ? new String[0] : body.split("[\\s,;]+");
+        if (tiles.length > maxTiles) {
+            throw new IllegalArgumentException("More than " + maxTiles + " tiles in a batch");
+        }
+        long[] keys = new long[tiles.length];
+        int count = 0;
+        for (String tile : tiles) {
+            String[] zxy = tile.split("/");
+            if (zxy.length != 3) {
+                throw new IllegalArgumentException("Tile " + tile + " is not z/x/y");
+            }
+            long key = TileKey.encode(layer, parseInt(zxy[0]), parseInt(zxy[1]), parseInt(zxy[2]));
+            if (key == TileKey.INVALID) {
+                throw new IllegalArgumentException("Tile " + tile + " is out of range");
+            }
+            count = addDistinct(keys, count, key);
+        }
+        return count == keys.length ? keys : Arrays.copyOf(keys, count);
+    }
+
+    /**
+     * @return index of the known layer of the request, the default layer if there is none
+     */
+    private static int parseLayer(String uri) {
+        int end = uri.indexOf('?');
+        if (end < 0) {
+            end = uri.length();
+        }
+        int start = PATH.length() + 1;
+        String layer = start < end ? uri.substring(start, end) : LayerRegistry.getInstance().getDefaultLayer();
+        int layerIndex = TileKey.layerIndex(layer);
+        if (layerIndex < 0) {
+            throw new IllegalArgumentException("Unknown layer " + layer);
+        }
+        return layerIndex;
+    }
+
+    // bbox=minX,minY,maxX,maxY&z=zoom
+    private static long[] parseBoundingBox(int layer, String body, int maxTiles) {
+        int[] bbox = null;
+        int zoom = -1;
+        for (String parameter : body.split("&")) {
+            if (parameter.startsWith("bbox=")) {
+                String[] values = parameter.substring(5).split(",");
+                if (values.length != 4) {
+                    throw new IllegalArgumentException("bbox is not minX,minY,maxX,maxY");
+                }
+                bbox = new int[4];
+                for (int i = 0; i < 4; i++) {
+                    bbox[i] = parseInt(values[i]);
+                }
+            } else if (parameter.startsWith("z=")) {
+                zoom = parseInt(parameter.substring(2));
+            }
+        }
+        if (bbox == null || zoom < 0 || bbox[0] > bbox[2] || bbox[1] > bbox[3]) {
+            throw new IllegalArgumentException("bbox and z are required");
+        }
+        long count = (long) (bbox[2] - bbox[0] + 1) * (bbox[3] - bbox[1] + 1);
+        if (count > maxTiles) {
+            throw new IllegalArgumentException("More than " + maxTiles + " tiles in a batch");
+        }
+        long[] keys = new long[(int) count];
+        int i = 0;
+        for (int y = bbox[1]; y <= bbox[3]; y++) {
+            for (int x = bbox[0]; x <= bbox[2]; x++) {
+                long key = TileKey.encode(layer, zoom, x, y);
+                if (key == TileKey.INVALID) {
+                    throw new IllegalArgumentException("bbox is out of range");
+                }
+                keys[i++] = key;
+            }
+        }
+        return keys;
+    }
+
+    private static int addDistinct(long[] keys, int count, long key) {
+        for (int i = 0; i < count; i++) {
+            if (keys[i] == key) {
+                return count;
+            }
+        }
+        keys[count] = key;
+        return count + 1;
+    }
+
+    private static int parseInt(String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(value + " is not a number");
+        }
+    }
+
+    /**
+     * Encode the response, the tile contents are added as retained duplicates without copying.
+     * The caller still owns the tiles.
+     */
+    public static ByteBuf encode(ByteBufAllocator allocator, long[] keys, Tile[] tiles) {
+        ByteBuf headers = allocator.buffer(4 + keys.length * ENTRY_HEADER_BYTES);
+        CompositeByteBuf content = allocator.compositeBuffer(keys.length * 2 + 1);
+        headers.writeInt(keys.length);
+        content.addComponent(true, headers.retainedSlice(0, 4));
+        for (int i = 0; i < keys.length; i++) {
+            int offset = headers.writerIndex();
+            headers.writeByte(TileKey.zoom(keys[i]));
+            headers.writeInt(TileKey.x(keys[i]));
+            headers.writeInt(TileKey.y(keys[i]));
+            headers.writeInt(tiles[i] != null ? tiles[i].length() : 0);
+            content.addComponent(true, headers.retainedSlice(offset, ENTRY_HEADER_BYTES));
+            if (tiles[i] != null && tiles[i].length() > 0) {
+                content.addComponent(true, tiles[i].content().retainedDuplicate());
+            }
+        }
+        headers.release();
+        return content;
+    }
+}
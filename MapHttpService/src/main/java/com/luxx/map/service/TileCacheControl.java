@@ -0,0 +1,52 @@
+package com.luxx.map.service;
+
+import com.luxx.map.util.PropertiesUtil;
+
+/**
+ * Map服务，瓦片的Cache-Control
+ * max-age可以按图层、级别配置，每个图层级别的header值只生成一次，配置重新加载时清空
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public final class TileCacheControl {
+    private static volatile String[][] values = new String[TileKey.MAX_LAYERS][];
+
+    private TileCacheControl() {
+    }
+
+    public static String of(long tileKey) {
+        if (tileKey == TileKey.INVALID) {
+            return "public, max-age=" + PropertiesUtil.getInstance().GetCacheMaxAge(null, 0);
+        }
+        String[] layerValues = values[TileKey.layerIndex(tileKey)];
+        String value = layerValues != null ? layerValues[TileKey.zoom(tileKey)] : null;
+        if (value == null) {
+            value = create(tileKey);
+        }
+        return value;
+    }
+
+    /**
+     * Forget the values, the next requests build them from the reloaded configuration
+     */
+    public static synchronized void clear() {
+        values = new String[TileKey.MAX_LAYERS][];
+    }
+
+    private static synchronized String create(long tileKey) {
+        int layerIndex = TileKey.layerIndex(tileKey);
+        int zoom = TileKey.zoom(tileKey);
+        String[] layerValues = values[layerIndex];
+        if (layerValues == null) {
+            layerValues = new String[TileKey.MAX_ZOOM + 1];
+            values[layerIndex] = layerValues;
+        }
+        if (layerValues[zoom] == null) {
+            int maxAge = PropertiesUtil.getInstance().GetCacheMaxAge(TileKey.layer(tileKey), zoom);
+            layerValues[zoom] = "public, max-age=" + maxAge;
+        }
+        return layerValues[zoom];
+    }
+}
@@ -0,0 +1,180 @@
+package com.luxx.map.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+
+/**
+ * Map服务，导出数据流
+ * 导出线程写入输出流，数据按块放入有界队列；ChunkedWriteHandler在通道可写时从队列取块发送。
+ * 队列满时导出线程阻塞，客户端读得慢时服务端内存占用保持不变
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public class TileExportInput implements ChunkedInput<ByteBuf> {
+    private static final int CHUNK_BYTES = 64 * 1024;
+    private static final int MAX_QUEUED_CHUNKS = 16;
+
+    private final BlockingQueue<ByteBuf> chunks = new ArrayBlockingQueue<>(MAX_QUEUED_CHUNKS);
+    private final ByteBufAllocator allocator;
+    private final ChunkedWriteHandler writer;
+    private volatile boolean finished = false;
+    private volatile boolean closed = false;
+    private volatile Throwable failure = null;
+    private long progress = 0;
+
+    public TileExportInput(ChannelHandlerContext ctx, ChunkedWriteHandler writer) {
+        this.allocator = ctx.alloc();
+        this.writer = writer;
+    }
+
+    @Override
+    public boolean isEndOfInput() throws Exception {
+        if (failure != null) {
+            throw new IOException("Tile export failed", failure);
+        }
+        return finished && chunks.isEmpty();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        ByteBuf chunk;
+        while ((chunk = chunks.poll()) != null) {
+            chunk.release();
+        }
+    }
+
+    @Deprecated
+    @Override
+    public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+        return readChunk(ctx.alloc());
+    }
+
+    /**
+     * Returns null if the exporter has not produced the next chunk yet,
+     * the transfer is resumed when it does.
+     */
+    @Override
+    public ByteBuf readChunk(ByteBufAllocator allocator) throws Exception {
+        if (failure != null) {
+            throw new IOException("Tile export failed", failure);
+        }
+        ByteBuf chunk = chunks.poll();
+        if (chunk != null) {
+            progress += chunk.readableBytes();
+        }
+        return chunk;
+    }
+
+    @Override
+    public long length() {
+        return -1;
+    }
+
+    @Override
+    public long progress() {
+        return progress;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stream written by the exporter thread, a write blocks while the queue is full
+     */
+    public OutputStream outputStream() {
+        return new ChunkOutputStream();
+    }
+
+    public void fail(Throwable cause) {
+        failure = cause;
+        writer.resumeTransfer();
+    }
+
+    private void enqueue(ByteBuf chunk) throws IOException {
+        try {
+            while (!chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                if (closed) {
+                    chunk.release();
+                    throw new IOException("Tile export is closed by the client");
+                }
+            }
+        } catch (InterruptedException e) {
+            chunk.release();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Tile export is interrupted");
+        }
+        // The chunk may have been queued after close drained the queue
+        if (closed) {
+            close();
+            throw new IOException("Tile export is closed by the client");
+        }
+        writer.resumeTransfer();
+    }
+
+    private class ChunkOutputStream extends OutputStream {
+        private ByteBuf current;
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureWritable();
+            current.writeByte(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                ensureWritable();
+                int length = Math.min(len, current.writableBytes());
+                current.writeBytes(b, off, length);
+                off += length;
+                len -= length;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (current != null && current.isReadable()) {
+                ByteBuf chunk = current;
+                current = null;
+                enqueue(chunk);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                if (current != null) {
+                    current.release();
+                    current = null;
+                }
+            }
+            finished = true;
+            writer.resumeTransfer();
+        }
+
+        private void ensureWritable() throws IOException {
+            if (current != null && !current.isWritable()) {
+                flush();
+            }
+            if (current == null) {
+                current = allocator.buffer(CHUNK_BYTES, CHUNK_BYTES);
+            }
+        }
+    }
+}
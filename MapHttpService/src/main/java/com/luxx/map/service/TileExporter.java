@@ -0,0 +1,183 @@
+package com.luxx.map.service;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.luxx.map.util.PropertiesUtil;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Map服务，离线地图包导出
+ * GET /export/{layer}?bbox=west,south,east,north&minzoom=10&maxzoom=14 ，bbox为经纬度。
+ * 逐级用数据库游标遍历范围内的瓦片，不经过也不写入MapCache，以zip格式 {z}/{x}/{y}.{png|jpg} 流式返回
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public class TileExporter {
+    private static Logger log = LoggerFactory.getLogger(TileExporter.class);
+
+    public static final String PATH = "/export";
+    public static final String CONTENT_TYPE = "application/zip";
+
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    private final ThreadPoolExecutor executor;
+
+    private static class TileExporterHolder {
+        private static final TileExporter instance = new TileExporter();
+    }
+
+    public static TileExporter getInstance() {
+        return TileExporterHolder.instance;
+    }
+
+    private TileExporter() {
+        int threads = PropertiesUtil.getInstance().GetExportThreads();
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(PropertiesUtil.getInstance().GetExportQueueSize()),
+                new DefaultThreadFactory("tileExporter"));
+    }
+
+    public static boolean isExportRequest(String uri) {
+        return uri.startsWith(PATH + "/");
+    }
+
+    /**
+     * Parse the export request
+     *
+     * @return the layer, bounding box and zoom range of the export
+     * @throws IllegalArgumentException if the request is malformed
+     */
+    public static Export parse(String uri) {
+        QueryStringDecoder decoder = new QueryStringDecoder(uri);
+        String layer = decoder.path().substring(PATH.length() + 1);
+        if (layer.isEmpty() || layer.indexOf('/') >= 0) {
+            throw new IllegalArgumentException("Layer is required, /export/{layer}");
+        }
+        String[] bbox = parameter(decoder, "bbox").split(",");
+        if (bbox.length != 4) {
+            throw new IllegalArgumentException("bbox is not west,south,east,north");
+        }
+        try {
+            Export export = new Export(layer, Double.parseDouble(bbox[0]), Double.parseDouble(bbox[1]),
+                    Double.parseDouble(bbox[2]), Double.parseDouble(bbox[3]),
+                    Integer.parseInt(parameter(decoder, "minzoom")), Integer.parseInt(parameter(decoder, "maxzoom")));
+            if (export.minZoom < 0 || export.maxZoom > TileKey.MAX_ZOOM || export.minZoom > export.maxZoom
+                    || export.west > export.east || export.south > export.north) {
+                throw new IllegalArgumentException("bbox or zoom range is out of range");
+            }
+            return export;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bbox, minzoom and maxzoom must be numbers");
+        }
+    }
+
+    private static String parameter(QueryStringDecoder decoder, String name) {
+        List<String> values = decoder.parameters().get(name);
+        if (values == null || values.isEmpty()) {
+            throw new IllegalArgumentException(name + " is required");
+        }
+        return values.get(0);
+    }
+
+    /**
+     * Write the export into the input on an exporter thread
+     *
+     * @throws java.util.concurrent.RejectedExecutionException if too many exports are running
+     */
+    public void export(final Export export, final TileExportInput input) {
+        executor.execute(() -> {
+            long start = System.currentTimeMillis();
+            final long[] tiles = {0};
+            try {
+                final ZipOutputStream zip = new ZipOutputStream(input.outputStream());
+                // Tiles are compressed images already, they are stored without deflate
+                zip.setMethod(ZipOutputStream.STORED);
+                final CRC32 crc = new CRC32();
+                for (int zoom = export.minZoom; zoom <= export.maxZoom && !input.isClosed(); zoom++) {
+                    int minX = longitudeToX(export.west, zoom);
+                    int maxX = longitudeToX(export.east, zoom);
+                    int minY = latitudeToY(export.north, zoom);
+                    int maxY = latitudeToY(export.south, zoom);
+                    MapDbOperation.scanTiles(export.layer, zoom, minX, minY, maxX, maxY, (x, y, z, tile) -> {
+                        ZipEntry entry = new ZipEntry(z + "/" + x + "/" + y + extension(tile));
+                        crc.reset();
+                        crc.update(tile, 0, tile.length);
+                        entry.setSize(tile.length);
+                        entry.setCompressedSize(tile.length);
+                        entry.setCrc(crc.getValue());
+                        zip.putNextEntry(entry);
+                        zip.write(tile);
+                        zip.closeEntry();
+                        tiles[0]++;
+                    });
+                }
+                zip.close();
+                log.info("Exported " + tiles[0] + " tiles of layer " + export.layer + " in "
+                        + (System.currentTimeMillis() - start) + " ms");
+            } catch (Exception e) {
+                log.warn("Export of layer " + export.layer + " stopped after " + tiles[0] + " tiles: " + e.getMessage());
+                input.fail(e);
+            }
+        });
+    }
+
+    private static String extension(byte[] tile) {
+        if (tile.length > 3 && (tile[0] & 0xff) == 0x89 && tile[1] == 'P' && tile[2] == 'N' && tile[3] == 'G') {
+            return ".png";
+        }
+        if (tile.length > 1 && (tile[0] & 0xff) == 0xff && (tile[1] & 0xff) == 0xd8) {
+            return ".jpg";
+        }
+        return "";
+    }
+
+    static int longitudeToX(double longitude, int zoom) {
+        int x = (int) Math.floor((longitude + 180) / 360 * (1 << zoom));
+        return Math.max(0, Math.min((1 << zoom) - 1, x));
+    }
+
+    static int latitudeToY(double latitude, int zoom) {
+        double radians = Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude)));
+        double y = (1 - Math.log(Math.tan(radians) + 1 / Math.cos(radians)) / Math.PI) / 2;
+        return Math.max(0, Math.min((1 << zoom) - 1, (int) Math.floor(y * (1 << zoom))));
+    }
+
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    public static class Export {
+        final String layer;
+        final double west;
+        final double south;
+        final double east;
+        final double north;
+        final int minZoom;
+        final int maxZoom;
+
+        Export(String layer, double west, double south, double east, double north, int minZoom, int maxZoom) {
+            this.layer = layer;
+            this.west = west;
+            this.south = south;
+            this.east = east;
+            this.north = north;
+            this.minZoom = minZoom;
+            this.maxZoom = maxZoom;
+        }
+
+        public String getFileName() {
+            return layer + "-" + minZoom + "-" + maxZoom + ".zip";
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.luxx.map.service;
+
+import java.util.Arrays;
+
+/**
+ * Map服务，瓦片Key
+ * 将图层、级别、行列号压缩到一个long中：layer(11位) | zoom(5位) | x(24位) | y(24位)
+ * 只有已知的图层(默认图层、配置的图层、存储中已有的图层)注册后分配序号，请求中的未知图层名不会被注册
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public final class TileKey {
+    public static final long INVALID = -1L;
+    public static final int MAX_ZOOM = 24;
+    public static final int MAX_LAYERS = 1 << 11;
+
+    private static final int COORD_BITS = 24;
+    private static final int ZOOM_BITS = 5;
+    private static final long COORD_MASK = (1L << COORD_BITS) - 1;
+    private static final long ZOOM_MASK = (1L << ZOOM_BITS) - 1;
+
+    private static volatile LayerTable table = new LayerTable(new String[0]);
+
+    private TileKey() {
+    }
+
+    public static long encode(String layer, int zoom, int x, int y) {
+        int layerIndex = layerIndex(layer);
+        if (layerIndex < 0) {
+            return INVALID;
+        }
+        return encode(layerIndex, zoom, x, y);
+    }
+
+    public static long encode(int layerIndex, int zoom, int x, int y) {
+        if (layerIndex < 0 || layerIndex >= MAX_LAYERS || zoom < 0 || zoom > MAX_ZOOM
+                || x < 0 || y < 0 || x >= (1 << zoom) || y >= (1 << zoom)) {
+            return INVALID;
+        }
+        return ((long) layerIndex << (ZOOM_BITS + 2 * COORD_BITS))
+                | ((long) zoom << (2 * COORD_BITS))
+                | ((long) x << COORD_BITS)
+                | y;
+    }
+
+    public static int layerIndex(long key) {
+        return (int) (key >>> (ZOOM_BITS + 2 * COORD_BITS));
+    }
+
+    public static String layer(long key) {
+        return table.names[layerIndex(key)];
+    }
+
+    public static String layerName(int layerIndex) {
+        return table.names[layerIndex];
+    }
+
+    public static int zoom(long key) {
+        return (int) ((key >>> (2 * COORD_BITS)) & ZOOM_MASK);
+    }
+
+    public static int x(long key) {
+        return (int) ((key >>> COORD_BITS) & COORD_MASK);
+    }
+
+    public static int y(long key) {
+        return (int) (key & COORD_MASK);
+    }
+
+    /**
+     * Well mixed 32 bits hash of a key (murmur3 finalizer), neighbouring tiles spread evenly
+     */
+    public static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /**
+     * Index of a registered layer
+     *
+     * @return -1 if the layer is not registered
+     */
+    public static int layerIndex(String layer) {
+        return layerIndex(layer, 0, layer.length());
+    }
+
+    /**
+     * Index of the registered layer named by s[start, end), nothing is copied
+     *
+     * @return -1 if the layer is not registered
+     */
+    public static int layerIndex(String s, int start, int end) {
+        // Same hash as String.hashCode of the substring
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + s.charAt(i);
+        }
+        LayerTable current = table;
+        int length = end - start;
+        for (int slot = LayerTable.spread(hash) & current.mask; ; slot = (slot + 1) & current.mask) {
+            int layerIndex = current.slots[slot];
+            if (layerIndex < 0) {
+                return -1;
+            }
+            String name = current.names[layerIndex];
+            if (name.length() == length && s.regionMatches(start, name, 0, length)) {
+                return layerIndex;
+            }
+        }
+    }
+
+    /**
+     * Register a known layer, a configured one or one a store has.
+     * Names taken from requests are only looked up, they must never be registered.
+     *
+     * @return the index of the layer, -1 if there are already MAX_LAYERS layers
+     */
+    public static synchronized int registerLayer(String layer) {
+        int layerIndex = layerIndex(layer);
+        if (layerIndex >= 0) {
+            return layerIndex;
+        }
+        String[] current = table.names;
+        if (current.length >= MAX_LAYERS) {
+            return -1;
+        }
+        String[] updated = new String[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = layer;
+        table = new LayerTable(updated);
+        return current.length;
+    }
+
+    /**
+     * Open addressing table of the layer names, replaced as a whole when a layer is registered
+     */
+    private static final class LayerTable {
+        final String[] names;
+        // Layer index by hash slot, -1 for an empty slot. At most half full
+        final int[] slots;
+        final int mask;
+
+        LayerTable(String[] names) {
+            this.names = names;
+            int capacity = Integer.highestOneBit(Math.max(4, names.length * 2)) << 1;
+            this.slots = new int[capacity];
+            this.mask = capacity - 1;
+            Arrays.fill(slots, -1);
+            for (int i = 0; i < names.length; i++) {
+                int slot = spread(names[i].hashCode()) & mask;
+                while (slots[slot] >= 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = i;
+            }
+        }
+
+        static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+    public static String toString(long key) {
+        return "Layer:" + layer(key) + " Zoom:" + zoom(key) + " X:" + x(key) + " Y:" + y(key);
+    }
+}
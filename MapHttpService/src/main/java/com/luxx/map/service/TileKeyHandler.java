@@ -0,0 +1,8 @@
+package com.luxx.map.service;
+
+/**
+ * Map服务，逐行处理数据库中瓦片的坐标列，不读取瓦片数据
+ */
+public interface TileKeyHandler {
+    void onTileKey(String dbId, int zoom, int x, int y);
+}
@@ -0,0 +1,109 @@
+package com.luxx.map.service;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.luxx.map.metrics.MapMetrics;
+import com.luxx.map.util.PropertiesUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * Map服务，瓦片加载线程池
+ * 缓存命中在IO线程直接返回，只有未命中的数据库加载提交到这个有界线程池。
+ * 队列满时立即拒绝；在队列中等待超过截止时间的任务不再访问数据库
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public class TileLoader {
+    private final ThreadPoolExecutor executor;
+    private final long deadlineNanos;
+
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder expiredCount = new LongAdder();
+
+    private static class TileLoaderHolder {
+        private static final TileLoader instance = new TileLoader();
+    }
+
+    public static TileLoader getInstance() {
+        return TileLoaderHolder.instance;
+    }
+
+    private TileLoader() {
+        int threads = PropertiesUtil.getInstance().GetTileLoaderThreads();
+        int queueSize = PropertiesUtil.getInstance().GetTileLoaderQueueSize();
+        deadlineNanos = TimeUnit.MILLISECONDS.toNanos(PropertiesUtil.getInstance().GetTileLoaderDeadlineMillis());
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new DefaultThreadFactory("tileLoader"));
+    }
+
+    /**
+     * Run the load on a loader thread. The future is completed exceptionally with
+     * RejectedExecutionException if the queue is full, or with TimeoutException if the
+     * task waited in the queue past the deadline, nobody is waiting for it any more.
+     */
+    public <T> CompletableFuture<T> submit(final Callable<T> loader) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final long submitTime = System.nanoTime();
+        MapMetrics.getInstance().getLoaderQueueDepth().record(executor.getQueue().size());
+        try {
+            executor.execute(() -> {
+                long waitNanos = System.nanoTime() - submitTime;
+                MapMetrics.getInstance().getLoaderWaitTime().record(TimeUnit.NANOSECONDS.toMicros(waitNanos));
+                if (waitNanos > deadlineNanos) {
+                    expiredCount.increment();
+                    future.completeExceptionally(new TimeoutException("Tile load waited "
+                            + TimeUnit.NANOSECONDS.toMillis(waitNanos) + " ms in the loader queue"));
+                    return;
+                }
+                try {
+                    future.complete(loader.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejectedCount.increment();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    public long getDeadlineMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(deadlineNanos);
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Number of loads rejected because the queue was full
+     */
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    /**
+     * Number of loads dropped because they waited in the queue past the deadline
+     */
+    public long getExpiredCount() {
+        return expiredCount.sum();
+    }
+
+    public void destroy() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,87 @@
+package com.luxx.map.service;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.luxx.map.cluster.TileCluster;
+import com.luxx.map.util.PropertiesUtil;
+
+/**
+ * Map服务，相邻瓦片预取
+ * 瓦片未命中时异步加载同级相邻瓦片以及上下级瓦片。预取限速，且只在加载队列空闲时进行，不与前台请求竞争
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public class TilePrefetcher {
+    private final boolean enabled;
+    private final RateLimiter rateLimiter;
+    private final int maxQueue;
+
+    private final LongAdder prefetchCount = new LongAdder();
+
+    private static class TilePrefetcherHolder {
+        private static final TilePrefetcher instance = new TilePrefetcher();
+    }
+
+    public static TilePrefetcher getInstance() {
+        return TilePrefetcherHolder.instance;
+    }
+
+    private TilePrefetcher() {
+        enabled = PropertiesUtil.getInstance().GetPrefetchEnabled();
+        rateLimiter = RateLimiter.create(Math.max(0.1, PropertiesUtil.getInstance().GetPrefetchRate()));
+        maxQueue = PropertiesUtil.getInstance().GetPrefetchMaxQueue();
+    }
+
+    /**
+     * Prefetch the neighbours of the missed tile, never blocks
+     */
+    public void prefetchNeighbours(long tileKey) {
+        if (!enabled) {
+            return;
+        }
+        int layerIndex = TileKey.layerIndex(tileKey);
+        int zoom = TileKey.zoom(tileKey);
+        int x = TileKey.x(tileKey);
+        int y = TileKey.y(tileKey);
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                if ((dx != 0 || dy != 0) && !prefetch(TileKey.encode(layerIndex, zoom, x + dx, y + dy))) {
+                    return;
+                }
+            }
+        }
+        if (zoom > 0 && !prefetch(TileKey.encode(layerIndex, zoom - 1, x >> 1, y >> 1))) {
+            return;
+        }
+        for (int i = 0; i < 4; i++) {
+            if (!prefetch(TileKey.encode(layerIndex, zoom + 1, (x << 1) + (i & 1), (y << 1) + (i >> 1)))) {
+                return;
+            }
+        }
+    }
+
+    // False once the rate limit or the loader queue stops the prefetch
+    private boolean prefetch(long tileKey) {
+        // The owner of a foreign tile prefetches around it when the request is forwarded
+        if (tileKey == TileKey.INVALID || TileCluster.getInstance().isForeign(tileKey)
+                || MapCache.getInstance().isCachedOrLoading(tileKey)) {
+            return true;
+        }
+        if (TileLoader.getInstance().getQueueDepth() >= maxQueue || !rateLimiter.tryAcquire()) {
+            return false;
+        }
+        prefetchCount.increment();
+        MapCache.getInstance().loadTileAsync(tileKey);
+        return true;
+    }
+
+    /**
+     * Number of neighbour tiles loaded by prefetch
+     */
+    public long getPrefetchCount() {
+        return prefetchCount.sum();
+    }
+}
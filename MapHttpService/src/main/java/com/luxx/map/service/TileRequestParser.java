@@ -0,0 +1,123 @@
+package com.luxx.map.service;
+
+/**
+ * Map服务，瓦片请求Url解析
+ * 直接逐字符解析Url得到瓦片Key，不做split，不创建QueryStringDecoder，以下两种情况合法：
+ * 1: http://192.1.114.11:8899/788865972/{z}/{x}/{y} (http://192.1.114.11:8899/788865972/6/50/25)
+ * 2: http://192.1.114.11:8899/FileService/image?map=quanguo&type=web&x=5&y=3&z=3
+ *    map按图层配置的名称选择图层，没有配置该名称时使用layer.default
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public final class TileRequestParser {
+    private TileRequestParser() {
+    }
+
+    /**
+     * @return the packed tile key, or TileKey.INVALID if the url is not a tile request
+     */
+    public static long parse(String uri) {
+        int queryStart = uri.indexOf('?');
+        if (queryStart < 0 || queryStart == uri.length() - 1) {
+            return parsePath(uri, queryStart < 0 ? uri.length() : queryStart);
+        }
+        return parseQuery(uri, queryStart + 1);
+    }
+
+    // /{layer}/{z}/{x}/{y}
+    private static long parsePath(String uri, int end) {
+        if (end < 2 || uri.charAt(0) != '/') {
+            return TileKey.INVALID;
+        }
+        int layerEnd = uri.indexOf('/', 1);
+        if (layerEnd < 0 || layerEnd >= end || layerEnd == 1) {
+            return TileKey.INVALID;
+        }
+        int zoomEnd = uri.indexOf('/', layerEnd + 1);
+        if (zoomEnd < 0 || zoomEnd >= end) {
+            return TileKey.INVALID;
+        }
+        int xEnd = uri.indexOf('/', zoomEnd + 1);
+        if (xEnd < 0 || xEnd >= end) {
+            return TileKey.INVALID;
+        }
+        int zoom = parseNumber(uri, layerEnd + 1, zoomEnd);
+        int x = parseNumber(uri, zoomEnd + 1, xEnd);
+        int y = parseNumber(uri, xEnd + 1, end);
+        if (zoom < 0 || x < 0 || y < 0) {
+            return TileKey.INVALID;
+        }
+        int layerIndex = TileKey.layerIndex(uri, 1, layerEnd);
+        return TileKey.encode(layerIndex, zoom, x, y);
+    }
+
+    // x=&y=&z=&map= in any order, the first value of a parameter wins
+    private static long parseQuery(String uri, int start) {
+        int zoom = -1;
+        int x = -1;
+        int y = -1;
+        int mapStart = -1;
+        int mapEnd = -1;
+        int length = uri.length();
+        int paramStart = start;
+        while (paramStart < length) {
+            int paramEnd = uri.indexOf('&', paramStart);
+            if (paramEnd < 0) {
+                paramEnd = length;
+            }
+            if (paramEnd - paramStart > 2 && uri.charAt(paramStart + 1) == '=') {
+                char name = uri.charAt(paramStart);
+                if (name == 'z' && zoom < 0) {
+                    zoom = parseNumber(uri, paramStart + 2, paramEnd);
+                    if (zoom < 0) {
+                        return TileKey.INVALID;
+                    }
+                } else if (name == 'x' && x < 0) {
+                    x = parseNumber(uri, paramStart + 2, paramEnd);
+                    if (x < 0) {
+                        return TileKey.INVALID;
+                    }
+                } else if (name == 'y' && y < 0) {
+                    y = parseNumber(uri, paramStart + 2, paramEnd);
+                    if (y < 0) {
+                        return TileKey.INVALID;
+                    }
+                }
+            } else if (mapStart < 0 && uri.startsWith("map=", paramStart)) {
+                mapStart = paramStart + 4;
+                mapEnd = paramEnd;
+            }
+            paramStart = paramEnd + 1;
+        }
+        if (zoom < 0 || x < 0 || y < 0) {
+            return TileKey.INVALID;
+        }
+        int layerIndex = mapStart >= 0 ? LayerRegistry.getInstance().getLayerIndexOfMap(uri, mapStart, mapEnd) : -1;
+        if (layerIndex < 0) {
+            layerIndex = LayerRegistry.getInstance().getDefaultLayerIndex();
+        }
+        return TileKey.encode(layerIndex, zoom, x, y);
+    }
+
+    /**
+     * Parse a non negative decimal number in [start, end)
+     *
+     * @return -1 if it is empty, not a number or too large to be a tile coordinate
+     */
+    static int parseNumber(CharSequence s, int start, int end) {
+        if (start >= end || end - start > 9) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
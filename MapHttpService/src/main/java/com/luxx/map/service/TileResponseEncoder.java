@@ -0,0 +1,25 @@
+package com.luxx.map.service;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+
+/**
+ * Map服务，HTTP/1.1响应编码
+ * 其他响应由HttpResponseEncoder编码，EncodedResponse的字节直接写出
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public class TileResponseEncoder extends HttpResponseEncoder {
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        // Only written between two complete responses, the encoder state is always back at the start
+        if (msg instanceof EncodedResponse) {
+            ctx.write(((EncodedResponse) msg).content(), promise);
+        } else {
+            super.write(ctx, msg, promise);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.luxx.map.service;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.luxx.map.util.PropertiesUtil;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Map服务，热点瓦片的已编码响应
+ * keep-alive连接上的200响应（状态行、header和瓦片内容）按瓦片编码成一个buffer，保存在按Key直接寻址的槽中。
+ * 命中时写出它的一个retainedDuplicate，不再创建HttpResponse、按名称设置header和编码
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public class TileResponseHeaders {
+    private static final byte[] KEEP_ALIVE_END = (HttpHeaders.Names.CONNECTION + ": "
+            + HttpHeaders.Values.KEEP_ALIVE + "\r\n\r\n").getBytes(CharsetUtil.US_ASCII);
+    // Key, strings and buffer objects of an entry
+    private static final int ENTRY_OVERHEAD = 256;
+    // Expected size of a response, sets the number of slots
+    private static final int AVERAGE_RESPONSE_BYTES = 16384;
+
+    private final long maxBytes;
+    private final boolean enabled;
+    private volatile Table table;
+
+    private static class TileResponseHeadersHolder {
+        private static final TileResponseHeaders instance = new TileResponseHeaders();
+    }
+
+    public static TileResponseHeaders getInstance() {
+        return TileResponseHeadersHolder.instance;
+    }
+
+    private TileResponseHeaders() {
+        maxBytes = PropertiesUtil.getInstance().GetResponseHeaderCacheMaxBytes();
+        enabled = maxBytes > 0;
+        table = new Table(maxBytes);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The complete 200 keep-alive response of the tile, the caller still owns the tile content
+     *
+     * @return null if the response does not fit in the cache, it is encoded the usual way then
+     */
+    public EncodedResponse encode(long tileKey, Tile tile) {
+        Table current = table;
+        int slot = TileKey.hash(tileKey) & current.mask;
+        Entry entry = current.entries.get(slot);
+        // Another tile in the slot, or the store replaced the tile or the cache holds a new copy
+        if (entry == null || entry.tileKey != tileKey || !entry.etag.equals(tile.etag())
+                || entry.lastModified != tile.lastModified()) {
+            Entry created = new Entry(tileKey, tile);
+            if (!current.replace(slot, entry, created, maxBytes)) {
+                return null;
+            }
+            entry = created;
+        }
+        return entry.response.retainedDuplicate();
+    }
+
+    /**
+     * Forget the encoded responses, Cache-Control may have changed with the configuration
+     */
+    public void clear() {
+        table = new Table(maxBytes);
+    }
+
+    public long size() {
+        return table.count.get();
+    }
+
+    // Slots indexed by the hash of the tile key, a new tile takes the slot over
+    private static final class Table {
+        final AtomicReferenceArray<Entry> entries;
+        final int mask;
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicInteger count = new AtomicInteger();
+
+        Table(long maxBytes) {
+            int slots = Integer.highestOneBit((int) Math.min(1 << 20, Math.max(16, maxBytes / AVERAGE_RESPONSE_BYTES)));
+            entries = new AtomicReferenceArray<>(slots);
+            mask = slots - 1;
+        }
+
+        boolean replace(int slot, Entry old, Entry entry, long maxBytes) {
+            long added = entry.weight() - (old != null ? old.weight() : 0);
+            if (bytes.addAndGet(added) > maxBytes || !entries.compareAndSet(slot, old, entry)) {
+                bytes.addAndGet(-added);
+                return false;
+            }
+            if (old == null) {
+                count.incrementAndGet();
+            }
+            return true;
+        }
+    }
+
+    private static final class Entry {
+        final long tileKey;
+        final String etag;
+        final long lastModified;
+        // Direct so the response is written without a copy, freed by the GC
+        final EncodedResponse response;
+
+        Entry(long tileKey, Tile tile) {
+            this.tileKey = tileKey;
+            etag = tile.etag();
+            lastModified = tile.lastModified();
+            StringBuilder head = new StringBuilder(256)
+                    .append("HTTP/1.1 200 OK\r\n")
+                    .append(HttpHeaders.Names.CONTENT_TYPE).append(": image/jpeg\r\n")
+                    .append(HttpHeaders.Names.CONTENT_LENGTH).append(": ").append(tile.length()).append("\r\n")
+                    .append(HttpHeaders.Names.ETAG).append(": ").append(etag).append("\r\n")
+                    .append(HttpHeaders.Names.CACHE_CONTROL).append(": ").append(TileCacheControl.of(tileKey))
+                    .append("\r\n");
+            if (tile.lastModifiedHeader() != null) {
+                head.append(HttpHeaders.Names.LAST_MODIFIED).append(": ").append(tile.lastModifiedHeader())
+                        .append("\r\n");
+            }
+            byte[] bytes = head.toString().getBytes(CharsetUtil.US_ASCII);
+            ByteBuf content = tile.content();
+            ByteBuf buffer = Unpooled.wrappedBuffer(
+                    ByteBuffer.allocateDirect(bytes.length + KEEP_ALIVE_END.length + content.readableBytes()));
+            buffer.setBytes(0, bytes)
+                    .setBytes(bytes.length, KEEP_ALIVE_END)
+                    .setBytes(bytes.length + KEEP_ALIVE_END.length, content, content.readerIndex(),
+                            content.readableBytes());
+            response = new EncodedResponse(Unpooled.unreleasableBuffer(buffer));
+        }
+
+        long weight() {
+            return response.content().capacity() + ENTRY_OVERHEAD;
+        }
+    }
+}
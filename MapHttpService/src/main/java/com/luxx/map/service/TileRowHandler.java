@@ -0,0 +1,10 @@
+package com.luxx.map.service;
+
+import java.io.IOException;
+
+/**
+ * Map服务，逐行处理数据库中的瓦片
+ */
+public interface TileRowHandler {
+    void onTile(int x, int y, int zoom, byte[] tile) throws IOException;
+}
@@ -0,0 +1,203 @@
+package com.luxx.map.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.luxx.map.util.PropertiesUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Map服务，缓存预热
+ * 定期把缓存中访问频率最高的瓦片Key写入快照文件，启动时在监听端口之前并行加载这些瓦片。
+ * 快照中保存图层名而不是图层序号，序号在每次启动时按访问顺序重新分配
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public class TileWarmUp {
+    private static Logger log = LoggerFactory.getLogger(TileWarmUp.class);
+
+    private static final int MAGIC = 0x54574d55;
+    private static final int VERSION = 1;
+
+    private final File snapshotFile;
+    private final int topK;
+    private ScheduledExecutorService snapshotExecutor;
+
+    private static class TileWarmUpHolder {
+        private static final TileWarmUp instance = new TileWarmUp();
+    }
+
+    public static TileWarmUp getInstance() {
+        return TileWarmUpHolder.instance;
+    }
+
+    private TileWarmUp() {
+        String path = PropertiesUtil.getInstance().GetWarmUpPath();
+        snapshotFile = path.isEmpty() ? null : new File(path);
+        topK = PropertiesUtil.getInstance().GetWarmUpTopK();
+    }
+
+    /**
+     * Load the tiles of the last snapshot into the cache and start taking snapshots.
+     * Blocks until the tiles are loaded or warmup.timeout.seconds has passed.
+     */
+    public void start() {
+        if (snapshotFile == null) {
+            return;
+        }
+        replay();
+        int interval = PropertiesUtil.getInstance().GetWarmUpSnapshotInterval();
+        snapshotExecutor = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("tileWarmUp", true));
+        snapshotExecutor.scheduleWithFixedDelay(this::snapshot, interval, interval, TimeUnit.SECONDS);
+    }
+
+    private void replay() {
+        if (!snapshotFile.isFile()) {
+            log.info("No warm-up snapshot " + snapshotFile);
+            return;
+        }
+        long[] keys;
+        try {
+            keys = read(snapshotFile);
+        } catch (IOException e) {
+            log.error("Read warm-up snapshot " + snapshotFile + " failed: " + e.getMessage());
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        int threads = Math.max(1, PropertiesUtil.getInstance().GetWarmUpThreads());
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new DefaultThreadFactory("tileWarmUp"));
+        final CountDownLatch done = new CountDownLatch(keys.length);
+        final AtomicInteger loaded = new AtomicInteger();
+        for (final long key : keys) {
+            executor.execute(() -> {
+                try {
+                    if (MapCache.getInstance().warmTile(key)) {
+                        loaded.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    log.debug("Warm up tile " + TileKey.toString(key) + " failed: " + e.getMessage());
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        try {
+            if (!done.await(PropertiesUtil.getInstance().GetWarmUpTimeoutSeconds(), TimeUnit.SECONDS)) {
+                log.warn("Warm-up timed out, the remaining tiles are loaded on demand");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+        log.info("Warmed up " + loaded.get() + " of " + keys.length + " tiles in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Write the keys of the hottest cached tiles to the snapshot file
+     */
+    public void snapshot() {
+        if (snapshotFile == null) {
+            return;
+        }
+        long[] keys = MapCache.getInstance().getHotKeys(topK);
+        if (keys.length == 0) {
+            return;
+        }
+        File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+        try {
+            write(tmpFile, keys);
+            // renameTo does not replace an existing file on Windows
+            Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            log.debug("Warm-up snapshot of " + keys.length + " tiles written");
+        } catch (IOException e) {
+            log.error("Write warm-up snapshot " + snapshotFile + " failed: " + e.getMessage());
+        }
+    }
+
+    public void destroy() {
+        if (snapshotExecutor != null) {
+            snapshotExecutor.shutdownNow();
+            snapshot();
+        }
+    }
+
+    // [magic][version][layer count][layer names][key count][layer, zoom, x, y]...
+    private static void write(File file, long[] keys) throws IOException {
+        Map<Integer, Integer> layerIds = new HashMap<>();
+        List<String> layers = new ArrayList<>();
+        for (long key : keys) {
+            if (!layerIds.containsKey(TileKey.layerIndex(key))) {
+                layerIds.put(TileKey.layerIndex(key), layers.size());
+                layers.add(TileKey.layer(key));
+            }
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(layers.size());
+            for (String layer : layers) {
+                out.writeUTF(layer);
+            }
+            out.writeInt(keys.length);
+            for (long key : keys) {
+                out.writeShort(layerIds.get(TileKey.layerIndex(key)));
+                out.writeByte(TileKey.zoom(key));
+                out.writeInt(TileKey.x(key));
+                out.writeInt(TileKey.y(key));
+            }
+        }
+    }
+
+    private static long[] read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a warm-up snapshot");
+            }
+            String[] layers = new String[in.readInt()];
+            for (int i = 0; i < layers.length; i++) {
+                layers[i] = in.readUTF();
+            }
+            int count = in.readInt();
+            long[] keys = new long[count];
+            int valid = 0;
+            for (int i = 0; i < count; i++) {
+                String layer = layers[in.readUnsignedShort()];
+                int zoom = in.readByte();
+                int x = in.readInt();
+                int y = in.readInt();
+                long key = TileKey.encode(layer, zoom, x, y);
+                if (key != TileKey.INVALID) {
+                    keys[valid++] = key;
+                }
+            }
+            return valid == count ? keys : Arrays.copyOf(keys, valid);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.luxx.map.store;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.luxx.map.service.Tile;
+import com.luxx.map.service.TileKey;
+import com.luxx.map.service.TileKeyHandler;
+import com.luxx.map.service.TileRowHandler;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * Map服务，MySQL瓦片存储
+ * 瓦片表结构与GMap.NET的gmapnetcache相同，表名可以按图层配置
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public class MysqlTileStore implements TileStore {
+    public static final String DEFAULT_TABLE = "gmapnetcache";
+
+    private static final int BATCH_QUERY_SIZE = 100;
+
+    private final HikariDataSource dataSource;
+    private final String queryTile;
+    private final String queryBounds;
+    private final String scanTiles;
+    private final String queryTiles;
+    private final String countTiles;
+    private final String listLayers;
+    private final String scanTileKeys;
+
+    public MysqlTileStore(String url, String user, String password, String table) {
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl(url);
+        config.setUsername(user);
+        config.setPassword(password);
+        config.addDataSourceProperty("cachePrepStmts", "true");
+        config.addDataSourceProperty("prepStmtCacheSize", "250");
+        config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+        config.setMaximumPoolSize(32);
+        dataSource = new HikariDataSource(config);
+
+        queryTile = "select Tile from " + table + " where X = ? and Y = ? and Zoom = ? and Type = ?";
+        queryBounds = "select min(X), min(Y), max(X), max(Y) from " + table + " where Zoom = ? and Type = ?";
+        scanTiles = "select X, Y, Tile from " + table + " where Zoom = ? and Type = ? "
+                + "and X between ? and ? and Y between ? and ? order by X, Y";
+        queryTiles = "select X, Y, Zoom, Tile from " + table + " where Type = ? and (%s)";
+        countTiles = "select Type, count(*) from " + table + " group by Type";
+        listLayers = "select distinct Type from " + table;
+        scanTileKeys = "select X, Y, Zoom, Type from " + table;
+    }
+
+    @Override
+    public Tile getTile(int x, int y, int zoom, String dbId) throws SQLException {
+        try (Connection dbConnection = dataSource.getConnection();
+             PreparedStatement stm = dbConnection.prepareStatement(queryTile)) {
+            stm.setInt(1, x);
+            stm.setInt(2, y);
+            stm.setInt(3, zoom);
+            stm.setString(4, dbId);
+            try (ResultSet res = stm.executeQuery()) {
+                return res.next() ? Tile.of(res.getBytes(1), 0) : null;
+            }
+        }
+    }
+
+    @Override
+    public Tile[] getTiles(String dbId, int[] zoom, int[] x, int[] y) throws SQLException {
+        Tile[] tiles = new Tile[zoom.length];
+        Map<Long, Integer> positions = new HashMap<>();
+        try (Connection dbConnection = dataSource.getConnection()) {
+            for (int start = 0; start < zoom.length; start += BATCH_QUERY_SIZE) {
+                int end = Math.min(zoom.length, start + BATCH_QUERY_SIZE);
+                StringBuilder terms = new StringBuilder();
+                positions.clear();
+                for (int i = start; i < end; i++) {
+                    terms.append(i == start ? "" : " or ").append("(X = ? and Y = ? and Zoom = ?)");
+                    positions.put(TileKey.encode(0, zoom[i], x[i], y[i]), i);
+                }
+                try (PreparedStatement stm = dbConnection.prepareStatement(String.format(queryTiles, terms))) {
+                    int parameter = 1;
+                    stm.setString(parameter++, dbId);
+                    for (int i = start; i < end; i++) {
+                        stm.setInt(parameter++, x[i]);
+                        stm.setInt(parameter++, y[i]);
+                        stm.setInt(parameter++, zoom[i]);
+                    }
+                    try (ResultSet res = stm.executeQuery()) {
+                        while (res.next()) {
+                            Integer position = positions.get(TileKey.encode(0, res.getInt(3), res.getInt(1), res.getInt(2)));
+                            if (position != null) {
+                                tiles[position] = Tile.of(res.getBytes(4), 0);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return tiles;
+    }
+
+    @Override
+    public int[] getTileBounds(String dbId, int zoom) throws SQLException {
+        try (Connection dbConnection = dataSource.getConnection();
+             PreparedStatement stm = dbConnection.prepareStatement(queryBounds)) {
+            stm.setInt(1, zoom);
+            stm.setString(2, dbId);
+            try (ResultSet res = stm.executeQuery()) {
+                if (res.next() && res.getObject(1) != null) {
+                    return new int[]{res.getInt(1), res.getInt(2), res.getInt(3), res.getInt(4)};
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void scanTiles(String dbId, int zoom, int minX, int minY, int maxX, int maxY,
+                          TileRowHandler handler) throws SQLException, IOException {
+        try (Connection dbConnection = dataSource.getConnection();
+             PreparedStatement stm = dbConnection.prepareStatement(scanTiles,
+                     ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            // Integer.MIN_VALUE makes MySQL Connector/J stream the rows one by one
+            stm.setFetchSize(Integer.MIN_VALUE);
+            stm.setInt(1, zoom);
+            stm.setString(2, dbId);
+            stm.setInt(3, minX);
+            stm.setInt(4, maxX);
+            stm.setInt(5, minY);
+            stm.setInt(6, maxY);
+            try (ResultSet res = stm.executeQuery()) {
+                while (res.next()) {
+                    handler.onTile(res.getInt(1), res.getInt(2), zoom, res.getBytes(3));
+                }
+            }
+        }
+    }
+
+    @Override
+    public List<String> listLayers() throws SQLException {
+        List<String> layers = new ArrayList<>();
+        try (Connection dbConnection = dataSource.getConnection();
+             Statement stm = dbConnection.createStatement();
+             ResultSet res = stm.executeQuery(listLayers)) {
+            while (res.next()) {
+                layers.add(res.getString(1));
+            }
+        }
+        return layers;
+    }
+
+    @Override
+    public Map<String, Long> countTilesByLayer() throws SQLException {
+        Map<String, Long> counts = new HashMap<>();
+        try (Connection dbConnection = dataSource.getConnection();
+             Statement stm = dbConnection.createStatement();
+             ResultSet res = stm.executeQuery(countTiles)) {
+            while (res.next()) {
+                counts.put(res.getString(1), res.getLong(2));
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * The table does not have an auto increment id
+     */
+    @Override
+    public boolean isIncrementalKeyScanSupported() {
+        return false;
+    }
+
+    @Override
+    public long scanTileKeys(long afterId, TileKeyHandler handler) throws SQLException {
+        try (Connection dbConnection = dataSource.getConnection();
+             PreparedStatement stm = dbConnection.prepareStatement(scanTileKeys,
+                     ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            stm.setFetchSize(Integer.MIN_VALUE);
+            try (ResultSet res = stm.executeQuery()) {
+                while (res.next()) {
+                    handler.onTileKey(res.getString(4), res.getInt(3), res.getInt(1), res.getInt(2));
+                }
+            }
+        }
+        return afterId;
+    }
+
+    @Override
+    public void close() {
+        dataSource.close();
+    }
+}
@@ -0,0 +1,507 @@
+package com.luxx.map.store;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.luxx.map.service.Tile;
+import com.luxx.map.service.TileKeyHandler;
+import com.luxx.map.service.TileRowHandler;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteOpenMode;
+
+/**
+ * Map服务，SQLite瓦片存储
+ * 每个工作线程持有一个只读连接和预编译语句，并开启mmap，瓦片数据直接从页缓存读取
+ * 数据库文件被替换(重命名覆盖)后，在后台校验新文件并原子切换到新一代连接；
+ * 旧文件上正在执行的查询完成后，旧一代的连接才关闭
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public class SqliteTileStore implements TileStore {
+    private static Logger log = LoggerFactory.getLogger(SqliteTileStore.class);
+
+    private static final String queryTile = "select Tile from TilesData where id = " +
+            "(select id from Tiles where X = ? and Y = ? and Zoom = ? and Type = ?)";
+    private static final String queryTileWithTime = "select d.Tile, t.CacheTime from Tiles t, TilesData d " +
+            "where t.X = ? and t.Y = ? and t.Zoom = ? and t.Type = ? and d.id = t.id";
+
+    private static final String queryBounds = "select min(X), min(Y), max(X), max(Y) from Tiles " +
+            "where Zoom = ? and Type = ?";
+    private static final String scanTiles = "select t.X, t.Y, d.Tile from Tiles t join TilesData d on t.id = d.id " +
+            "where t.Zoom = ? and t.Type = ? and t.X between ? and ? and t.Y between ? and ? order by t.X, t.Y";
+
+    private static final String queryTiles = "select t.X, t.Y, t.Zoom, d.Tile, %s from Tiles t join TilesData d " +
+            "on d.id = t.id where t.Type = ? and (%s)";
+    private static final int BATCH_QUERY_SIZE = 100;
+
+    private static final String countTiles = "select Type, count(*) from Tiles group by Type";
+    private static final String listLayers = "select distinct Type from Tiles";
+    private static final String scanTileKeys = "select id, X, Y, Zoom, Type from Tiles where id > ? order by id";
+
+    private final String dbPath;
+    private final String dbUrl;
+    private final SQLiteConfig sqliteConfig;
+    private final int maxIdleConnections;
+    private volatile Generation current;
+    private volatile boolean closed = false;
+    // Only touched by the watcher thread
+    private ScheduledExecutorService watcher = null;
+    private String fileVersion;
+    private String pendingFileVersion;
+
+    /**
+     * @param maxIdleConnections connections kept open between queries, more are opened while more threads query
+     *                           at once and closed afterwards
+     */
+    public SqliteTileStore(String dbPath, long mmapSize, int maxIdleConnections) {
+        this.dbPath = dbPath;
+        this.dbUrl = "jdbc:sqlite:" + dbPath;
+        this.sqliteConfig = new SQLiteConfig();
+        this.sqliteConfig.setReadOnly(true);
+        // A connection is used by one thread at a time, so SQLite does not need its own mutex
+        this.sqliteConfig.setOpenMode(SQLiteOpenMode.NOMUTEX);
+        this.sqliteConfig.setPragma(SQLiteConfig.Pragma.MMAP_SIZE, String.valueOf(mmapSize));
+        this.maxIdleConnections = Math.max(1, maxIdleConnections);
+        this.current = new Generation(1, this.maxIdleConnections);
+    }
+
+    /**
+     * Check the file every interval seconds and switch to it once it has been replaced and
+     * stopped changing for one interval. onReloaded runs on the watcher thread after the switch,
+     * when no query is running on the old file any more.
+     */
+    public synchronized void watch(int intervalSeconds, Runnable onReloaded) {
+        if (watcher != null || intervalSeconds <= 0) {
+            return;
+        }
+        fileVersion = fileVersion();
+        watcher = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("sqliteWatcher", true));
+        watcher.scheduleWithFixedDelay(() -> {
+            try {
+                if (checkFile()) {
+                    onReloaded.run();
+                }
+            } catch (Exception e) {
+                log.error("Reload SQLite tile database " + dbPath + " failed: " + e.getMessage());
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    // Identity, size and modification time of the file, null while it does not exist
+    private String fileVersion() {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(Paths.get(dbPath), BasicFileAttributes.class);
+            return attributes.fileKey() + "/" + attributes.size() + "/" + attributes.lastModifiedTime().toMillis();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the store switched to a new file
+     */
+    private boolean checkFile() throws SQLException, InterruptedException {
+        String version = fileVersion();
+        if (version == null || version.equals(fileVersion)) {
+            pendingFileVersion = null;
+            return false;
+        }
+        // Still being written, wait until it is the same on two checks in a row
+        if (!version.equals(pendingFileVersion)) {
+            pendingFileVersion = version;
+            return false;
+        }
+        pendingFileVersion = null;
+        // Open and query the new file before any request is sent to it
+        try (Connection connection = sqliteConfig.createConnection(dbUrl);
+             Statement stm = connection.createStatement();
+             ResultSet res = stm.executeQuery("select count(*) from (select 1 from Tiles limit 1)")) {
+            res.next();
+        }
+        Generation retired = current;
+        current = new Generation(retired.number + 1, maxIdleConnections);
+        fileVersion = version;
+        retire(retired);
+        log.info("Switched to the new SQLite tile database " + dbPath + ", generation " + current.number);
+        // Loads still running on the old file finish before the cached tiles are checked
+        while (retired.users.get() > 0) {
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private Generation acquire() throws SQLException {
+        while (true) {
+            if (closed) {
+                throw new SQLException("SQLite tile store is closed");
+            }
+            Generation generation = current;
+            generation.users.incrementAndGet();
+            if (!generation.retired) {
+                return generation;
+            }
+            release(generation);
+        }
+    }
+
+    private static void release(Generation generation) {
+        if (generation.users.decrementAndGet() == 0 && generation.retired) {
+            generation.closeConnections();
+        }
+    }
+
+    private static void retire(Generation generation) {
+        generation.retired = true;
+        if (generation.users.get() == 0) {
+            generation.closeConnections();
+        }
+    }
+
+    /**
+     * Generation of the database file, increased every time a replaced file is switched to
+     */
+    public int getGeneration() {
+        return current.number;
+    }
+
+    @Override
+    public Tile getTile(int x, int y, int zoom, String dbId) throws SQLException {
+        Generation generation = acquire();
+        try {
+            return getTile(generation, x, y, zoom, dbId);
+        } finally {
+            release(generation);
+        }
+    }
+
+    private Tile getTile(Generation generation, int x, int y, int zoom, String dbId) throws SQLException {
+        TileConnection tileConnection = borrowConnection(generation);
+        ResultSet res = null;
+        try {
+            PreparedStatement stm = tileConnection.statement;
+            stm.setInt(1, x);
+            stm.setInt(2, y);
+            stm.setInt(3, zoom);
+            stm.setString(4, dbId);
+            res = stm.executeQuery();
+            if (res.next()) {
+                long lastModified = tileConnection.withCacheTime ? parseCacheTime(res.getString(2)) : 0;
+                return Tile.of(res.getBytes(1), lastModified);
+            }
+            return null;
+        } catch (SQLException e) {
+            // Drop the connection, a new one is opened when the pool runs out
+            tileConnection.close();
+            throw e;
+        } finally {
+            if (res != null) {
+                try {
+                    res.close();
+                } catch (SQLException e) {
+                }
+            }
+            generation.returnConnection(tileConnection);
+        }
+    }
+
+    /**
+     * Look up several distinct tiles of a layer with one query per BATCH_QUERY_SIZE tiles
+     *
+     * @return the tiles in the order of the coordinates, null where a tile does not exist
+     */
+    @Override
+    public Tile[] getTiles(String dbId, int[] zoom, int[] x, int[] y) throws SQLException {
+        Generation generation = acquire();
+        try {
+            return getTiles(generation, dbId, zoom, x, y);
+        } finally {
+            release(generation);
+        }
+    }
+
+    private Tile[] getTiles(Generation generation, String dbId, int[] zoom, int[] x, int[] y) throws SQLException {
+        TileConnection tileConnection = borrowConnection(generation);
+        try {
+            return getTiles(tileConnection, dbId, zoom, x, y);
+        } finally {
+            generation.returnConnection(tileConnection);
+        }
+    }
+
+    private Tile[] getTiles(TileConnection tileConnection, String dbId, int[] zoom, int[] x, int[] y)
+            throws SQLException {
+        Tile[] tiles = new Tile[zoom.length];
+        Map<Long, Integer> positions = new HashMap<>();
+        for (int start = 0; start < zoom.length; start += BATCH_QUERY_SIZE) {
+            int end = Math.min(zoom.length, start + BATCH_QUERY_SIZE);
+            StringBuilder terms = new StringBuilder();
+            positions.clear();
+            for (int i = start; i < end; i++) {
+                terms.append(i == start ? "" : " or ").append("(t.X = ? and t.Y = ? and t.Zoom = ?)");
+                positions.put(coordinates(zoom[i], x[i], y[i]), i);
+            }
+            String sql = String.format(queryTiles, tileConnection.withCacheTime ? "t.CacheTime" : "null", terms);
+            try (PreparedStatement stm = tileConnection.connection.prepareStatement(sql)) {
+                int parameter = 1;
+                stm.setString(parameter++, dbId);
+                for (int i = start; i < end; i++) {
+                    stm.setInt(parameter++, x[i]);
+                    stm.setInt(parameter++, y[i]);
+                    stm.setInt(parameter++, zoom[i]);
+                }
+                try (ResultSet res = stm.executeQuery()) {
+                    while (res.next()) {
+                        Integer position = positions.get(coordinates(res.getInt(3), res.getInt(1), res.getInt(2)));
+                        if (position != null) {
+                            tiles[position] = Tile.of(res.getBytes(4), parseCacheTime(res.getString(5)));
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                tileConnection.close();
+                throw e;
+            }
+        }
+        return tiles;
+    }
+
+    private static long coordinates(int zoom, int x, int y) {
+        return ((long) zoom << 48) | ((long) x << 24) | y;
+    }
+
+    /**
+     * @return {minX, minY, maxX, maxY} of the tiles in the zoom level, null if there is no tile
+     */
+    @Override
+    public int[] getTileBounds(String dbId, int zoom) throws SQLException {
+        try (Connection connection = sqliteConfig.createConnection(dbUrl);
+             PreparedStatement stm = connection.prepareStatement(queryBounds)) {
+            stm.setInt(1, zoom);
+            stm.setString(2, dbId);
+            try (ResultSet res = stm.executeQuery()) {
+                if (res.next() && res.getObject(1) != null) {
+                    return new int[]{res.getInt(1), res.getInt(2), res.getInt(3), res.getInt(4)};
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Iterate the tiles in a range with a cursor on its own connection, ordered by X and Y
+     */
+    @Override
+    public void scanTiles(String dbId, int zoom, int minX, int minY, int maxX, int maxY,
+                          TileRowHandler handler) throws SQLException, IOException {
+        try (Connection connection = sqliteConfig.createConnection(dbUrl);
+             PreparedStatement stm = connection.prepareStatement(scanTiles)) {
+            stm.setInt(1, zoom);
+            stm.setString(2, dbId);
+            stm.setInt(3, minX);
+            stm.setInt(4, maxX);
+            stm.setInt(5, minY);
+            stm.setInt(6, maxY);
+            try (ResultSet res = stm.executeQuery()) {
+                while (res.next()) {
+                    handler.onTile(res.getInt(1), res.getInt(2), zoom, res.getBytes(3));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of tiles of every layer
+     */
+    @Override
+    public List<String> listLayers() throws SQLException {
+        List<String> layers = new ArrayList<>();
+        try (Connection connection = sqliteConfig.createConnection(dbUrl);
+             Statement stm = connection.createStatement();
+             ResultSet res = stm.executeQuery(listLayers)) {
+            while (res.next()) {
+                layers.add(res.getString(1));
+            }
+        }
+        return layers;
+    }
+
+    @Override
+    public Map<String, Long> countTilesByLayer() throws SQLException {
+        Map<String, Long> counts = new HashMap<>();
+        try (Connection connection = sqliteConfig.createConnection(dbUrl);
+             Statement stm = connection.createStatement();
+             ResultSet res = stm.executeQuery(countTiles)) {
+            while (res.next()) {
+                counts.put(res.getString(1), res.getLong(2));
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * The Tiles table has an auto increment id
+     */
+    @Override
+    public boolean isIncrementalKeyScanSupported() {
+        return true;
+    }
+
+    /**
+     * Iterate the key columns of the tiles added after the row id, in row id order
+     *
+     * @return the largest row id seen, afterId if there is no new tile
+     */
+    @Override
+    public long scanTileKeys(long afterId, TileKeyHandler handler) throws SQLException {
+        long lastId = afterId;
+        try (Connection connection = sqliteConfig.createConnection(dbUrl);
+             PreparedStatement stm = connection.prepareStatement(scanTileKeys)) {
+            stm.setLong(1, afterId);
+            try (ResultSet res = stm.executeQuery()) {
+                while (res.next()) {
+                    lastId = res.getLong(1);
+                    handler.onTileKey(res.getString(5), res.getInt(4), res.getInt(2), res.getInt(3));
+                }
+            }
+        }
+        return lastId;
+    }
+
+    // The most recently used idle connection of the generation, or a new one. It goes back with returnConnection.
+    private TileConnection borrowConnection(Generation generation) throws SQLException {
+        TileConnection tileConnection = generation.idleConnections.pollFirst();
+        if (tileConnection != null) {
+            return tileConnection;
+        }
+        Connection connection = sqliteConfig.createConnection(dbUrl);
+        try {
+            boolean withCacheTime = hasCacheTime(generation, connection);
+            PreparedStatement statement = connection.prepareStatement(withCacheTime ? queryTileWithTime : queryTile);
+            tileConnection = new TileConnection(connection, statement, withCacheTime);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        log.debug("Open SQLite tile connection of generation " + generation.number + " for thread "
+                + Thread.currentThread().getName());
+        return tileConnection;
+    }
+
+    // Tiles of GMap.NET databases since v5 have a CacheTime column, used as Last-Modified
+    private static boolean hasCacheTime(Generation generation, Connection connection) throws SQLException {
+        Boolean withCacheTime = generation.hasCacheTime;
+        if (withCacheTime == null) {
+            withCacheTime = false;
+            try (Statement stm = connection.createStatement();
+                 ResultSet res = stm.executeQuery("pragma table_info(Tiles)")) {
+                while (res.next()) {
+                    if ("CacheTime".equalsIgnoreCase(res.getString("name"))) {
+                        withCacheTime = true;
+                    }
+                }
+            }
+            generation.hasCacheTime = withCacheTime;
+        }
+        return withCacheTime;
+    }
+
+    private static long parseCacheTime(String cacheTime) {
+        if (cacheTime == null || cacheTime.length() < 19) {
+            return 0;
+        }
+        try {
+            return Timestamp.valueOf(cacheTime.replace('T', ' ')).getTime();
+        } catch (IllegalArgumentException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (watcher != null) {
+            watcher.shutdownNow();
+        }
+        retire(current);
+    }
+
+    // Connections to one version of the database file, closed once it is retired and no query uses it.
+    // Connections in use are returned before the query releases the generation.
+    private static class Generation {
+        private final int number;
+        private final BlockingDeque<TileConnection> idleConnections;
+        private final AtomicInteger users = new AtomicInteger();
+        private volatile boolean retired = false;
+        private volatile Boolean hasCacheTime = null;
+
+        Generation(int number, int maxIdleConnections) {
+            this.number = number;
+            this.idleConnections = new LinkedBlockingDeque<>(maxIdleConnections);
+        }
+
+        // A closed connection or one more than the pool keeps is dropped
+        void returnConnection(TileConnection tileConnection) {
+            if (tileConnection.closed || !idleConnections.offerFirst(tileConnection)) {
+                tileConnection.close();
+            }
+        }
+
+        void closeConnections() {
+            TileConnection tileConnection;
+            while ((tileConnection = idleConnections.pollFirst()) != null) {
+                tileConnection.close();
+            }
+        }
+    }
+
+    private static class TileConnection {
+        private final Connection connection;
+        private final PreparedStatement statement;
+        private final boolean withCacheTime;
+        private boolean closed = false;
+
+        TileConnection(Connection connection, PreparedStatement statement, boolean withCacheTime) {
+            this.connection = connection;
+            this.statement = statement;
+            this.withCacheTime = withCacheTime;
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                statement.close();
+            } catch (Exception e) {
+            }
+            try {
+                connection.close();
+            } catch (Exception e) {
+            }
+        }
+    }
+}
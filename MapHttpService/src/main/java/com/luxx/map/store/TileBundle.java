@@ -0,0 +1,289 @@
+package com.luxx.map.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Date;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.luxx.map.service.TileKeyHandler;
+import com.luxx.map.service.TileRowHandler;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.DateFormatter;
+
+/**
+ * Map服务，瓦片包文件
+ * 一个文件保存一个图层一个级别的瓦片，格式为：文件头 | 索引 | 瓦片数据。
+ * 索引覆盖瓦片的行列范围，每个格子12字节(偏移8字节 + 长度4字节)，长度为0表示没有该瓦片。
+ * 文件只打开一次，索引和瓦片都从同一个打开的文件读取，文件被替换后仍读到一致的旧内容，直到换成新的瓦片包
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public final class TileBundle {
+    public static final int MAGIC = 0x54424e44;
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 32;
+    public static final int INDEX_ENTRY_BYTES = 12;
+    public static final long MAX_CELLS = Integer.MAX_VALUE / INDEX_ENTRY_BYTES;
+    public static final String SUFFIX = ".bundle";
+    // How often the path is checked for a replaced file
+    private static final long CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final File file;
+    private final FileChannel channel;
+    private final String fileVersion;
+    private final int zoom;
+    private final int minX;
+    private final int minY;
+    private final int width;
+    private final int height;
+    private final MappedByteBuffer index;
+    private final long lastModified;
+    private final String lastModifiedHeader;
+    // Reads and file regions in progress, the channel is closed once the bundle is retired and no longer used
+    private final AtomicInteger users = new AtomicInteger();
+    private volatile boolean retired = false;
+    private volatile long lastChecked = System.nanoTime();
+
+    private TileBundle(File file, FileChannel channel, String fileVersion, int zoom, int minX, int minY,
+                       int width, int height, MappedByteBuffer index) {
+        this.file = file;
+        this.channel = channel;
+        this.fileVersion = fileVersion;
+        this.zoom = zoom;
+        this.minX = minX;
+        this.minY = minY;
+        this.width = width;
+        this.height = height;
+        this.index = index;
+        this.lastModified = file.lastModified();
+        this.lastModifiedHeader = DateFormatter.format(new Date(lastModified));
+    }
+
+    public static TileBundle open(File file) throws IOException {
+        // The version is read before opening, a file replaced in between is found by the next check
+        String fileVersion = fileVersion(file);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+            }
+            header.flip();
+            if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException(file + " is not a tile bundle");
+            }
+            int zoom = header.getInt();
+            int minX = header.getInt();
+            int minY = header.getInt();
+            int width = header.getInt();
+            int height = header.getInt();
+            long indexBytes = (long) width * height * INDEX_ENTRY_BYTES;
+            if (width <= 0 || height <= 0 || indexBytes > Integer.MAX_VALUE
+                    || HEADER_BYTES + indexBytes > channel.size()) {
+                throw new IOException(file + " has a corrupted index");
+            }
+            MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, indexBytes);
+            return new TileBundle(file, channel, fileVersion, zoom, minX, minY, width, height, index);
+        } catch (IOException | RuntimeException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    // Identity, size and modification time of the file, null while it does not exist
+    private static String fileVersion(File file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            return attributes.fileKey() + "/" + attributes.size() + "/" + attributes.lastModifiedTime().toMillis();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Check, at most once a second, whether the path now names another file than the one opened
+     */
+    public boolean isReplaced() {
+        long now = System.nanoTime();
+        if (now - lastChecked < CHECK_INTERVAL_NANOS) {
+            return false;
+        }
+        lastChecked = now;
+        return !Objects.equals(fileVersion, fileVersion(file));
+    }
+
+    /**
+     * Use the bundle until release, fails once the bundle is retired
+     */
+    public boolean acquire() {
+        users.incrementAndGet();
+        if (!retired) {
+            return true;
+        }
+        release();
+        return false;
+    }
+
+    public void release() {
+        if (users.decrementAndGet() == 0 && retired) {
+            closeChannel();
+        }
+    }
+
+    /**
+     * No new use of the bundle, the file is closed after the reads and file regions in progress
+     */
+    public void retire() {
+        retired = true;
+        if (users.get() == 0) {
+            closeChannel();
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getZoom() {
+        return zoom;
+    }
+
+    /**
+     * @return {minX, minY, maxX, maxY} of the range covered by the index
+     */
+    public int[] getBounds() {
+        return new int[]{minX, minY, minX + width - 1, minY + height - 1};
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Last-Modified header value, the time the bundle was exported
+     */
+    public String getLastModifiedHeader() {
+        return lastModifiedHeader;
+    }
+
+    /**
+     * @return offset of the tile in the file, 0 if the bundle does not have the tile
+     */
+    public long offsetOf(int x, int y) {
+        int cell = cellOf(x, y);
+        if (cell < 0) {
+            return 0;
+        }
+        return index.getLong(cell * INDEX_ENTRY_BYTES);
+    }
+
+    /**
+     * @return length of the tile, 0 if the bundle does not have the tile
+     */
+    public int lengthOf(int x, int y) {
+        int cell = cellOf(x, y);
+        if (cell < 0) {
+            return 0;
+        }
+        return index.getInt(cell * INDEX_ENTRY_BYTES + 8);
+    }
+
+    /**
+     * @return the tile bytes, null if the bundle does not have the tile
+     */
+    public byte[] readTile(int x, int y) throws IOException {
+        int length = lengthOf(x, y);
+        if (length <= 0) {
+            return null;
+        }
+        return read(channel, offsetOf(x, y), length);
+    }
+
+    /**
+     * Region of the tile in the open file for sendfile, it keeps the bundle in use until it is released.
+     * Only called while the caller holds the bundle.
+     */
+    public FileRegion newFileRegion(int x, int y) {
+        users.incrementAndGet();
+        return new BundleFileRegion(this, offsetOf(x, y), lengthOf(x, y));
+    }
+
+    /**
+     * Iterate the tiles in a range ordered by X and Y
+     */
+    public void scanTiles(int fromX, int fromY, int toX, int toY, TileRowHandler handler) throws IOException {
+        for (int x = Math.max(fromX, minX); x <= Math.min(toX, minX + width - 1); x++) {
+            for (int y = Math.max(fromY, minY); y <= Math.min(toY, minY + height - 1); y++) {
+                int length = lengthOf(x, y);
+                if (length > 0) {
+                    handler.onTile(x, y, zoom, read(channel, offsetOf(x, y), length));
+                }
+            }
+        }
+    }
+
+    /**
+     * Iterate the coordinates of the tiles from the index only
+     */
+    public void scanTileKeys(String layer, TileKeyHandler handler) {
+        for (int row = 0; row < height; row++) {
+            for (int column = 0; column < width; column++) {
+                if (index.getInt((row * width + column) * INDEX_ENTRY_BYTES + 8) > 0) {
+                    handler.onTileKey(layer, zoom, minX + column, minY + row);
+                }
+            }
+        }
+    }
+
+    private static byte[] read(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Tile bundle is truncated");
+            }
+        }
+        return buffer.array();
+    }
+
+    private int cellOf(int x, int y) {
+        int column = x - minX;
+        int row = y - minY;
+        if (column < 0 || row < 0 || column >= width || row >= height) {
+            return -1;
+        }
+        return row * width + column;
+    }
+
+    // The channel is shared by the bundle, releasing the region releases the bundle instead of closing it
+    private static final class BundleFileRegion extends DefaultFileRegion {
+        private final TileBundle bundle;
+
+        BundleFileRegion(TileBundle bundle, long position, long count) {
+            super(bundle.channel, position, count);
+            this.bundle = bundle;
+        }
+
+        @Override
+        protected void deallocate() {
+            bundle.release();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.luxx.map.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import com.luxx.map.service.MapDbOperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Map服务，瓦片包导出工具
+ * 通过MapDbOperation读取配置的数据库，为每个级别生成一个瓦片包文件
+ * 用法：TileBundleExporter {输出目录} {图层} {最小级别} {最大级别}
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public class TileBundleExporter {
+    private static Logger log = LoggerFactory.getLogger(TileBundleExporter.class);
+
+    public static void export(String outputPath, String layer, int zoom) throws Exception {
+        int[] bounds = MapDbOperation.getTileBounds(layer, zoom);
+        if (bounds == null) {
+            log.info("No tile in layer " + layer + " zoom " + zoom);
+            return;
+        }
+        final int minX = bounds[0];
+        final int minY = bounds[1];
+        final int width = bounds[2] - bounds[0] + 1;
+        final int height = bounds[3] - bounds[1] + 1;
+        long cells = (long) width * height;
+        if (cells > TileBundle.MAX_CELLS) {
+            log.warn("Layer " + layer + " zoom " + zoom + " covers " + cells + " cells, too large for one bundle");
+            return;
+        }
+
+        File layerDir = new File(outputPath, layer);
+        if (!layerDir.isDirectory() && !layerDir.mkdirs()) {
+            throw new IOException("Can not create directory " + layerDir);
+        }
+        File file = new File(layerDir, zoom + TileBundle.SUFFIX);
+        // Written to a temporary file and renamed, the server never opens a partial bundle
+        File tmpFile = new File(layerDir, zoom + TileBundle.SUFFIX + ".tmp");
+        long indexBytes = cells * TileBundle.INDEX_ENTRY_BYTES;
+        final long[] tileCount = {0};
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(tmpFile, "rw")) {
+            randomAccessFile.setLength(0);
+            final FileChannel channel = randomAccessFile.getChannel();
+            final MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_WRITE, TileBundle.HEADER_BYTES, indexBytes);
+            final long[] position = {TileBundle.HEADER_BYTES + indexBytes};
+            MapDbOperation.scanTiles(layer, zoom, bounds[0], bounds[1], bounds[2], bounds[3], (x, y, z, tile) -> {
+                if (tile == null || tile.length == 0) {
+                    return;
+                }
+                ByteBuffer data = ByteBuffer.wrap(tile);
+                long offset = position[0];
+                while (data.hasRemaining()) {
+                    position[0] += channel.write(data, position[0]);
+                }
+                int cell = (y - minY) * width + (x - minX);
+                index.putLong(cell * TileBundle.INDEX_ENTRY_BYTES, offset);
+                index.putInt(cell * TileBundle.INDEX_ENTRY_BYTES + 8, tile.length);
+                tileCount[0]++;
+            });
+            index.force();
+
+            ByteBuffer header = ByteBuffer.allocate(TileBundle.HEADER_BYTES);
+            header.putInt(TileBundle.MAGIC).putInt(TileBundle.VERSION).putInt(zoom)
+                    .putInt(minX).putInt(minY).putInt(width).putInt(height);
+            header.clear();
+            channel.write(header, 0);
+            channel.force(true);
+        }
+        // Servers holding the old bundle open keep reading it until they notice the new file
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        log.info("Export " + tileCount[0] + " tiles of layer " + layer + " zoom " + zoom + " to " + file);
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 4) {
+            System.out.println("Usage: TileBundleExporter <outputDir> <layer> <minZoom> <maxZoom>");
+            return;
+        }
+        String outputPath = args[0];
+        String layer = args[1];
+        int minZoom = Integer.parseInt(args[2]);
+        int maxZoom = Integer.parseInt(args[3]);
+        if (!MapDbOperation.init()) {
+            log.error("Connect database failed!");
+            return;
+        }
+        try {
+            for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+                export(outputPath, layer, zoom);
+            }
+        } catch (Exception e) {
+            log.error("Export tile bundles failed: " + e.getMessage());
+        } finally {
+            MapDbOperation.destroy();
+        }
+    }
+}
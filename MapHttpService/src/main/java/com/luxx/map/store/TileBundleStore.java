@@ -0,0 +1,220 @@
+package com.luxx.map.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.luxx.map.service.Tile;
+import com.luxx.map.service.TileKey;
+import com.luxx.map.service.TileKeyHandler;
+import com.luxx.map.service.TileRowHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Map服务，瓦片包存储
+ * 瓦片包文件按 {目录}/{图层}/{级别}.bundle 组织，第一次访问时打开并缓存索引，文件被替换后重新打开
+ * 瓦片请求直接sendfile；作为图层的存储后端时，批量、静态地图和导出也从瓦片包读取
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public class TileBundleStore implements TileStore {
+    private static Logger log = LoggerFactory.getLogger(TileBundleStore.class);
+
+    private static final Object MISSING = new Object();
+
+    private final File directory;
+    private final Object[][] bundles = new Object[TileKey.MAX_LAYERS][];
+
+    public TileBundleStore(String path) {
+        this.directory = new File(path);
+        log.info("Serve tile bundles from " + directory.getAbsolutePath());
+    }
+
+    /**
+     * The bundle holding the zoom level of the tile, in use until the caller releases it
+     *
+     * @return null if there is none
+     */
+    public TileBundle acquireBundle(long tileKey) {
+        return acquireBundle(TileKey.layerIndex(tileKey), TileKey.zoom(tileKey), TileKey.layer(tileKey));
+    }
+
+    private TileBundle acquireBundle(int layerIndex, int zoom, String layer) {
+        while (true) {
+            Object[] layerBundles = bundles[layerIndex];
+            Object bundle = layerBundles != null ? layerBundles[zoom] : null;
+            if (bundle == null || (bundle != MISSING && ((TileBundle) bundle).isReplaced())) {
+                bundle = openBundle(layerIndex, zoom, layer, bundle);
+            }
+            if (bundle == MISSING) {
+                return null;
+            }
+            // Retired by a reopen in between, take the new bundle
+            if (((TileBundle) bundle).acquire()) {
+                return (TileBundle) bundle;
+            }
+        }
+    }
+
+    private TileBundle acquireBundle(String layer, int zoom) {
+        int layerIndex = TileKey.layerIndex(layer);
+        if (layerIndex < 0 || zoom < 0 || zoom > TileKey.MAX_ZOOM) {
+            return null;
+        }
+        return acquireBundle(layerIndex, zoom, layer);
+    }
+
+    @Override
+    public Tile getTile(int x, int y, int zoom, String dbId) throws SQLException {
+        TileBundle bundle = acquireBundle(dbId, zoom);
+        if (bundle == null) {
+            return null;
+        }
+        try {
+            byte[] tile = bundle.readTile(x, y);
+            return tile != null ? Tile.of(tile, bundle.getLastModified()) : null;
+        } catch (IOException e) {
+            throw new SQLException("Read tile bundle " + bundle.getFile() + " failed", e);
+        } finally {
+            bundle.release();
+        }
+    }
+
+    @Override
+    public Tile[] getTiles(String dbId, int[] zoom, int[] x, int[] y) throws SQLException {
+        Tile[] tiles = new Tile[zoom.length];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = getTile(x[i], y[i], zoom[i], dbId);
+        }
+        return tiles;
+    }
+
+    @Override
+    public int[] getTileBounds(String dbId, int zoom) {
+        TileBundle bundle = acquireBundle(dbId, zoom);
+        if (bundle == null) {
+            return null;
+        }
+        try {
+            return bundle.getBounds();
+        } finally {
+            bundle.release();
+        }
+    }
+
+    @Override
+    public void scanTiles(String dbId, int zoom, int minX, int minY, int maxX, int maxY,
+                          TileRowHandler handler) throws IOException {
+        TileBundle bundle = acquireBundle(dbId, zoom);
+        if (bundle != null) {
+            try {
+                bundle.scanTiles(minX, minY, maxX, maxY, handler);
+            } finally {
+                bundle.release();
+            }
+        }
+    }
+
+    /**
+     * The layer directories
+     */
+    @Override
+    public List<String> listLayers() {
+        List<String> layers = new ArrayList<>();
+        File[] layerDirectories = directory.listFiles(File::isDirectory);
+        if (layerDirectories != null) {
+            for (File layerDirectory : layerDirectories) {
+                layers.add(layerDirectory.getName());
+            }
+        }
+        return layers;
+    }
+
+    @Override
+    public Map<String, Long> countTilesByLayer() {
+        final Map<String, Long> counts = new HashMap<>();
+        scanTileKeys(0, (dbId, zoom, x, y) -> counts.merge(dbId, 1L, Long::sum));
+        return counts;
+    }
+
+    @Override
+    public boolean isIncrementalKeyScanSupported() {
+        return false;
+    }
+
+    /**
+     * Iterate the tiles of every bundle in the directory from their indexes
+     */
+    @Override
+    public long scanTileKeys(long afterId, TileKeyHandler handler) {
+        File[] layerDirectories = directory.listFiles(File::isDirectory);
+        if (layerDirectories == null) {
+            return afterId;
+        }
+        for (File layerDirectory : layerDirectories) {
+            for (int zoom = 0; zoom <= TileKey.MAX_ZOOM; zoom++) {
+                TileBundle bundle = acquireBundle(layerDirectory.getName(), zoom);
+                if (bundle != null) {
+                    try {
+                        bundle.scanTileKeys(layerDirectory.getName(), handler);
+                    } finally {
+                        bundle.release();
+                    }
+                }
+            }
+        }
+        return afterId;
+    }
+
+    /**
+     * Close the bundle files once the reads and file regions in progress are done
+     */
+    @Override
+    public synchronized void close() {
+        for (Object[] layerBundles : bundles) {
+            if (layerBundles == null) {
+                continue;
+            }
+            for (Object bundle : layerBundles) {
+                if (bundle instanceof TileBundle) {
+                    ((TileBundle) bundle).retire();
+                }
+            }
+        }
+    }
+
+    // Opens the bundle unless another thread already replaced the expected one. A replaced file that
+    // can not be opened leaves the old bundle in place, its open file still holds the old tiles.
+    private synchronized Object openBundle(int layerIndex, int zoom, String layer, Object expected) {
+        Object[] layerBundles = bundles[layerIndex];
+        if (layerBundles == null) {
+            layerBundles = new Object[TileKey.MAX_ZOOM + 1];
+            bundles[layerIndex] = layerBundles;
+        }
+        if (layerBundles[zoom] != expected) {
+            return layerBundles[zoom];
+        }
+        Object bundle = expected != null ? expected : MISSING;
+        File file = new File(new File(directory, layer), zoom + TileBundle.SUFFIX);
+        if (file.isFile()) {
+            try {
+                bundle = TileBundle.open(file);
+                log.info((expected != null ? "Reopen replaced tile bundle " : "Open tile bundle ") + file);
+            } catch (Exception e) {
+                log.error("Open tile bundle " + file + " failed: " + e.getMessage());
+            }
+        }
+        layerBundles[zoom] = bundle;
+        if (expected instanceof TileBundle && bundle != expected) {
+            ((TileBundle) expected).retire();
+        }
+        return bundle;
+    }
+}
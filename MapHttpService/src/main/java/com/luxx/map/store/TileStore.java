@@ -0,0 +1,66 @@
+package com.luxx.map.store;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+import com.luxx.map.service.Tile;
+import com.luxx.map.service.TileKeyHandler;
+import com.luxx.map.service.TileRowHandler;
+
+/**
+ * Map服务，瓦片存储后端
+ * SQLite文件、MySQL表或瓦片包目录，每个图层可以配置自己的存储
+ *
+ * @author luxiaoxun
+ * @version 1.0
+ * @since 2015.06.1
+ */
+public interface TileStore {
+    /**
+     * @return the tile, null if it does not exist
+     */
+    Tile getTile(int x, int y, int zoom, String dbId) throws SQLException;
+
+    /**
+     * @return the tiles in the order of the coordinates, null where a tile does not exist
+     */
+    Tile[] getTiles(String dbId, int[] zoom, int[] x, int[] y) throws SQLException;
+
+    /**
+     * @return {minX, minY, maxX, maxY} of the tiles in the zoom level, null if there is no tile
+     */
+    int[] getTileBounds(String dbId, int zoom) throws SQLException;
+
+    /**
+     * Iterate the tiles in a range of a zoom level ordered by X and Y, without holding the range in memory
+     */
+    void scanTiles(String dbId, int zoom, int minX, int minY, int maxX, int maxY, TileRowHandler handler)
+            throws SQLException, IOException;
+
+    /**
+     * @return the layers the store has tiles of
+     */
+    List<String> listLayers() throws SQLException;
+
+    /**
+     * @return number of tiles of every layer in the store
+     */
+    Map<String, Long> countTilesByLayer() throws SQLException;
+
+    /**
+     * Whether scanTileKeys can return only the tiles added after a row id
+     */
+    boolean isIncrementalKeyScanSupported();
+
+    /**
+     * Iterate the key columns of the tiles, only the tiles added after the row id
+     * if incremental key scan is supported, otherwise all of them.
+     *
+     * @return the largest row id seen
+     */
+    long scanTileKeys(long afterId, TileKeyHandler handler) throws SQLException;
+
+    void close();
+}
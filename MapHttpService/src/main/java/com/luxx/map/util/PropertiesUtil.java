@@ -1,6 +1,10 @@
 package com.luxx.map.util;
 
+import java.io.File;
 import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 import org.slf4j.Logger;
@@ -9,17 +13,54 @@ import org.slf4j.LoggerFactory;
 public class PropertiesUtil {
     private static Logger log = LoggerFactory.getLogger(PropertiesUtil.class);
 
-    private Properties prop = null;
+    // Replaced as a whole on reload, a getter sees either the old or the new file
+    private volatile Properties prop = null;
     private static String propertiesFile = "/mapConfig.properties";
+    private long lastModified = 0;
 
     private PropertiesUtil() {
-        prop = new Properties(System.getProperties());
-        try {
-            InputStream propFile = PropertiesUtil.class.getResourceAsStream(propertiesFile);
-            prop.load(propFile);
+        prop = load();
+        lastModified = getFileLastModified();
+    }
+
+    private static Properties load() {
+        Properties properties = new Properties(System.getProperties());
+        try (InputStream propFile = PropertiesUtil.class.getResourceAsStream(propertiesFile)) {
+            properties.load(propFile);
         } catch (Exception e) {
             log.error("Load properties file " + propertiesFile + " failed. " + e.getMessage());
         }
+        return properties;
+    }
+
+    // 0 if the properties file is not a plain file, e.g. packed in the jar
+    private static long getFileLastModified() {
+        URL url = PropertiesUtil.class.getResource(propertiesFile);
+        if (url == null || !"file".equals(url.getProtocol())) {
+            return 0;
+        }
+        try {
+            return new File(url.toURI()).lastModified();
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Load the properties file again if it changed on disk. Only the settings read after
+     * the reload, such as the layer registry, pick up the new values.
+     *
+     * @return true if the file was reloaded
+     */
+    public synchronized boolean reloadIfModified() {
+        long modified = getFileLastModified();
+        if (modified == 0 || modified == lastModified) {
+            return false;
+        }
+        prop = load();
+        lastModified = modified;
+        log.info("Reloaded properties file " + propertiesFile);
+        return true;
     }
 
     private static class PropertiesUtilHolder {
@@ -36,6 +77,283 @@ public class PropertiesUtil {
     }
 
 
+    public String GetTransport() {
+        String transport = prop.getProperty("server.transport", "auto");
+        return transport.trim();
+    }
+
+    public int GetAcceptorThreads() {
+        String threads = prop.getProperty("server.acceptor.threads", "1");
+        return Integer.parseInt(threads.trim());
+    }
+
+    public int GetIoThreads() {
+        String threads = prop.getProperty("server.io.threads", "0");
+        return Integer.parseInt(threads.trim());
+    }
+
+    /**
+     * HTTP/2 next to HTTP/1.1, h2c on cleartext connections and ALPN h2 with TLS
+     */
+    public boolean GetHttp2Enabled() {
+        String enabled = prop.getProperty("http2.enabled", "false");
+        return Boolean.parseBoolean(enabled.trim());
+    }
+
+    public int GetHttp2MaxConcurrentStreams() {
+        String streams = prop.getProperty("http2.max.concurrent.streams", "256");
+        return Integer.parseInt(streams.trim());
+    }
+
+    /**
+     * PEM certificate chain, empty for cleartext connections
+     */
+    public String GetSslCertPath() {
+        String path = prop.getProperty("ssl.cert.path", "");
+        return path.trim();
+    }
+
+    /**
+     * PKCS#8 PEM private key of the certificate
+     */
+    public String GetSslKeyPath() {
+        String path = prop.getProperty("ssl.key.path", "");
+        return path.trim();
+    }
+
+    public int GetAdminPort() {
+        String port = prop.getProperty("admin.port", "0");
+        return Integer.parseInt(port.trim());
+    }
+
+    /**
+     * Memory for the encoded responses of hot tiles, status line, headers and content, 0 encodes every response
+     */
+    public long GetResponseHeaderCacheMaxBytes() {
+        String maxBytes = prop.getProperty("cache.response.headers.max.bytes", "16777216");
+        return Long.parseLong(maxBytes.trim());
+    }
+
+    /**
+     * host:port of every node in peer mode including this one, empty for a standalone node
+     */
+    public List<String> GetClusterPeers() {
+        List<String> peers = new ArrayList<>();
+        for (String peer : prop.getProperty("cluster.peers", "").split(",")) {
+            if (!peer.trim().isEmpty()) {
+                peers.add(peer.trim());
+            }
+        }
+        return peers;
+    }
+
+    /**
+     * host:port of this node as it is listed in cluster.peers
+     */
+    public String GetClusterSelf() {
+        String self = prop.getProperty("cluster.self", "");
+        return self.trim();
+    }
+
+    public int GetClusterVirtualNodes() {
+        String virtualNodes = prop.getProperty("cluster.virtual.nodes", "128");
+        return Integer.parseInt(virtualNodes.trim());
+    }
+
+    public int GetClusterPeerThreads() {
+        String threads = prop.getProperty("cluster.peer.threads", "2");
+        return Integer.parseInt(threads.trim());
+    }
+
+    public int GetClusterPeerConnections() {
+        String connections = prop.getProperty("cluster.peer.connections", "16");
+        return Integer.parseInt(connections.trim());
+    }
+
+    public long GetClusterPeerTimeoutMillis() {
+        String timeout = prop.getProperty("cluster.peer.timeout.ms", "500");
+        return Long.parseLong(timeout.trim());
+    }
+
+    /**
+     * Seconds a failed peer is skipped, its tiles are loaded locally meanwhile
+     */
+    public int GetClusterPeerRetrySeconds() {
+        String retry = prop.getProperty("cluster.peer.retry.seconds", "5");
+        return Integer.parseInt(retry.trim());
+    }
+
+    /**
+     * Memory cache of the tiles owned by the other nodes
+     */
+    public long GetClusterNearCacheMaxBytes() {
+        String maxBytes = prop.getProperty("cluster.near.cache.max.bytes", "33554432");
+        return Long.parseLong(maxBytes.trim());
+    }
+
+    public long GetNegativeCacheMaxSize() {
+        String maxSize = prop.getProperty("cache.negative.max.size", "100000");
+        return Long.parseLong(maxSize.trim());
+    }
+
+    public int GetNegativeCacheExpireSeconds() {
+        String expire = prop.getProperty("cache.negative.expire.seconds", "600");
+        return Integer.parseInt(expire.trim());
+    }
+
+    public boolean GetCoverageEnabled() {
+        String enabled = prop.getProperty("coverage.enabled", "true");
+        return Boolean.parseBoolean(enabled.trim());
+    }
+
+    public double GetCoverageFpp() {
+        String fpp = prop.getProperty("coverage.fpp", "0.01");
+        return Double.parseDouble(fpp.trim());
+    }
+
+    /**
+     * Seconds between coverage refreshes, incremental for SQLite
+     */
+    public int GetCoverageRefreshInterval() {
+        String interval = prop.getProperty("coverage.refresh.interval", "300");
+        return Integer.parseInt(interval.trim());
+    }
+
+    /**
+     * Seconds between full coverage rebuilds when the stores can not be scanned incrementally (MySQL or
+     * layers on stores of their own), 0 does not use the coverage with such stores
+     */
+    public int GetCoverageRebuildInterval() {
+        String interval = prop.getProperty("coverage.rebuild.interval", "0");
+        return Integer.parseInt(interval.trim());
+    }
+
+    /**
+     * File of the hot tile keys replayed on startup, empty disables warm-up
+     */
+    public String GetWarmUpPath() {
+        String path = prop.getProperty("warmup.path", "");
+        return path.trim();
+    }
+
+    public int GetWarmUpTopK() {
+        String topK = prop.getProperty("warmup.top.k", "10000");
+        return Integer.parseInt(topK.trim());
+    }
+
+    public int GetWarmUpSnapshotInterval() {
+        String interval = prop.getProperty("warmup.snapshot.interval", "300");
+        return Integer.parseInt(interval.trim());
+    }
+
+    public int GetWarmUpThreads() {
+        String threads = prop.getProperty("warmup.threads", "8");
+        return Integer.parseInt(threads.trim());
+    }
+
+    public int GetWarmUpTimeoutSeconds() {
+        String timeout = prop.getProperty("warmup.timeout.seconds", "60");
+        return Integer.parseInt(timeout.trim());
+    }
+
+    public boolean GetPrefetchEnabled() {
+        String enabled = prop.getProperty("prefetch.enabled", "false");
+        return Boolean.parseBoolean(enabled.trim());
+    }
+
+    /**
+     * Neighbour tiles prefetched per second at most
+     */
+    public double GetPrefetchRate() {
+        String rate = prop.getProperty("prefetch.rate", "50");
+        return Double.parseDouble(rate.trim());
+    }
+
+    /**
+     * Neighbours are only prefetched while the tile loader queue is shorter than this
+     */
+    public int GetPrefetchMaxQueue() {
+        String maxQueue = prop.getProperty("prefetch.max.queue", "16");
+        return Integer.parseInt(maxQueue.trim());
+    }
+
+    public int GetBatchMaxTiles() {
+        String maxTiles = prop.getProperty("batch.max.tiles", "256");
+        return Integer.parseInt(maxTiles.trim());
+    }
+
+    /**
+     * Exports running at the same time, each holds a database cursor
+     */
+    public int GetExportThreads() {
+        String threads = prop.getProperty("export.threads", "2");
+        return Integer.parseInt(threads.trim());
+    }
+
+    public int GetExportQueueSize() {
+        String queueSize = prop.getProperty("export.queue.size", "4");
+        return Integer.parseInt(queueSize.trim());
+    }
+
+    public int GetRenderThreads() {
+        String threads = prop.getProperty("render.threads", String.valueOf(Runtime.getRuntime().availableProcessors()));
+        return Integer.parseInt(threads.trim());
+    }
+
+    public int GetRenderQueueSize() {
+        String queueSize = prop.getProperty("render.queue.size", "64");
+        return Integer.parseInt(queueSize.trim());
+    }
+
+    /**
+     * Largest width or height of a static map in pixels
+     */
+    public int GetRenderMaxSize() {
+        String maxSize = prop.getProperty("render.max.size", "1024");
+        return Integer.parseInt(maxSize.trim());
+    }
+
+    public long GetRenderCacheMaxBytes() {
+        String maxBytes = prop.getProperty("render.cache.max.bytes", "67108864");
+        return Long.parseLong(maxBytes.trim());
+    }
+
+    public int GetRenderCacheExpireSeconds() {
+        String expire = prop.getProperty("render.cache.expire.seconds", "600");
+        return Integer.parseInt(expire.trim());
+    }
+
+    public int GetTileLoaderThreads() {
+        String threads = prop.getProperty("tile.loader.threads", "32");
+        return Integer.parseInt(threads.trim());
+    }
+
+    public int GetTileLoaderQueueSize() {
+        String queueSize = prop.getProperty("tile.loader.queue.size", "1024");
+        return Integer.parseInt(queueSize.trim());
+    }
+
+    /**
+     * Milliseconds a tile miss may wait for the database before it is answered with 503
+     */
+    public long GetTileLoaderDeadlineMillis() {
+        String deadline = prop.getProperty("tile.loader.deadline.ms", "2000");
+        return Long.parseLong(deadline.trim());
+    }
+
+    public int GetTileLoaderRetryAfterSeconds() {
+        String retryAfter = prop.getProperty("tile.loader.retry.after", "1");
+        return Integer.parseInt(retryAfter.trim());
+    }
+
+    /**
+     * Seconds between tile loader statistics log lines, 0 disables them
+     */
+    public int GetTileLoaderStatsInterval() {
+        String interval = prop.getProperty("tile.loader.stats.interval", "60");
+        return Integer.parseInt(interval.trim());
+    }
+
     public int GetDbType() {
         String dbType = prop.getProperty("database.type");
         return Integer.valueOf(dbType);
@@ -46,6 +364,159 @@ public class PropertiesUtil {
         return dbPath;
     }
 
+    public long GetSqliteMmapSize() {
+        String mmapSize = prop.getProperty("database.sqlite.mmap.size", "268435456");
+        return Long.parseLong(mmapSize);
+    }
+
+    /**
+     * Idle connections kept open per SQLite file, 0 for as many as tile loader threads
+     */
+    public int GetSqlitePoolSize() {
+        String poolSize = prop.getProperty("database.sqlite.pool.size", "0");
+        int size = Integer.parseInt(poolSize.trim());
+        return size > 0 ? size : GetTileLoaderThreads();
+    }
+
+    public long GetCacheMaxBytes() {
+        String maxBytes = prop.getProperty("cache.max.bytes", "268435456");
+        return Long.parseLong(maxBytes);
+    }
+
+    public int GetCacheSegments() {
+        String segments = prop.getProperty("cache.segments", "16");
+        return Integer.parseInt(segments);
+    }
+
+    public String GetDiskCachePath() {
+        String path = prop.getProperty("cache.disk.path");
+        return path;
+    }
+
+    public long GetDiskCacheMaxBytes() {
+        String maxBytes = prop.getProperty("cache.disk.max.bytes", "10737418240");
+        return Long.parseLong(maxBytes);
+    }
+
+    public int GetDiskCacheSegmentBytes() {
+        String segmentBytes = prop.getProperty("cache.disk.segment.bytes", "67108864");
+        return Integer.parseInt(segmentBytes);
+    }
+
+    public String GetBundlePath() {
+        String path = prop.getProperty("bundle.path");
+        return path;
+    }
+
+    /**
+     * Cache-Control max-age in seconds, looked up from http.cache.max.age.{layer}.{zoom},
+     * then http.cache.max.age.{layer}, then http.cache.max.age, only the last one if the layer is null
+     */
+    public int GetCacheMaxAge(String layer, int zoom) {
+        String maxAge = null;
+        if (layer != null) {
+            maxAge = prop.getProperty("http.cache.max.age." + layer + "." + zoom);
+            if (maxAge == null) {
+                maxAge = prop.getProperty("http.cache.max.age." + layer);
+            }
+        }
+        if (maxAge == null) {
+            maxAge = prop.getProperty("http.cache.max.age", "86400");
+        }
+        return Integer.parseInt(maxAge.trim());
+    }
+
+    /**
+     * Seconds between checks of the SQLite files for a replaced file, 0 disables it
+     */
+    public int GetSqliteReloadInterval() {
+        String interval = prop.getProperty("database.sqlite.reload.interval", "10");
+        return Integer.parseInt(interval.trim());
+    }
+
+    /**
+     * Layer used by the query string form of tile requests without a map parameter
+     */
+    public String GetDefaultLayer() {
+        String layer = prop.getProperty("layer.default", "788865972");
+        return layer.trim();
+    }
+
+    /**
+     * Layers with their own store or cache partition, layers not listed use the database.* store
+     */
+    public List<String> GetLayers() {
+        List<String> layers = new ArrayList<>();
+        for (String layer : prop.getProperty("layers", "").split(",")) {
+            if (!layer.trim().isEmpty()) {
+                layers.add(layer.trim());
+            }
+        }
+        return layers;
+    }
+
+    /**
+     * sqlite, mysql or bundle, empty to keep the layer on the database.* store
+     */
+    public String GetLayerStoreType(String layer) {
+        String type = prop.getProperty("layer." + layer + ".store", "");
+        return type.trim();
+    }
+
+    /**
+     * SQLite file or bundle directory of the layer
+     */
+    public String GetLayerPath(String layer) {
+        String path = prop.getProperty("layer." + layer + ".path", "");
+        return path.trim();
+    }
+
+    public String GetLayerMysqlUrl(String layer) {
+        String url = prop.getProperty("layer." + layer + ".mysql.url", "");
+        return url.trim();
+    }
+
+    public String GetLayerMysqlUser(String layer) {
+        String user = prop.getProperty("layer." + layer + ".mysql.username", "");
+        return user.trim();
+    }
+
+    public String GetLayerMysqlPassword(String layer) {
+        String pswd = prop.getProperty("layer." + layer + ".mysql.password", "");
+        return pswd.trim();
+    }
+
+    public String GetLayerMysqlTable(String layer) {
+        String table = prop.getProperty("layer." + layer + ".mysql.table", "gmapnetcache");
+        return table.trim();
+    }
+
+    /**
+     * Bytes of the layer's own memory cache partition, 0 to share cache.max.bytes with the other layers
+     */
+    public long GetLayerCacheMaxBytes(String layer) {
+        String maxBytes = prop.getProperty("layer." + layer + ".cache.max.bytes", "0");
+        return Long.parseLong(maxBytes.trim());
+    }
+
+    /**
+     * Value of the map parameter selecting the layer in the query string form, empty for none
+     */
+    public String GetLayerMapName(String layer) {
+        String name = prop.getProperty("layer." + layer + ".map", "");
+        return name.trim();
+    }
+
+    public int GetLayerDiscoverInterval() {
+        String interval = prop.getProperty("layer.discover.interval", "300");
+        return Integer.parseInt(interval.trim());
+    }
+
+    public int GetLayerReloadInterval() {
+        String interval = prop.getProperty("layer.reload.interval", "10");
+        return Integer.parseInt(interval.trim());
+    }
+
     public String GetMysqlUrl() {
         String url = prop.getProperty("database.mysql.url");
         return url;
@@ -0,0 +1,61 @@
+package com.luxx.map.cache;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.luxx.map.service.TileKey;
+
+public class MissingTileCacheTest {
+    private static final int LAYER_INDEX = TileKey.registerLayer("missingTileCacheTest");
+
+    @Test
+    public void putAndContains() {
+        MissingTileCache cache = new MissingTileCache(1024, 60);
+        long tileKey = TileKey.encode(LAYER_INDEX, 10, 3, 4);
+        assertFalse(cache.contains(tileKey));
+        cache.put(tileKey);
+        assertTrue(cache.contains(tileKey));
+        assertFalse(cache.contains(TileKey.encode(LAYER_INDEX, 10, 4, 3)));
+    }
+
+    @Test
+    public void invalidKeyIsNeverContained() {
+        MissingTileCache cache = new MissingTileCache(1024, 60);
+        assertFalse(cache.contains(TileKey.INVALID));
+    }
+
+    @Test
+    public void expiredTileIsNotContained() {
+        MissingTileCache cache = new MissingTileCache(1024, 0);
+        long tileKey = TileKey.encode(LAYER_INDEX, 10, 3, 4);
+        cache.put(tileKey);
+        assertFalse(cache.contains(tileKey));
+    }
+
+    @Test
+    public void invalidate() {
+        MissingTileCache cache = new MissingTileCache(1024, 60);
+        long tileKey = TileKey.encode(LAYER_INDEX, 10, 3, 4);
+        long other = TileKey.encode(LAYER_INDEX, 10, 5, 6);
+        cache.put(tileKey);
+        cache.put(other);
+        cache.invalidate(tileKey);
+        assertFalse(cache.contains(tileKey));
+        assertTrue(cache.contains(other));
+        cache.invalidateAll();
+        assertFalse(cache.contains(other));
+    }
+
+    @Test
+    public void newTileTakesTheSlotOver() {
+        MissingTileCache cache = new MissingTileCache(16, 60);
+        long tileKey = TileKey.encode(LAYER_INDEX, 10, 3, 4);
+        cache.put(tileKey);
+        for (int x = 0; x < 1000; x++) {
+            cache.put(TileKey.encode(LAYER_INDEX, 12, x, 0));
+        }
+        assertFalse(cache.contains(tileKey));
+    }
+}
@@ -0,0 +1,57 @@
+package com.luxx.map.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TileCacheControlTest {
+    private static int layerIndex;
+
+    @BeforeClass
+    public static void registerLayer() {
+        layerIndex = TileKey.registerLayer("cacheControlTest");
+    }
+
+    @After
+    public void clearProperties() {
+        // Not in mapConfig.properties, the System properties are the defaults of the configuration
+        System.clearProperty("http.cache.max.age.cacheControlTest");
+        System.clearProperty("http.cache.max.age.cacheControlTest.7");
+        TileCacheControl.clear();
+    }
+
+    @Test
+    public void defaultMaxAge() {
+        assertEquals("public, max-age=86400", TileCacheControl.of(TileKey.encode(layerIndex, 3, 1, 1)));
+        assertEquals("public, max-age=86400", TileCacheControl.of(TileKey.INVALID));
+    }
+
+    @Test
+    public void layerAndZoomMaxAge() {
+        System.setProperty("http.cache.max.age.cacheControlTest", "604800");
+        System.setProperty("http.cache.max.age.cacheControlTest.7", "3600");
+        TileCacheControl.clear();
+        assertEquals("public, max-age=604800", TileCacheControl.of(TileKey.encode(layerIndex, 3, 1, 1)));
+        assertEquals("public, max-age=3600", TileCacheControl.of(TileKey.encode(layerIndex, 7, 1, 1)));
+        assertEquals("public, max-age=86400", TileCacheControl.of(TileKey.INVALID));
+    }
+
+    @Test
+    public void valueIsBuiltOncePerZoom() {
+        long tileKey = TileKey.encode(layerIndex, 5, 1, 1);
+        assertSame(TileCacheControl.of(tileKey), TileCacheControl.of(TileKey.encode(layerIndex, 5, 2, 3)));
+    }
+
+    @Test
+    public void clearPicksUpChangedConfiguration() {
+        long tileKey = TileKey.encode(layerIndex, 4, 1, 1);
+        assertEquals("public, max-age=86400", TileCacheControl.of(tileKey));
+        System.setProperty("http.cache.max.age.cacheControlTest", "60");
+        assertEquals("public, max-age=86400", TileCacheControl.of(tileKey));
+        TileCacheControl.clear();
+        assertEquals("public, max-age=60", TileCacheControl.of(tileKey));
+    }
+}
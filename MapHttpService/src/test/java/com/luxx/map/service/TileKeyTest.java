@@ -0,0 +1,90 @@
+package com.luxx.map.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TileKeyTest {
+
+    @Test
+    public void encodeAndDecode() {
+        int layerIndex = TileKey.registerLayer("tileKeyTest");
+        long key = TileKey.encode("tileKeyTest", 12, 3001, 1722);
+        assertEquals(layerIndex, TileKey.layerIndex(key));
+        assertEquals("tileKeyTest", TileKey.layer(key));
+        assertEquals(12, TileKey.zoom(key));
+        assertEquals(3001, TileKey.x(key));
+        assertEquals(1722, TileKey.y(key));
+        assertEquals(key, TileKey.encode(layerIndex, 12, 3001, 1722));
+    }
+
+    @Test
+    public void encodeMaxZoomCorners() {
+        int layerIndex = TileKey.registerLayer("tileKeyTest");
+        int max = (1 << TileKey.MAX_ZOOM) - 1;
+        long key = TileKey.encode(layerIndex, TileKey.MAX_ZOOM, max, max);
+        assertEquals(TileKey.MAX_ZOOM, TileKey.zoom(key));
+        assertEquals(max, TileKey.x(key));
+        assertEquals(max, TileKey.y(key));
+        assertEquals(0, TileKey.x(TileKey.encode(layerIndex, 0, 0, 0)));
+    }
+
+    @Test
+    public void outOfRangeIsInvalid() {
+        int layerIndex = TileKey.registerLayer("tileKeyTest");
+        assertEquals(TileKey.INVALID, TileKey.encode(layerIndex, TileKey.MAX_ZOOM + 1, 0, 0));
+        assertEquals(TileKey.INVALID, TileKey.encode(layerIndex, -1, 0, 0));
+        assertEquals(TileKey.INVALID, TileKey.encode(layerIndex, 3, 8, 0));
+        assertEquals(TileKey.INVALID, TileKey.encode(layerIndex, 3, 0, 8));
+        assertEquals(TileKey.INVALID, TileKey.encode(layerIndex, 3, -1, 0));
+        assertEquals(TileKey.INVALID, TileKey.encode(-1, 3, 0, 0));
+        assertEquals(TileKey.INVALID, TileKey.encode(TileKey.MAX_LAYERS, 3, 0, 0));
+    }
+
+    @Test
+    public void unknownLayerIsNotRegistered() {
+        assertEquals(TileKey.INVALID, TileKey.encode("tileKeyTestUnknown", 1, 0, 0));
+        assertEquals(-1, TileKey.layerIndex("tileKeyTestUnknown"));
+    }
+
+    @Test
+    public void registerLayerIsIdempotent() {
+        int layerIndex = TileKey.registerLayer("tileKeyTestTwice");
+        assertTrue(layerIndex >= 0);
+        assertEquals(layerIndex, TileKey.registerLayer("tileKeyTestTwice"));
+        assertEquals(layerIndex, TileKey.layerIndex("tileKeyTestTwice"));
+        assertEquals("tileKeyTestTwice", TileKey.layerName(layerIndex));
+    }
+
+    @Test
+    public void layerIndexOfRange() {
+        int layerIndex = TileKey.registerLayer("tileKeyTestRange");
+        String uri = "/tileKeyTestRange/5/1/2";
+        assertEquals(layerIndex, TileKey.layerIndex(uri, 1, uri.indexOf('/', 1)));
+        assertEquals(-1, TileKey.layerIndex(uri, 1, uri.indexOf('/', 1) - 1));
+        assertEquals(-1, TileKey.layerIndex(uri, 0, uri.indexOf('/', 1)));
+    }
+
+    @Test
+    public void manyLayersAreFound() {
+        int[] indexes = new int[100];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = TileKey.registerLayer("tileKeyTestMany" + i);
+        }
+        for (int i = 0; i < indexes.length; i++) {
+            assertEquals(indexes[i], TileKey.layerIndex("tileKeyTestMany" + i));
+        }
+    }
+
+    @Test
+    public void neighboursHashApart() {
+        int layerIndex = TileKey.registerLayer("tileKeyTest");
+        // x ^ y made every tile collide with its mirror across the diagonal
+        long key = TileKey.encode(layerIndex, 10, 100, 200);
+        long mirrored = TileKey.encode(layerIndex, 10, 200, 100);
+        assertNotEquals(TileKey.hash(key), TileKey.hash(mirrored));
+        assertNotEquals(TileKey.hash(key), TileKey.hash(TileKey.encode(layerIndex, 10, 101, 200)));
+    }
+}
@@ -0,0 +1,85 @@
+package com.luxx.map.service;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TileRequestParserTest {
+    private static int layerIndex;
+    private static int defaultLayerIndex;
+
+    @BeforeClass
+    public static void registerLayers() {
+        layerIndex = TileKey.registerLayer("parserTest");
+        defaultLayerIndex = LayerRegistry.getInstance().getDefaultLayerIndex();
+    }
+
+    @Test
+    public void parsePath() {
+        assertEquals(TileKey.encode(layerIndex, 6, 50, 25), TileRequestParser.parse("/parserTest/6/50/25"));
+        assertEquals(TileKey.encode(layerIndex, 0, 0, 0), TileRequestParser.parse("/parserTest/0/0/0"));
+    }
+
+    @Test
+    public void parsePathWithEmptyQuery() {
+        assertEquals(TileKey.encode(layerIndex, 6, 50, 25), TileRequestParser.parse("/parserTest/6/50/25?"));
+    }
+
+    @Test
+    public void malformedPathIsInvalid() {
+        assertEquals(TileKey.INVALID, TileRequestParser.parse("/"));
+        assertEquals(TileKey.INVALID, TileRequestParser.parse(""));
+        assertEquals(TileKey.INVALID, TileRequestParser.parse("/parserTest/6/50"));
+        assertEquals(TileKey.INVALID, TileRequestParser.parse("/parserTest/6/50/25/1"));
+        assertEquals(TileKey.INVALID, TileRequestParser.parse("//6/50/25"));
+        assertEquals(TileKey.INVALID, TileRequestParser.parse("/parserTest/a/50/25"));
+        assertEquals(TileKey.INVALID, TileRequestParser.parse("/parserTest/6/-1/25"));
+        assertEquals(TileKey.INVALID, TileRequestParser.parse("/parserTest/6/50/"));
+        assertEquals(TileKey.INVALID, TileRequestParser.parse("/parserTest/6/1234567890/25"));
+        assertEquals(TileKey.INVALID, TileRequestParser.parse("parserTest/6/50/25"));
+    }
+
+    @Test
+    public void outOfRangeIsInvalid() {
+        assertEquals(TileKey.INVALID, TileRequestParser.parse("/parserTest/6/64/0"));
+        assertEquals(TileKey.INVALID, TileRequestParser.parse("/parserTest/25/0/0"));
+    }
+
+    @Test
+    public void unknownLayerIsInvalidAndNotRegistered() {
+        assertEquals(TileKey.INVALID, TileRequestParser.parse("/parserTestUnknown/6/50/25"));
+        assertEquals(-1, TileKey.layerIndex("parserTestUnknown"));
+    }
+
+    @Test
+    public void parseQuery() {
+        assertEquals(TileKey.encode(defaultLayerIndex, 3, 5, 3),
+                TileRequestParser.parse("/FileService/image?map=quanguo&type=web&x=5&y=3&z=3"));
+        assertEquals(TileKey.encode(defaultLayerIndex, 3, 5, 3),
+                TileRequestParser.parse("/FileService/image?z=3&y=3&x=5"));
+    }
+
+    @Test
+    public void firstQueryValueWins() {
+        assertEquals(TileKey.encode(defaultLayerIndex, 3, 5, 3),
+                TileRequestParser.parse("/FileService/image?x=5&y=3&z=3&x=6"));
+    }
+
+    @Test
+    public void malformedQueryIsInvalid() {
+        assertEquals(TileKey.INVALID, TileRequestParser.parse("/FileService/image?x=5&y=3"));
+        assertEquals(TileKey.INVALID, TileRequestParser.parse("/FileService/image?x=5&y=3&z="));
+        assertEquals(TileKey.INVALID, TileRequestParser.parse("/FileService/image?x=5&y=b&z=3"));
+        assertEquals(TileKey.INVALID, TileRequestParser.parse("/FileService/image?x=8&y=3&z=3"));
+    }
+
+    @Test
+    public void parseNumber() {
+        assertEquals(123, TileRequestParser.parseNumber("a123b", 1, 4));
+        assertEquals(-1, TileRequestParser.parseNumber("a123b", 1, 1));
+        assertEquals(-1, TileRequestParser.parseNumber("12x", 0, 3));
+        assertEquals(999999999, TileRequestParser.parseNumber("999999999", 0, 9));
+        assertEquals(-1, TileRequestParser.parseNumber("1000000000", 0, 10));
+    }
+}
@@ -0,0 +1,89 @@
+package com.luxx.map.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.CharsetUtil;
+
+public class TileResponseHeadersTest {
+    private static int layerIndex;
+
+    @BeforeClass
+    public static void registerLayer() {
+        layerIndex = TileKey.registerLayer("responseHeadersTest");
+    }
+
+    @Before
+    public void clear() {
+        TileResponseHeaders.getInstance().clear();
+    }
+
+    @Test
+    public void encodeCompleteKeepAliveResponse() {
+        long tileKey = TileKey.encode(layerIndex, 3, 1, 2);
+        Tile tile = Tile.of(new byte[]{1, 2, 3}, 0);
+        EncodedResponse response = TileResponseHeaders.getInstance().encode(tileKey, tile);
+        assertNotNull(response);
+        ByteBuf content = response.content();
+        String head = content.toString(content.readerIndex(), content.readableBytes() - 3, CharsetUtil.US_ASCII);
+        assertTrue(head.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue(head.contains("Content-Type: image/jpeg\r\n"));
+        assertTrue(head.contains("Content-Length: 3\r\n"));
+        assertTrue(head.contains("ETag: " + tile.etag() + "\r\n"));
+        assertTrue(head.contains("Cache-Control: " + TileCacheControl.of(tileKey) + "\r\n"));
+        assertTrue(head.endsWith("Connection: keep-alive\r\n\r\n"));
+        assertEquals(3, content.getByte(content.writerIndex() - 1));
+        response.release();
+    }
+
+    @Test
+    public void lastModifiedIsEncodedWhenKnown() {
+        long tileKey = TileKey.encode(layerIndex, 3, 1, 3);
+        Tile tile = Tile.of(new byte[]{1}, 1000000000000L);
+        EncodedResponse response = TileResponseHeaders.getInstance().encode(tileKey, tile);
+        assertTrue(response.content().toString(CharsetUtil.US_ASCII)
+                .contains("Last-Modified: " + tile.lastModifiedHeader() + "\r\n"));
+        response.release();
+    }
+
+    @Test
+    public void hitReusesEncodedResponse() {
+        long tileKey = TileKey.encode(layerIndex, 4, 1, 2);
+        Tile tile = Tile.of(new byte[]{1, 2, 3}, 0);
+        EncodedResponse first = TileResponseHeaders.getInstance().encode(tileKey, tile);
+        EncodedResponse second = TileResponseHeaders.getInstance().encode(tileKey, tile);
+        assertEquals(1, TileResponseHeaders.getInstance().size());
+        assertEquals(first.content(), second.content());
+        first.release();
+        second.release();
+    }
+
+    @Test
+    public void changedTileIsEncodedAgain() {
+        long tileKey = TileKey.encode(layerIndex, 5, 1, 2);
+        EncodedResponse first = TileResponseHeaders.getInstance().encode(tileKey, Tile.of(new byte[]{1, 2, 3}, 0));
+        Tile changed = Tile.of(new byte[]{4, 5, 6, 7}, 0);
+        EncodedResponse second = TileResponseHeaders.getInstance().encode(tileKey, changed);
+        assertEquals(1, TileResponseHeaders.getInstance().size());
+        assertTrue(second.content().toString(CharsetUtil.US_ASCII).contains("ETag: " + changed.etag() + "\r\n"));
+        assertEquals(first.content().readableBytes() + 1, second.content().readableBytes());
+        first.release();
+        second.release();
+    }
+
+    @Test
+    public void clearForgetsResponses() {
+        EncodedResponse response = TileResponseHeaders.getInstance()
+                .encode(TileKey.encode(layerIndex, 6, 1, 2), Tile.of(new byte[]{1}, 0));
+        response.release();
+        assertEquals(1, TileResponseHeaders.getInstance().size());
+        TileResponseHeaders.getInstance().clear();
+        assertEquals(0, TileResponseHeaders.getInstance().size());
+    }
+}
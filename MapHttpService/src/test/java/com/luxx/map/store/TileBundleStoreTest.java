@@ -0,0 +1,120 @@
+package com.luxx.map.store;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.luxx.map.service.TileKey;
+
+import io.netty.channel.FileRegion;
+
+public class TileBundleStoreTest {
+    private static final String LAYER = "bundleStoreTest";
+    private static final int ZOOM = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readTiles() throws Exception {
+        TileKey.registerLayer(LAYER);
+        writeBundle(bundleFile(), new byte[]{1, 2, 3}, new byte[]{4});
+        TileBundleStore store = new TileBundleStore(folder.getRoot().getPath());
+        assertArrayEquals(new byte[]{1, 2, 3}, store.getTile(2, 3, ZOOM, LAYER).content().array());
+        assertArrayEquals(new byte[]{4}, store.getTile(3, 3, ZOOM, LAYER).content().array());
+        assertNull(store.getTile(2, 4, ZOOM, LAYER));
+        assertNull(store.getTile(2, 3, ZOOM + 1, LAYER));
+        store.close();
+    }
+
+    @Test
+    public void replacedBundleIsReopened() throws Exception {
+        int layerIndex = TileKey.registerLayer(LAYER);
+        long tileKey = TileKey.encode(layerIndex, ZOOM, 2, 3);
+        writeBundle(bundleFile(), new byte[]{1, 2, 3}, new byte[]{4});
+        TileBundleStore store = new TileBundleStore(folder.getRoot().getPath());
+        TileBundle old = store.acquireBundle(tileKey);
+        FileRegion region = old.newFileRegion(2, 3);
+        old.release();
+
+        // A different layout, the old index would point into the middle of the new tiles
+        File tmpFile = folder.newFile("replace.tmp");
+        writeBundle(tmpFile, new byte[]{9, 9, 9, 9, 9}, new byte[]{8, 8});
+        Files.move(tmpFile.toPath(), bundleFile().toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        Thread.sleep(1100);
+
+        assertArrayEquals(new byte[]{9, 9, 9, 9, 9}, store.getTile(2, 3, ZOOM, LAYER).content().array());
+        assertArrayEquals(new byte[]{8, 8}, store.getTile(3, 3, ZOOM, LAYER).content().array());
+        // The region taken before the replacement still sends the old tile from the old file
+        assertArrayEquals(new byte[]{1, 2, 3}, transfer(region));
+        region.release();
+        store.close();
+    }
+
+    private File bundleFile() {
+        File layerDir = new File(folder.getRoot(), LAYER);
+        layerDir.mkdirs();
+        return new File(layerDir, ZOOM + TileBundle.SUFFIX);
+    }
+
+    private static byte[] transfer(FileRegion region) throws Exception {
+        final ByteBuffer out = ByteBuffer.allocate((int) region.count());
+        WritableByteChannel target = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                int n = src.remaining();
+                out.put(src);
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        while (region.transferred() < region.count()) {
+            region.transferTo(target, region.transferred());
+        }
+        return out.array();
+    }
+
+    // Tiles at (2, 3) and (3, 3) of a bundle covering x 2..3, y 3..4
+    private static void writeBundle(File file, byte[] first, byte[] second) throws Exception {
+        int width = 2;
+        int height = 2;
+        long indexBytes = (long) width * height * TileBundle.INDEX_ENTRY_BYTES;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(0);
+            FileChannel channel = randomAccessFile.getChannel();
+            ByteBuffer index = ByteBuffer.allocate((int) indexBytes);
+            long position = TileBundle.HEADER_BYTES + indexBytes;
+            index.putLong(0, position).putInt(8, first.length);
+            channel.write(ByteBuffer.wrap(first), position);
+            position += first.length;
+            index.putLong(TileBundle.INDEX_ENTRY_BYTES, position).putInt(TileBundle.INDEX_ENTRY_BYTES + 8, second.length);
+            channel.write(ByteBuffer.wrap(second), position);
+            channel.write(index, TileBundle.HEADER_BYTES);
+            ByteBuffer header = ByteBuffer.allocate(TileBundle.HEADER_BYTES);
+            header.putInt(TileBundle.MAGIC).putInt(TileBundle.VERSION).putInt(ZOOM)
+                    .putInt(2).putInt(3).putInt(width).putInt(height);
+            header.clear();
+            channel.write(header, 0);
+        }
+    }
+}
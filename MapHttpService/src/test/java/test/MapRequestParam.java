@@ -1,5 +1,8 @@
-package com.luxx.map.service;
+package test;
 
+/**
+ * Request of the parser before TileRequestParser, kept for TileRequestParserBenchmark
+ */
 public class MapRequestParam {
     private boolean isOk;
     private String dbType;
@@ -0,0 +1,247 @@
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import com.luxx.map.service.Tile;
+import com.luxx.map.store.SqliteTileStore;
+import com.luxx.map.store.TileBundle;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Throughput of sending tile contents over a loopback connection from the three sources of HttpServerInboundHandler.
+ * sqlite:   SqliteTileStore.getTile, the blob is copied into a byte[] and written from the heap
+ * heap:     TileBundle.readTile, the bundle bytes are read into a byte[] and written from the heap
+ * sendfile: TileBundle.newFileRegion, the kernel copies the file to the socket
+ * Only the tile contents are sent, the HTTP headers are the same for all sources.
+ * The tiles are sent in a random order with a window of tiles in flight, the client drains the socket.
+ * Usage: TileBundleBenchmark [tile bytes] [tiles] [tiles per round]
+ */
+public class TileBundleBenchmark {
+    private static final String LAYER = "788865972";
+    private static final int ZOOM = 12;
+    private static final int WINDOW = 64;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int tileBytes = args.length > 0 ? Integer.parseInt(args[0]) : 16384;
+        int tiles = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+        int requests = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+        int side = (int) Math.ceil(Math.sqrt(tiles));
+
+        File dir = new File(System.getProperty("java.io.tmpdir"), "tileBundleBenchmark");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can not create directory " + dir);
+        }
+        File database = new File(dir, "tiles.gmdb");
+        File bundleFile = new File(dir, ZOOM + TileBundle.SUFFIX);
+        writeTiles(database, bundleFile, side, tileBytes);
+        SqliteTileStore store = new SqliteTileStore(database.getPath(), 256L << 20, 1);
+        TileBundle bundle = TileBundle.open(bundleFile);
+
+        int[] order = new int[requests];
+        Random random = new Random(42);
+        for (int i = 0; i < requests; i++) {
+            order[i] = random.nextInt(side * side);
+        }
+
+        EventLoopGroup group = new NioEventLoopGroup(1);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                run("sqlite  ", group, new TileSource() {
+                    @Override
+                    public Object next(int cell) throws Exception {
+                        Tile tile = store.getTile(cell % side, cell / side, ZOOM, LAYER);
+                        return tile.content();
+                    }
+                }, order, tileBytes);
+                run("heap    ", group, new TileSource() {
+                    @Override
+                    public Object next(int cell) throws Exception {
+                        return Unpooled.wrappedBuffer(bundle.readTile(cell % side, cell / side));
+                    }
+                }, order, tileBytes);
+                run("sendfile", group, new TileSource() {
+                    @Override
+                    public Object next(int cell) {
+                        return bundle.newFileRegion(cell % side, cell / side);
+                    }
+                }, order, tileBytes);
+            }
+        } finally {
+            group.shutdownGracefully();
+            store.close();
+        }
+    }
+
+    private interface TileSource {
+        Object next(int cell) throws Exception;
+    }
+
+    private static void run(String name, EventLoopGroup group, TileSource source, int[] order, int tileBytes)
+            throws Exception {
+        TileSender sender = new TileSender(source, order);
+        Channel server = new ServerBootstrap().group(group).channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(sender);
+                    }
+                }).bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+        long expected = (long) order.length * tileBytes;
+        long start = System.nanoTime();
+        long received = 0;
+        try (Socket socket = new Socket("127.0.0.1", ((InetSocketAddress) server.localAddress()).getPort())) {
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[65536];
+            int read;
+            while (received < expected && (read = in.read(buffer)) >= 0) {
+                received += read;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        sender.done.await();
+        server.close().sync();
+        if (received != expected) {
+            throw new IllegalStateException(name + " received " + received + " of " + expected + " bytes");
+        }
+        System.out.println(String.format("%s: %,9d tiles/s %8.1f MB/s %7d server bytes allocated/tile",
+                name, order.length * 1000000000L / elapsed, received * 1000.0 / elapsed,
+                sender.allocated / order.length));
+    }
+
+    // Writes the tiles of the order on the event loop, at most WINDOW of them not yet written to the socket
+    private static final class TileSender extends ChannelInboundHandlerAdapter {
+        final TileSource source;
+        final int[] order;
+        final CountDownLatch done = new CountDownLatch(1);
+        int sent;
+        int inFlight;
+        long allocatedStart;
+        long allocated;
+
+        TileSender(TileSource source, int[] order) {
+            this.source = source;
+            this.order = order;
+        }
+
+        @Override
+        public boolean isSharable() {
+            return true;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            allocatedStart = allocatedBytes();
+            send(ctx);
+        }
+
+        private void send(ChannelHandlerContext ctx) throws Exception {
+            while (inFlight < WINDOW && sent < order.length) {
+                inFlight++;
+                ChannelFuture future = ctx.write(source.next(order[sent++]));
+                future.addListener((ChannelFutureListener) f -> {
+                    inFlight--;
+                    if (!f.isSuccess()) {
+                        f.channel().close();
+                    } else if (sent < order.length) {
+                        send(ctx);
+                    } else if (inFlight == 0) {
+                        allocated = allocatedBytes() - allocatedStart;
+                        done.countDown();
+                    }
+                });
+            }
+            ctx.flush();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            cause.printStackTrace();
+            ctx.close();
+            done.countDown();
+        }
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // The same random tiles in a GMap.NET database and in a bundle laid out as TileBundleExporter writes it
+    private static void writeTiles(File database, File bundleFile, int side, int tileBytes) throws Exception {
+        if (database.exists() && !database.delete()) {
+            throw new IOException("Can not delete " + database);
+        }
+        Random random = new Random(7);
+        byte[] tile = new byte[tileBytes];
+        long indexBytes = (long) side * side * TileBundle.INDEX_ENTRY_BYTES;
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + database.getPath());
+             RandomAccessFile randomAccessFile = new RandomAccessFile(bundleFile, "rw")) {
+            randomAccessFile.setLength(0);
+            FileChannel channel = randomAccessFile.getChannel();
+            try (Statement stm = connection.createStatement()) {
+                stm.execute("create table Tiles(id integer primary key, X integer, Y integer, Zoom integer, Type integer)");
+                stm.execute("create index IndexOfTiles on Tiles(X, Y, Zoom, Type)");
+                stm.execute("create table TilesData(id integer primary key, Tile blob)");
+            }
+            connection.setAutoCommit(false);
+            ByteBuffer index = ByteBuffer.allocate((int) indexBytes);
+            long position = TileBundle.HEADER_BYTES + indexBytes;
+            try (PreparedStatement tiles = connection.prepareStatement("insert into Tiles values(?, ?, ?, ?, ?)");
+                 PreparedStatement tilesData = connection.prepareStatement("insert into TilesData values(?, ?)")) {
+                for (int cell = 0; cell < side * side; cell++) {
+                    random.nextBytes(tile);
+                    tiles.setInt(1, cell + 1);
+                    tiles.setInt(2, cell % side);
+                    tiles.setInt(3, cell / side);
+                    tiles.setInt(4, ZOOM);
+                    tiles.setString(5, LAYER);
+                    tiles.executeUpdate();
+                    tilesData.setInt(1, cell + 1);
+                    tilesData.setBytes(2, tile);
+                    tilesData.executeUpdate();
+
+                    index.putLong(cell * TileBundle.INDEX_ENTRY_BYTES, position);
+                    index.putInt(cell * TileBundle.INDEX_ENTRY_BYTES + 8, tileBytes);
+                    ByteBuffer data = ByteBuffer.wrap(tile);
+                    while (data.hasRemaining()) {
+                        position += channel.write(data, position);
+                    }
+                }
+            }
+            connection.commit();
+            channel.write(index, TileBundle.HEADER_BYTES);
+            ByteBuffer header = ByteBuffer.allocate(TileBundle.HEADER_BYTES);
+            header.putInt(TileBundle.MAGIC).putInt(TileBundle.VERSION).putInt(ZOOM)
+                    .putInt(0).putInt(0).putInt(side).putInt(side);
+            header.clear();
+            channel.write(header, 0);
+        }
+    }
+}
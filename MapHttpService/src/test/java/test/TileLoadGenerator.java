@@ -0,0 +1,177 @@
+package test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpVersion;
+
+/**
+ * Load generator for a running MapHttpServer.
+ * Every connection is a keep-alive HTTP/1.1 client keeping pipeline depth requests in flight, it sends the next
+ * tile request as soon as a response arrived. Depth 1 is a client without pipelining.
+ * The tiles are picked at random in a square of the layer, tiles outside the store are answered 204.
+ * Prints requests/s, the status counts and the latency percentiles of each round.
+ * Usage: TileLoadGenerator host port layer zoom size [connections] [seconds per round] [rounds] [client threads]
+ * [pipeline depth]
+ */
+public class TileLoadGenerator {
+    private static final long MAX_LATENCY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 5) {
+            System.out.println("Usage: TileLoadGenerator <host> <port> <layer> <zoom> <size> "
+                    + "[connections] [seconds per round] [rounds] [client threads] [pipeline depth]");
+            return;
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        String layer = args[2];
+        int zoom = Integer.parseInt(args[3]);
+        int size = Integer.parseInt(args[4]);
+        int connections = args.length > 5 ? Integer.parseInt(args[5]) : 64;
+        int seconds = args.length > 6 ? Integer.parseInt(args[6]) : 10;
+        int rounds = args.length > 7 ? Integer.parseInt(args[7]) : 3;
+        int threads = args.length > 8 ? Integer.parseInt(args[8]) : 1;
+        int depth = args.length > 9 ? Integer.parseInt(args[9]) : 1;
+
+        EventLoopGroup group = new NioEventLoopGroup(threads);
+        try {
+            Stats stats = new Stats();
+            Bootstrap b = new Bootstrap().group(group).channel(NioSocketChannel.class)
+                    .option(ChannelOption.TCP_NODELAY, true)
+                    .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                    .handler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel ch) {
+                            ch.pipeline().addLast(new HttpClientCodec())
+                                    .addLast(new HttpObjectAggregator(1 << 20))
+                                    .addLast(new TileClient(host, layer, zoom, size, depth, stats));
+                        }
+                    });
+            Channel[] channels = new Channel[connections];
+            for (int i = 0; i < connections; i++) {
+                channels[i] = b.connect(host, port).sync().channel();
+            }
+            for (int round = 0; round < rounds; round++) {
+                stats.reset();
+                long start = System.nanoTime();
+                Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+                stats.print(System.nanoTime() - start);
+            }
+            for (Channel channel : channels) {
+                channel.close().sync();
+            }
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+
+    private static final class Stats {
+        final AtomicLong ok = new AtomicLong();
+        final AtomicLong noContent = new AtomicLong();
+        final AtomicLong other = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        volatile Histogram latency = new Histogram(MAX_LATENCY_NANOS, 3);
+
+        // Responses arriving during the reset may be counted in either round
+        synchronized void reset() {
+            latency = new Histogram(MAX_LATENCY_NANOS, 3);
+            ok.set(0);
+            noContent.set(0);
+            other.set(0);
+            failed.set(0);
+        }
+
+        synchronized void record(long nanos) {
+            latency.recordValue(Math.min(nanos, MAX_LATENCY_NANOS));
+        }
+
+        synchronized void print(long elapsed) {
+            long requests = ok.get() + noContent.get() + other.get();
+            System.out.println(String.format("%,10d requests/s, 200 %d, 204 %d, other %d, failed %d, "
+                            + "latency us p50 %d p99 %d p99.9 %d max %d",
+                    requests * 1000000000L / elapsed, ok.get(), noContent.get(), other.get(), failed.get(),
+                    latency.getValueAtPercentile(50) / 1000, latency.getValueAtPercentile(99) / 1000,
+                    latency.getValueAtPercentile(99.9) / 1000, latency.getMaxValue() / 1000));
+        }
+    }
+
+    private static final class TileClient extends SimpleChannelInboundHandler<FullHttpResponse> {
+        final String host;
+        final String layer;
+        final int zoom;
+        final int size;
+        final Stats stats;
+        final Random random = new Random();
+        // Send times of the requests in flight, the responses come back in request order
+        final long[] sentAt;
+        long sent;
+        long received;
+
+        TileClient(String host, String layer, int zoom, int size, int depth, Stats stats) {
+            this.host = host;
+            this.layer = layer;
+            this.zoom = zoom;
+            this.size = size;
+            this.stats = stats;
+            this.sentAt = new long[depth];
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            for (int i = 0; i < sentAt.length; i++) {
+                send(ctx);
+            }
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse response) {
+            stats.record(System.nanoTime() - sentAt[(int) (received++ % sentAt.length)]);
+            int status = response.getStatus().code();
+            if (status == 200) {
+                stats.ok.incrementAndGet();
+            } else if (status == 204) {
+                stats.noContent.incrementAndGet();
+            } else {
+                stats.other.incrementAndGet();
+            }
+            send(ctx);
+        }
+
+        private void send(ChannelHandlerContext ctx) {
+            String uri = "/" + layer + "/" + zoom + "/" + random.nextInt(size) + "/" + random.nextInt(size);
+            FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+            request.headers().set(HttpHeaders.Names.HOST, host);
+            request.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+            sentAt[(int) (sent++ % sentAt.length)] = System.nanoTime();
+            ctx.writeAndFlush(request);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            stats.failed.incrementAndGet();
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package test;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.luxx.map.cache.OffHeapTileCache;
+import com.luxx.map.service.Tile;
+import com.luxx.map.service.TileKey;
+import com.luxx.map.service.TileRequestParser;
+
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.handler.codec.http.QueryStringDecoder;
+
+/**
+ * Parse + cache lookup of a tile request with the old and the new parser.
+ * old: QueryStringDecoder and String.split into a MapRequestParam, looked up in a Guava cache as MapCache did.
+ * new: TileRequestParser into the packed tile key, looked up in the OffHeapTileCache.
+ * The URIs are path and query string requests of a block of neighbouring tiles, all of them cached.
+ * The old cache misses the path requests, MapRequestParam.equals compares the layer strings with ==.
+ * Usage: TileRequestParserBenchmark [requests per round]
+ */
+public class TileRequestParserBenchmark {
+    private static final String LAYER = "788865972";
+    private static final int ZOOM = 12;
+    private static final int SIDE = 32;
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+        int layerIndex = TileKey.registerLayer(LAYER);
+        String[] uris = new String[SIDE * SIDE * 2];
+        Cache<MapRequestParam, byte[]> oldCache = CacheBuilder.newBuilder().maximumSize(uris.length).build();
+        OffHeapTileCache newCache = new OffHeapTileCache(64L << 20, 16, PooledByteBufAllocator.DEFAULT);
+        byte[] tile = new byte[64];
+        int n = 0;
+        for (int x = 0; x < SIDE; x++) {
+            for (int y = 0; y < SIDE; y++) {
+                uris[n++] = "/" + LAYER + "/" + ZOOM + "/" + (1000 + x) + "/" + (2000 + y);
+                uris[n++] = "/FileService/image?map=quanguo&type=web&x=" + (1000 + x) + "&y=" + (2000 + y) + "&z=" + ZOOM;
+                oldCache.put(getMapRequestParam(uris[n - 1]), tile);
+                newCache.put(TileKey.encode(layerIndex, ZOOM, 1000 + x, 2000 + y), Tile.of(tile, 0));
+            }
+        }
+        printHashes(layerIndex);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            runOld(uris, oldCache, requests);
+            runNew(uris, newCache, requests);
+        }
+    }
+
+    // Distinct hash values of the block of tiles, the old hash is symmetric in x and y
+    private static void printHashes(int layerIndex) {
+        Set<Integer> oldHashes = new HashSet<>();
+        Set<Integer> newHashes = new HashSet<>();
+        for (int x = 0; x < SIDE; x++) {
+            for (int y = 0; y < SIDE; y++) {
+                MapRequestParam param = new MapRequestParam();
+                param.setDbType(LAYER);
+                param.setZoom(ZOOM);
+                param.setX(1000 + x);
+                param.setY(2000 + y);
+                oldHashes.add(param.hashCode());
+                newHashes.add(TileKey.hash(TileKey.encode(layerIndex, ZOOM, 1000 + x, 2000 + y)));
+            }
+        }
+        System.out.println(String.format("distinct hashes of %d tiles: old %d, new %d",
+                SIDE * SIDE, oldHashes.size(), newHashes.size()));
+    }
+
+    private static void runOld(String[] uris, Cache<MapRequestParam, byte[]> cache, int requests) {
+        long allocatedStart = allocatedBytes();
+        long start = System.nanoTime();
+        int hits = 0;
+        for (int i = 0; i < requests; i++) {
+            MapRequestParam param = getMapRequestParam(uris[i & (uris.length - 1)]);
+            if (param.isOk() && cache.getIfPresent(param) != null) {
+                hits++;
+            }
+        }
+        print("old", requests, hits, System.nanoTime() - start, allocatedBytes() - allocatedStart);
+    }
+
+    private static void runNew(String[] uris, OffHeapTileCache cache, int requests) {
+        long allocatedStart = allocatedBytes();
+        long start = System.nanoTime();
+        int hits = 0;
+        for (int i = 0; i < requests; i++) {
+            long tileKey = TileRequestParser.parse(uris[i & (uris.length - 1)]);
+            if (tileKey != TileKey.INVALID) {
+                Tile tile = cache.get(tileKey);
+                if (tile != null) {
+                    tile.content().release();
+                    hits++;
+                }
+            }
+        }
+        print("new", requests, hits, System.nanoTime() - start, allocatedBytes() - allocatedStart);
+    }
+
+    private static void print(String name, int requests, int hits, long elapsed, long allocated) {
+        System.out.println(String.format("%s: %,12d requests/s %6.1f ns/request %6d bytes/request, %d hits",
+                name, requests * 1000000000L / elapsed, (double) elapsed / requests, allocated / requests, hits));
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // The parser of HttpServerInboundHandler before TileRequestParser, the layer of query requests was fixed
+    private static MapRequestParam getMapRequestParam(String url) {
+        MapRequestParam mapRequestParam = new MapRequestParam();
+        QueryStringDecoder queryStringDecoder = new QueryStringDecoder(url);
+        Map<String, List<String>> paramsMap = queryStringDecoder.parameters();
+        if (paramsMap.isEmpty()) {
+            String[] params = url.split("/");
+            if (params != null && params.length == 5) {
+                String dbId = params[1];
+                mapRequestParam.setDbType(dbId);
+                try {
+                    int zoom = Integer.parseInt(params[2]);
+                    mapRequestParam.setZoom(zoom);
+                    int x = Integer.parseInt(params[3]);
+                    mapRequestParam.setX(x);
+                    int y = Integer.parseInt(params[4]);
+                    mapRequestParam.setY(y);
+                    mapRequestParam.setOk(true);
+                } catch (NumberFormatException e) {
+                    mapRequestParam.setOk(false);
+                }
+            }
+        } else {
+            if (paramsMap.containsKey("z") && paramsMap.containsKey("x")
+                    && paramsMap.containsKey("y")) {
+                try {
+                    List<String> zoomList = paramsMap.get("z");
+                    if (zoomList.size() > 0) {
+                        mapRequestParam.setZoom(Integer.parseInt(zoomList.get(0)));
+                    }
+                    List<String> xList = paramsMap.get("x");
+                    if (xList.size() > 0) {
+                        mapRequestParam.setX(Integer.parseInt(xList.get(0)));
+                    }
+                    List<String> yList = paramsMap.get("y");
+                    if (yList.size() > 0) {
+                        mapRequestParam.setY(Integer.parseInt(yList.get(0)));
+                    }
+                    mapRequestParam.setDbType("788865972");
+                    mapRequestParam.setOk(true);
+                } catch (NumberFormatException e) {
+                    mapRequestParam.setOk(false);
+                }
+            }
+        }
+
+        return mapRequestParam;
+    }
+}
@@ -0,0 +1,123 @@
+package test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import com.luxx.map.service.EncodedResponse;
+import com.luxx.map.service.Tile;
+import com.luxx.map.service.TileCacheControl;
+import com.luxx.map.service.TileKey;
+import com.luxx.map.service.TileResponseEncoder;
+import com.luxx.map.service.TileResponseHeaders;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Throughput and allocation of writing a cached tile as a keep-alive 200 response, on an EmbeddedChannel.
+ * full:    DefaultFullHttpResponse with the headers set by name, encoded by HttpResponseEncoder
+ * encoded: the EncodedResponse of TileResponseHeaders, written as is by TileResponseEncoder
+ * The tiles are a block of cached tiles of one layer, requested in a random order.
+ * Usage: TileResponseBenchmark [tile bytes] [responses per round]
+ */
+public class TileResponseBenchmark {
+    private static final String LAYER = "788865972";
+    private static final int ZOOM = 12;
+    private static final int SIDE = 16;
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) {
+        int tileBytes = args.length > 0 ? Integer.parseInt(args[0]) : 16384;
+        int responses = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+        int layerIndex = TileKey.registerLayer(LAYER);
+        long[] tileKeys = new long[SIDE * SIDE];
+        Tile[] tiles = new Tile[SIDE * SIDE];
+        Random random = new Random(42);
+        for (int i = 0; i < tiles.length; i++) {
+            byte[] data = new byte[tileBytes];
+            random.nextBytes(data);
+            tileKeys[i] = TileKey.encode(layerIndex, ZOOM, 1000 + i % SIDE, 2000 + i / SIDE);
+            tiles[i] = Tile.of(data, System.currentTimeMillis()).copy(PooledByteBufAllocator.DEFAULT);
+        }
+        int[] order = new int[4096];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = random.nextInt(tiles.length);
+        }
+
+        for (int round = 0; round < ROUNDS; round++) {
+            runFull(tileKeys, tiles, order, responses);
+            runEncoded(tileKeys, tiles, order, responses);
+        }
+    }
+
+    private static void runFull(long[] tileKeys, Tile[] tiles, int[] order, int responses) {
+        EmbeddedChannel channel = new EmbeddedChannel(new HttpResponseEncoder());
+        channel.config().setAllocator(PooledByteBufAllocator.DEFAULT);
+        long allocatedStart = allocatedBytes();
+        long start = System.nanoTime();
+        long bytes = 0;
+        for (int i = 0; i < responses; i++) {
+            int n = order[i & (order.length - 1)];
+            Tile tile = tiles[n];
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                    tile.content().retainedDuplicate());
+            response.headers().set(HttpHeaders.Names.CONTENT_TYPE, "image/jpeg");
+            response.headers().set(HttpHeaders.Names.CONTENT_LENGTH, response.content().readableBytes());
+            response.headers().set(HttpHeaders.Names.ETAG, tile.etag());
+            response.headers().set(HttpHeaders.Names.CACHE_CONTROL, TileCacheControl.of(tileKeys[n]));
+            response.headers().set(HttpHeaders.Names.LAST_MODIFIED, tile.lastModifiedHeader());
+            response.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+            channel.writeAndFlush(response);
+            bytes += drain(channel);
+        }
+        print("full   ", responses, bytes, System.nanoTime() - start, allocatedBytes() - allocatedStart);
+        channel.finishAndReleaseAll();
+    }
+
+    private static void runEncoded(long[] tileKeys, Tile[] tiles, int[] order, int responses) {
+        EmbeddedChannel channel = new EmbeddedChannel(new TileResponseEncoder());
+        channel.config().setAllocator(PooledByteBufAllocator.DEFAULT);
+        TileResponseHeaders headers = TileResponseHeaders.getInstance();
+        long allocatedStart = allocatedBytes();
+        long start = System.nanoTime();
+        long bytes = 0;
+        for (int i = 0; i < responses; i++) {
+            int n = order[i & (order.length - 1)];
+            EncodedResponse response = headers.encode(tileKeys[n], tiles[n]);
+            channel.writeAndFlush(response);
+            bytes += drain(channel);
+        }
+        print("encoded", responses, bytes, System.nanoTime() - start, allocatedBytes() - allocatedStart);
+        channel.finishAndReleaseAll();
+    }
+
+    private static long drain(EmbeddedChannel channel) {
+        long bytes = 0;
+        Object written;
+        while ((written = channel.readOutbound()) != null) {
+            bytes += ((ByteBuf) written).readableBytes();
+            ReferenceCountUtil.release(written);
+        }
+        return bytes;
+    }
+
+    private static void print(String name, int responses, long bytes, long elapsed, long allocated) {
+        System.out.println(String.format("%s: %,12d responses/s %7.1f ns/response %6d bytes allocated/response, "
+                        + "%d bytes/response",
+                name, responses * 1000000000L / elapsed, (double) elapsed / responses, allocated / responses,
+                bytes / responses));
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
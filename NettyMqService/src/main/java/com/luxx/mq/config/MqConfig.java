@@ -5,4 +5,13 @@ public class MqConfig {
     public static String MQ_PORT = "rabbitmq.port";
     public static String MQ_USERNAME = "rabbitmq.username";
     public static String MQ_PASSWORD = "rabbitmq.password";
+    public static String MQ_CONSUMER_CHANNELS = "rabbitmq.consumer.channels";
+    public static String MQ_CONSUMER_PREFETCH = "rabbitmq.consumer.prefetch";
+    public static String MQ_CONSUMER_ACK_BATCH = "rabbitmq.consumer.ack.batch";
+    public static String MQ_CONSUMER_ORDERED = "rabbitmq.consumer.ordered";
+    public static String MQ_PUBLISHER_THREADS = "rabbitmq.publisher.threads";
+    public static String MQ_PUBLISHER_QUEUE_SIZE = "rabbitmq.publisher.queue.size";
+    public static String MQ_PUBLISHER_BATCH = "rabbitmq.publisher.batch";
+    public static String MQ_PUBLISHER_HIGH_WATERMARK = "rabbitmq.publisher.high.watermark";
+    public static String MQ_PUBLISHER_LOW_WATERMARK = "rabbitmq.publisher.low.watermark";
 }
@@ -1,13 +1,12 @@
 package com.luxx.mq.handler;
 
+import com.luxx.mq.server.ClientBroadcaster;
 import com.luxx.mq.server.MqSender;
+import com.luxx.mq.message.Header;
 import com.luxx.mq.message.Message;
-import io.netty.channel.group.ChannelGroup;
-import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.util.CharsetUtil;
 import io.netty.util.ReferenceCountUtil;
-import io.netty.util.concurrent.GlobalEventExecutor;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 
@@ -21,7 +20,7 @@ import org.slf4j.LoggerFactory;
 public class EchoServerHandler extends ChannelInboundHandlerAdapter {
     private static final Logger log = LoggerFactory.getLogger(EchoServerHandler.class);
 
-    public static final ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+    private static final int MAX_TOPIC_LENGTH = 255;
 
     private MqSender mqSender;
 
@@ -32,31 +31,57 @@ public class EchoServerHandler extends ChannelInboundHandlerAdapter {
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
         try {
-            // ByteBuf in = (ByteBuf) msg;
-            // String data = in.toString(io.netty.util.CharsetUtil.UTF_8);
             Message message = (Message) (msg);
+            ByteBuf data = message.getData();
+
+            byte msgType = message.getHeader().getMsgType();
+            if (msgType == Header.TYPE_SUBSCRIBE || msgType == Header.TYPE_UNSUBSCRIBE) {
+                subscription(ctx, msgType, data);
+                return;
+            }
 
             // Receive message from client
             // Send message to rabbit MQ who wants to subscribe
-            String dataString = new String(message.getData(), CharsetUtil.UTF_8);
-            mqSender.send(dataString);
+            mqSender.send(ctx.channel(), data);
 
             // Echo server: send back the msg to client (just for test)
-            log.debug(String.format("Receive message: %s", dataString));
-            ctx.writeAndFlush(Unpooled.copiedBuffer(message.getData()));
+            if (log.isDebugEnabled()) {
+                log.debug(String.format("Receive message: %s", data.toString(CharsetUtil.UTF_8)));
+            }
+            // The frame is shared with the echo, it is freed once both are done with it
+            ctx.writeAndFlush(data.retainedDuplicate());
         } finally {
             ReferenceCountUtil.release(msg);
         }
     }
 
+    private void subscription(ChannelHandlerContext ctx, byte msgType, ByteBuf data) {
+        // Topics are RabbitMQ routing keys, at most 255 bytes
+        if (data.readableBytes() > MAX_TOPIC_LENGTH) {
+            log.warn("Topic is too long from " + ctx.channel().remoteAddress());
+            return;
+        }
+        String topic = data.toString(CharsetUtil.UTF_8).trim();
+        if (topic.isEmpty()) {
+            return;
+        }
+        if (msgType == Header.TYPE_SUBSCRIBE) {
+            ClientBroadcaster.getInstance().subscribe(ctx.channel(), topic);
+            log.debug("Client " + ctx.channel().remoteAddress() + " subscribed to " + topic);
+        } else {
+            ClientBroadcaster.getInstance().unsubscribe(ctx.channel(), topic);
+            log.debug("Client " + ctx.channel().remoteAddress() + " unsubscribed from " + topic);
+        }
+    }
+
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
-        // A closed channel will be removed from ChannelGroup automatically
-        channels.add(ctx.channel());
+        ClientBroadcaster.getInstance().add(ctx.channel());
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        ClientBroadcaster.getInstance().remove(ctx.channel());
         // System.out.println("Disconnected client "+ctx.channel().remoteAddress());
         log.debug("Disconnected client " + ctx.channel().remoteAddress());
     }
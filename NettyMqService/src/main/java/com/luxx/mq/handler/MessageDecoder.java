@@ -9,6 +9,10 @@ import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
 
+/**
+ * Decode frames into messages. The message data is a retained slice of the frame,
+ * nothing is copied and the frame is freed when the last message of it is released.
+ */
 public class MessageDecoder extends ByteToMessageDecoder {
 
     @Override
@@ -20,24 +24,19 @@ public class MessageDecoder extends ByteToMessageDecoder {
 
         in.markReaderIndex();
         int msgLength = in.readInt();
-        if (in.readableBytes() < msgLength) {
+        if (in.readableBytes() < msgLength - 4) {
             in.resetReaderIndex();
             return;
         }
 
         byte msgType = in.readByte();
         if (msgLength >= 5) {
-            ByteBuf bf = in.readBytes(msgLength - 5);
-            byte[] data = bf.array();
+            ByteBuf data = in.readRetainedSlice(msgLength - 5);
             Header header = new Header();
             header.setMsgLength(msgLength);
             header.setMsgType(msgType);
 
-            Message message = new Message();
-            message.setHeader(header);
-            message.setData(data);
-
-            out.add(message); // Decode one message successfully
+            out.add(new Message(header, data)); // Decode one message successfully
         }
     }
 }
@@ -3,6 +3,11 @@ package com.luxx.mq.message;
 import java.nio.ByteBuffer;
 
 public class Header {
+    // Message types, the data of a subscription message is the UTF-8 topic
+    public static final byte TYPE_DATA = 1;
+    public static final byte TYPE_SUBSCRIBE = 2;
+    public static final byte TYPE_UNSUBSCRIBE = 3;
+
     private int msgLength; // The whole message length includes header
     private byte msgType; // one byte for message type
 
@@ -1,23 +1,38 @@
 package com.luxx.mq.message;
 
-public class Message {
-    private Header header;
-    private byte[] data;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.DefaultByteBufHolder;
+import io.netty.buffer.Unpooled;
 
-    public Header getHeader() {
-        return header;
-    }
+/**
+ * A decoded message, the data is a retained slice of the received frame.
+ * Whoever consumes the message releases it, handlers keeping the data retain it.
+ */
+public class Message extends DefaultByteBufHolder {
+    private final Header header;
 
-    public void setHeader(Header header) {
+    public Message(Header header, ByteBuf data) {
+        super(data);
         this.header = header;
     }
 
-    public byte[] getData() {
-        return data;
+    /**
+     * Heap message for senders building frames from bytes
+     */
+    public Message(Header header, byte[] data) {
+        this(header, Unpooled.wrappedBuffer(data));
     }
 
-    public void setData(byte[] data) {
-        this.data = data;
+    public Header getHeader() {
+        return header;
+    }
+
+    /**
+     * The payload without the header, reading it does not copy
+     */
+    public ByteBuf getData() {
+        return content();
     }
 
     public byte[] getBytes() {
@@ -26,11 +41,40 @@ public class Message {
             byte[] buffer = new byte[len];
             byte[] headerBytes = header.getBytes();
             System.arraycopy(headerBytes, 0, buffer, 0, headerBytes.length);
-            if (data != null) {
-                System.arraycopy(data, 0, buffer, headerBytes.length, data.length);
-            }
+            ByteBuf data = content();
+            data.getBytes(data.readerIndex(), buffer, headerBytes.length,
+                    Math.min(data.readableBytes(), len - headerBytes.length));
             return buffer;
         }
         return null;
     }
+
+    @Override
+    public Message replace(ByteBuf content) {
+        return new Message(header, content);
+    }
+
+    @Override
+    public Message retain() {
+        super.retain();
+        return this;
+    }
+
+    @Override
+    public Message retain(int increment) {
+        super.retain(increment);
+        return this;
+    }
+
+    @Override
+    public Message touch(Object hint) {
+        super.touch(hint);
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "Message(type=" + header.getMsgType() + ", length=" + header.getMsgLength() + ", data="
+                + ByteBufUtil.hexDump(content()) + ")";
+    }
 }
@@ -0,0 +1,120 @@
+package com.luxx.mq.server;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Consumer writing RabbitMQ deliveries to the clients.
+ * The deliveries of a channel are handed to the event loops in order while up to prefetch of them
+ * are being written. A delivery is acked once it and every delivery before it is written to the clients,
+ * with one multiple ack for a batch of them. One consumer is used for all consumes of a channel.
+ * A channel recovered by automatic recovery starts its delivery tags at 1 again, the ack state starts over
+ * and writes of deliveries from before the recovery are ignored, the broker redelivers them.
+ */
+public class BroadcastConsumer extends DefaultConsumer {
+    private static final Logger log = LoggerFactory.getLogger(BroadcastConsumer.class);
+    // Log the client number and fan-out latency every this many broadcasts
+    private static final int STATS_INTERVAL = 1000;
+
+    private final String broadcastRouteKey;
+    private final int ackBatch;
+    // Written deliveries after writtenUpTo, by delivery tag modulo prefetch.
+    // There are never more than prefetch unacked deliveries on the channel, for all its consumes.
+    private final boolean[] written;
+    private long lastDelivered = 0;
+    private long writtenUpTo = 0;
+    private long lastAcked = 0;
+    // Channel incarnation the ack state belongs to, increased when the delivery tags start over
+    private int incarnation = 0;
+
+    /**
+     * @param broadcastRouteKey messages with this routing key are sent to all clients,
+     *                          others to the clients subscribed to the routing key
+     * @param prefetch          the channel's prefetch count, set with global qos for all its consumers
+     * @param ackBatch          ack after this many deliveries, or when all deliveries are written
+     */
+    public BroadcastConsumer(Channel channel, String broadcastRouteKey, int prefetch, int ackBatch) {
+        super(channel);
+        this.broadcastRouteKey = broadcastRouteKey;
+        this.ackBatch = ackBatch;
+        this.written = new boolean[prefetch];
+    }
+
+    @Override
+    public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+        final long deliveryTag = envelope.getDeliveryTag();
+        final int deliveryIncarnation;
+        synchronized (this) {
+            if (deliveryTag <= lastDelivered) {
+                recovered();
+            }
+            lastDelivered = deliveryTag;
+            deliveryIncarnation = incarnation;
+        }
+        final ClientBroadcaster broadcaster = ClientBroadcaster.getInstance();
+        ClientBroadcaster.BroadcastListener listener = (clients, latencyNanos) -> {
+            written(deliveryIncarnation, deliveryTag);
+            if (log.isDebugEnabled()) {
+                log.debug(String.format("Broadcast message to %d clients in %d us", clients,
+                        TimeUnit.NANOSECONDS.toMicros(latencyNanos)));
+            }
+            if (broadcaster.getBroadcastCount() % STATS_INTERVAL == 0) {
+                log.info(String.format("Connected client number: %d, broadcasts: %d, fan-out latency avg: %d us, max: %d us",
+                        broadcaster.size(), broadcaster.getBroadcastCount(),
+                        TimeUnit.NANOSECONDS.toMicros(broadcaster.getAverageLatencyNanos()),
+                        TimeUnit.NANOSECONDS.toMicros(broadcaster.getMaxLatencyNanos())));
+            }
+        };
+        String topic = envelope.getRoutingKey();
+        if (broadcastRouteKey.equals(topic)) {
+            broadcaster.broadcast(body, listener);
+        } else {
+            broadcaster.publish(topic, body, listener);
+        }
+    }
+
+    // Deliveries are only ever redelivered on a new channel, which numbers them from 1 again
+    private void recovered() {
+        log.info("Rabbit MQ channel recovered, " + (lastDelivered - lastAcked) + " unacked deliveries are redelivered");
+        incarnation++;
+        lastDelivered = 0;
+        writtenUpTo = 0;
+        lastAcked = 0;
+        Arrays.fill(written, false);
+    }
+
+    /**
+     * Called on an event loop when the delivery is written to all its clients.
+     * Acks are sent under the lock so a smaller multiple ack never follows a larger one.
+     */
+    private synchronized void written(int deliveryIncarnation, long deliveryTag) {
+        if (deliveryIncarnation != incarnation) {
+            return;
+        }
+        written[(int) (deliveryTag % written.length)] = true;
+        while (writtenUpTo < lastDelivered) {
+            int next = (int) ((writtenUpTo + 1) % written.length);
+            if (!written[next]) {
+                break;
+            }
+            written[next] = false;
+            writtenUpTo++;
+        }
+        if (writtenUpTo > lastAcked && (writtenUpTo - lastAcked >= ackBatch || writtenUpTo == lastDelivered)) {
+            try {
+                getChannel().basicAck(writtenUpTo, true);
+                lastAcked = writtenUpTo;
+            } catch (IOException ex) {
+                log.error("Ack Rabbit MQ message error: " + ex.getMessage());
+            }
+        }
+    }
+}
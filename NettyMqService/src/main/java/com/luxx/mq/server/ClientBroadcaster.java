@@ -0,0 +1,284 @@
+package com.luxx.mq.server;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
+import io.netty.util.AttributeKey;
+
+/**
+ * Broadcast messages to all connected clients or to the clients subscribed to a topic.
+ * The clients are kept by event loop, a broadcast copies the message once into a direct buffer
+ * and hands every event loop a single task writing views of it to all the loop's clients,
+ * it is done when all these writes are done.
+ * Adding, removing, subscribing and unsubscribing a client is done on its event loop.
+ */
+public class ClientBroadcaster {
+    private static final AttributeKey<Set<String>> SUBSCRIPTIONS = AttributeKey.valueOf("subscriptions");
+
+    private final LoopChannels allClients = new LoopChannels();
+    private final ConcurrentMap<String, LoopChannels> topics = new ConcurrentHashMap<>();
+    private volatile TopicListener topicListener = null;
+    private final LongAdder broadcastCount = new LongAdder();
+    private final LongAdder totalLatencyNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    private static class ClientBroadcasterHolder {
+        static final ClientBroadcaster instance = new ClientBroadcaster();
+    }
+
+    public static ClientBroadcaster getInstance() {
+        return ClientBroadcasterHolder.instance;
+    }
+
+    private ClientBroadcaster() {
+    }
+
+    public void add(Channel channel) {
+        allClients.add(channel);
+    }
+
+    /**
+     * Remove the client and its subscriptions
+     */
+    public void remove(Channel channel) {
+        allClients.remove(channel);
+        Set<String> subscriptions = channel.attr(SUBSCRIPTIONS).getAndSet(null);
+        if (subscriptions != null) {
+            for (String topic : subscriptions) {
+                removeSubscriber(topic, channel);
+            }
+        }
+    }
+
+    public int size() {
+        return allClients.size();
+    }
+
+    /**
+     * @return false if the client was already subscribed to the topic
+     */
+    public boolean subscribe(Channel channel, String topic) {
+        Set<String> subscriptions = channel.attr(SUBSCRIPTIONS).get();
+        if (subscriptions == null) {
+            subscriptions = new HashSet<>();
+            channel.attr(SUBSCRIPTIONS).set(subscriptions);
+        }
+        if (!subscriptions.add(topic)) {
+            return false;
+        }
+        topics.compute(topic, (key, subscribers) -> {
+            if (subscribers == null) {
+                subscribers = new LoopChannels();
+                TopicListener listener = topicListener;
+                if (listener != null) {
+                    listener.topicAdded(key);
+                }
+            }
+            subscribers.add(channel);
+            return subscribers;
+        });
+        return true;
+    }
+
+    /**
+     * @return false if the client was not subscribed to the topic
+     */
+    public boolean unsubscribe(Channel channel, String topic) {
+        Set<String> subscriptions = channel.attr(SUBSCRIPTIONS).get();
+        if (subscriptions == null || !subscriptions.remove(topic)) {
+            return false;
+        }
+        removeSubscriber(topic, channel);
+        return true;
+    }
+
+    private void removeSubscriber(String topic, Channel channel) {
+        topics.computeIfPresent(topic, (key, subscribers) -> {
+            subscribers.remove(channel);
+            if (subscribers.size() > 0) {
+                return subscribers;
+            }
+            TopicListener listener = topicListener;
+            if (listener != null) {
+                listener.topicRemoved(key);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Topics with at least one subscriber
+     */
+    public List<String> getTopics() {
+        return new ArrayList<>(topics.keySet());
+    }
+
+    /**
+     * The listener is called when a topic gets its first subscriber or loses its last one,
+     * on the event loop of that subscriber, in order for the same topic
+     */
+    public void setTopicListener(TopicListener topicListener) {
+        this.topicListener = topicListener;
+    }
+
+    /**
+     * Write the message to every connected client. The listener is called on the last event loop
+     * to finish once the message is written to the sockets of all clients or their writes failed.
+     * Like for a ChannelGroup write, a client not reading holds the listener back.
+     */
+    public void broadcast(byte[] body, BroadcastListener listener) {
+        fanOut(allClients, body, listener);
+    }
+
+    /**
+     * Write the message to the clients subscribed to the topic, like {@link #broadcast}
+     */
+    public void publish(String topic, byte[] body, BroadcastListener listener) {
+        LoopChannels subscribers = topics.get(topic);
+        fanOut(subscribers != null ? subscribers : new LoopChannels(), body, listener);
+    }
+
+    private void fanOut(final LoopChannels clients, byte[] body, final BroadcastListener listener) {
+        final long start = System.nanoTime();
+        final ByteBuf msg = PooledByteBufAllocator.DEFAULT.directBuffer(body.length);
+        msg.writeBytes(body);
+        // Loops can be added while the tasks are handed out, only the ones counted get a task
+        List<EventLoop> loops = new ArrayList<>(clients.byLoop.keySet());
+        final AtomicInteger remainingLoops = new AtomicInteger(loops.size() + 1);
+        final AtomicInteger written = new AtomicInteger();
+        for (final EventLoop loop : loops) {
+            msg.retain();
+            loop.execute(new LoopWrite(clients.byLoop.get(loop), msg, () -> {
+                if (remainingLoops.decrementAndGet() == 0) {
+                    completed(start, written.get(), listener);
+                }
+            }, written));
+        }
+        msg.release();
+        if (remainingLoops.decrementAndGet() == 0) {
+            completed(start, written.get(), listener);
+        }
+    }
+
+    private void completed(long start, int clients, BroadcastListener listener) {
+        long latency = System.nanoTime() - start;
+        broadcastCount.increment();
+        totalLatencyNanos.add(latency);
+        long max;
+        while (latency > (max = maxLatencyNanos.get()) && !maxLatencyNanos.compareAndSet(max, latency)) {
+        }
+        listener.onBroadcast(clients, latency);
+    }
+
+    public long getBroadcastCount() {
+        return broadcastCount.sum();
+    }
+
+    /**
+     * Average time from the start of a broadcast until every client's write was done
+     */
+    public long getAverageLatencyNanos() {
+        long count = broadcastCount.sum();
+        return count > 0 ? totalLatencyNanos.sum() / count : 0;
+    }
+
+    public long getMaxLatencyNanos() {
+        return maxLatencyNanos.get();
+    }
+
+    /**
+     * Writes a message to the clients of one event loop and runs the callback when all the writes are done,
+     * successful or not. The task and the write listeners all run on that loop.
+     */
+    private static class LoopWrite implements Runnable, ChannelFutureListener {
+        private final Set<Channel> channels;
+        private final ByteBuf msg;
+        private final Runnable done;
+        private final AtomicInteger written;
+        private int pendingWrites = 1;
+
+        LoopWrite(Set<Channel> channels, ByteBuf msg, Runnable done, AtomicInteger written) {
+            this.channels = channels;
+            this.msg = msg;
+            this.done = done;
+            this.written = written;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (Channel channel : channels) {
+                    pendingWrites++;
+                    channel.writeAndFlush(msg.retainedDuplicate()).addListener(this);
+                }
+                written.addAndGet(channels.size());
+            } finally {
+                msg.release();
+                writeDone();
+            }
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            writeDone();
+        }
+
+        private void writeDone() {
+            if (--pendingWrites == 0) {
+                done.run();
+            }
+        }
+    }
+
+    /**
+     * Channels by event loop, every set is only read and changed on its event loop
+     */
+    private static class LoopChannels {
+        private final ConcurrentMap<EventLoop, Set<Channel>> byLoop = new ConcurrentHashMap<>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        void add(Channel channel) {
+            if (byLoop.computeIfAbsent(channel.eventLoop(), loop -> new HashSet<>()).add(channel)) {
+                size.incrementAndGet();
+            }
+        }
+
+        void remove(Channel channel) {
+            Set<Channel> channels = byLoop.get(channel.eventLoop());
+            if (channels != null && channels.remove(channel)) {
+                size.decrementAndGet();
+            }
+        }
+
+        int size() {
+            return size.get();
+        }
+    }
+
+    public interface BroadcastListener {
+        /**
+         * @param clients      number of clients the message was written to
+         * @param latencyNanos fan-out time of the broadcast
+         */
+        void onBroadcast(int clients, long latencyNanos);
+    }
+
+    public interface TopicListener {
+        void topicAdded(String topic);
+
+        void topicRemoved(String topic);
+    }
+}
@@ -1,17 +1,17 @@
 package com.luxx.mq.server;
 
 import com.luxx.mq.config.MqConfig;
-import com.luxx.mq.handler.EchoServerHandler;
 import com.luxx.mq.util.PropertiesUtil;
 import com.rabbitmq.client.*;
 
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
-import io.netty.channel.group.ChannelGroupFutureListener;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * RabbitMQ Receiver based on RabbitMQ java client API
@@ -21,9 +21,19 @@ public class MqReceiver {
     private ConnectionFactory connectionFactory;
     private String exchangeName = "NettyMqServerListenerExchange";
     private String queueName = "MqListenerQueue";
+    // Messages with this routing key go to all clients, other routing keys are the topics clients subscribe to
     private String routeKey = "mqListener";
 
+    private final int consumerChannels;
+    private final int prefetch;
+    private final int ackBatch;
+    private final boolean ordered;
+    private String[] topicQueues;
+
     private Thread listenThread;
+    // Binds and unbinds topics in the order clients subscribe, off the event loops
+    private final ExecutorService bindExecutor = Executors.newSingleThreadExecutor(
+            new DefaultThreadFactory("mqTopicBinder", true));
 
     public MqReceiver() {
         String host = PropertiesUtil.getInstance().getProperty(MqConfig.MQ_HOST);
@@ -36,6 +46,12 @@ public class MqReceiver {
         connectionFactory.setPassword(password);
         connectionFactory.setPort(port);
         connectionFactory.setVirtualHost("/");
+
+        consumerChannels = Math.max(1, PropertiesUtil.getInstance().getPropertyAsInt(MqConfig.MQ_CONSUMER_CHANNELS, 1));
+        // A prefetch of 0 is unlimited for RabbitMQ, the consumers need a limit
+        prefetch = Math.max(1, PropertiesUtil.getInstance().getPropertyAsInt(MqConfig.MQ_CONSUMER_PREFETCH, 1));
+        ackBatch = Math.max(1, PropertiesUtil.getInstance().getPropertyAsInt(MqConfig.MQ_CONSUMER_ACK_BATCH, 1));
+        ordered = PropertiesUtil.getInstance().getPropertyAsBoolean(MqConfig.MQ_CONSUMER_ORDERED, true);
     }
 
     public void start() {
@@ -46,17 +62,32 @@ public class MqReceiver {
                 channel.exchangeDeclare(exchangeName, "direct", true, false, null);
                 channel.queueDeclare(queueName, true, false, false, null);
                 channel.queueBind(queueName, exchangeName, routeKey);
-                // process the message one by one
-                channel.basicQos(1);
-
-                Consumer consumer = new DefaultConsumer(channel) {
-                    @Override
-                    public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
-                        String message = new String(body, StandardCharsets.UTF_8);
-                        broadcastMsgAndAck(message, channel, envelope);
+
+                // Topic queues live as long as the connection, like the subscriptions bound to them.
+                // They are named by the client so connection recovery declares them with the same name.
+                // When ordered every topic is bound to one queue consumed by one channel.
+                String topicQueuePrefix = queueName + "." + UUID.randomUUID() + ".";
+                topicQueues = new String[ordered ? consumerChannels : 1];
+                for (int i = 0; i < topicQueues.length; i++) {
+                    topicQueues[i] = topicQueuePrefix + i;
+                    channel.queueDeclare(topicQueues[i], false, true, true, null);
+                }
+
+                for (int i = 0; i < consumerChannels; i++) {
+                    Channel consumerChannel = i == 0 ? channel : connection.createChannel();
+                    // The limit is for the channel, both consumes of a channel share its ack window
+                    consumerChannel.basicQos(prefetch, true);
+                    BroadcastConsumer consumer = new BroadcastConsumer(consumerChannel, routeKey, prefetch, ackBatch);
+                    // Broadcasts keep their order on the first channel
+                    if (i == 0 || !ordered) {
+                        consumerChannel.basicConsume(queueName, false, consumer);
                     }
-                };
-                channel.basicConsume(queueName, false, consumer);
+                    consumerChannel.basicConsume(topicQueues[ordered ? i : 0], false, consumer);
+                }
+                log.info(String.format("Rabbit MQ listener with %d consumer channels, prefetch %d, ordered %b",
+                        consumerChannels, prefetch, ordered));
+
+                bindTopics(connection.createChannel());
             } catch (Exception ex) {
                 log.error("Create Rabbit MQ listener error: " + ex.getMessage());
             }
@@ -66,17 +97,46 @@ public class MqReceiver {
         listenThread.start();
     }
 
-    private void broadcastMsgAndAck(String message, final Channel channel, final Envelope envelope) {
-        // Broadcast message to all connected clients
-        // If you want to send to a specified client, just add your own logic and ack manually
-        // Be aware that ChannelGroup is thread safe
-        log.info("Connected client number: " + EchoServerHandler.channels.size());
-        ByteBuf msg = Unpooled.copiedBuffer(message.getBytes());
-        EchoServerHandler.channels.writeAndFlush(msg).addListener(
-                (ChannelGroupFutureListener) arg0 -> {
-                    // manually ack to MQ server when message is consumed.
-                    channel.basicAck(envelope.getDeliveryTag(), false);
-                    log.debug("Mq Receiver get message");
-                });
+    /**
+     * Keep a binding of a topic queue for every topic clients are subscribed to,
+     * so RabbitMQ only delivers messages somebody here wants
+     */
+    private void bindTopics(final Channel bindChannel) {
+        ClientBroadcaster broadcaster = ClientBroadcaster.getInstance();
+        broadcaster.setTopicListener(new ClientBroadcaster.TopicListener() {
+            @Override
+            public void topicAdded(String topic) {
+                bindExecutor.execute(() -> bind(bindChannel, topic, true));
+            }
+
+            @Override
+            public void topicRemoved(String topic) {
+                bindExecutor.execute(() -> bind(bindChannel, topic, false));
+            }
+        });
+        // Clients subscribed before the connection was made
+        for (String topic : broadcaster.getTopics()) {
+            bindExecutor.execute(() -> bind(bindChannel, topic, true));
+        }
+    }
+
+    private void bind(Channel bindChannel, String topic, boolean bind) {
+        if (routeKey.equals(topic)) {
+            return;
+        }
+        try {
+            if (bind) {
+                bindChannel.queueBind(topicQueueOf(topic), exchangeName, topic);
+            } else {
+                bindChannel.queueUnbind(topicQueueOf(topic), exchangeName, topic);
+            }
+            log.debug((bind ? "Bind" : "Unbind") + " topic " + topic);
+        } catch (IOException ex) {
+            log.error("Rabbit MQ " + (bind ? "bind" : "unbind") + " topic " + topic + " error: " + ex.getMessage());
+        }
+    }
+
+    private String topicQueueOf(String topic) {
+        return topicQueues[(topic.hashCode() & Integer.MAX_VALUE) % topicQueues.length];
     }
 }
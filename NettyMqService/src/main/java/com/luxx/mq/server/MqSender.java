@@ -3,21 +3,45 @@ package com.luxx.mq.server;
 import com.luxx.mq.config.MqConfig;
 import com.luxx.mq.util.PropertiesUtil;
 import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * RabbitMQ Sender based on Spring AMQP
+ * RabbitMQ Sender based on RabbitMQ java client API.
+ * The event loops queue the messages, publisher threads publish them in batches, each on its own channel
+ * in confirm mode. The messages of a client always go to the same publisher and keep their order.
+ * A client is not read while its publisher has more than the high watermark of bytes queued or
+ * not confirmed yet, until it is back under the low watermark.
  */
 public class MqSender {
     private static final Logger log = LoggerFactory.getLogger(MqSender.class);
     private ConnectionFactory connectionFactory;
     private String exchangeName = "NettyMqServerSenderExchange";
-    private Channel channel = null;
+    private Connection connection = null;
+    private Publisher[] publishers = new Publisher[0];
+
+    private final int batchSize;
+    private final long highWatermark;
+    private final long lowWatermark;
 
     public MqSender() {
         String host = PropertiesUtil.getInstance().getProperty(MqConfig.MQ_HOST);
@@ -31,21 +55,180 @@ public class MqSender {
         connectionFactory.setPort(port);
         connectionFactory.setVirtualHost("/");
 
-        Connection connection = null;
+        int threads = Math.max(1, PropertiesUtil.getInstance().getPropertyAsInt(MqConfig.MQ_PUBLISHER_THREADS, 1));
+        int queueSize = Math.max(1, PropertiesUtil.getInstance().getPropertyAsInt(MqConfig.MQ_PUBLISHER_QUEUE_SIZE, 65536));
+        batchSize = Math.max(1, PropertiesUtil.getInstance().getPropertyAsInt(MqConfig.MQ_PUBLISHER_BATCH, 64));
+        highWatermark = PropertiesUtil.getInstance().getPropertyAsInt(MqConfig.MQ_PUBLISHER_HIGH_WATERMARK, 4194304);
+        lowWatermark = Math.min(highWatermark,
+                PropertiesUtil.getInstance().getPropertyAsInt(MqConfig.MQ_PUBLISHER_LOW_WATERMARK, 2097152));
+
         try {
             connection = connectionFactory.newConnection();
-            channel = connection.createChannel();
-            channel.exchangeDeclare(exchangeName, "fanout");
+            Publisher[] started = new Publisher[threads];
+            for (int i = 0; i < threads; i++) {
+                Channel channel = connection.createChannel();
+                if (i == 0) {
+                    channel.exchangeDeclare(exchangeName, "fanout");
+                }
+                channel.confirmSelect();
+                started[i] = new Publisher(channel, queueSize);
+            }
+            publishers = started;
         } catch (Exception e) {
             log.error("Exception: " + e.toString());
         }
     }
 
-    public void send(String data) {
-        try {
-            channel.basicPublish(exchangeName, "", null, data.getBytes());
-        } catch (IOException e) {
-            log.error("Mq sender error: " + e.toString());
+    /**
+     * Queue the message of the client for publishing, called on the client's event loop.
+     * The RabbitMQ client takes a byte array, this is the only copy of a received message
+     */
+    public void send(io.netty.channel.Channel client, ByteBuf data) {
+        if (publishers.length == 0) {
+            log.error("Mq sender error: not connected to Rabbit MQ");
+            return;
+        }
+        publishers[(client.hashCode() & Integer.MAX_VALUE) % publishers.length].send(client, ByteBufUtil.getBytes(data));
+    }
+
+    public void close() {
+        for (Publisher publisher : publishers) {
+            publisher.close();
+        }
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (Exception e) {
+                log.error("Close Rabbit MQ connection error: " + e.toString());
+            }
+        }
+    }
+
+    private class Publisher implements Runnable, ConfirmListener {
+        private final Channel channel;
+        private final BlockingQueue<byte[]> queue;
+        // Bytes queued or published and not confirmed
+        private final AtomicLong pendingBytes = new AtomicLong();
+        // Published messages by publish sequence number until they are confirmed
+        private final ConcurrentNavigableMap<Long, byte[]> unconfirmed = new ConcurrentSkipListMap<>();
+        // Clients with auto read turned off
+        private final Queue<io.netty.channel.Channel> paused = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+
+        Publisher(Channel channel, int queueSize) {
+            this.channel = channel;
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+            channel.addConfirmListener(this);
+            // Confirms of a closed channel never come
+            channel.addShutdownListener(cause -> {
+                if (!unconfirmed.isEmpty()) {
+                    log.warn("Rabbit MQ channel closed with " + unconfirmed.size() + " messages not confirmed");
+                    confirmed(unconfirmed, "lost");
+                }
+            });
+            thread = new DefaultThreadFactory("mqPublisher", true).newThread(this);
+            thread.start();
+        }
+
+        void send(io.netty.channel.Channel client, byte[] data) {
+            long pending = pendingBytes.addAndGet(data.length);
+            if (!queue.offer(data)) {
+                release(data.length);
+                log.error("Mq sender error: publish queue is full, message dropped");
+                return;
+            }
+            if (pending > highWatermark && client.config().isAutoRead()) {
+                client.config().setAutoRead(false);
+                paused.add(client);
+                // The publisher may have got under the low watermark before the client was added
+                if (pendingBytes.get() <= lowWatermark) {
+                    resume();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            List<byte[]> batch = new ArrayList<>(batchSize);
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, batchSize - 1);
+                    publish(batch);
+                } catch (InterruptedException e) {
+                    break;
+                } catch (RuntimeException e) {
+                    log.error("Mq sender error: " + e.toString());
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
+
+        private void publish(List<byte[]> batch) {
+            for (int i = 0; i < batch.size(); i++) {
+                byte[] data = batch.get(i);
+                long seqNo = -1;
+                try {
+                    seqNo = channel.getNextPublishSeqNo();
+                    unconfirmed.put(seqNo, data);
+                    channel.basicPublish(exchangeName, "", null, data);
+                } catch (IOException | RuntimeException e) {
+                    // A closed or recovering channel throws AlreadyClosedException, the rest of the batch is dropped
+                    // and the publisher goes on with the next one
+                    log.error("Mq sender error: " + e.toString() + ", " + (batch.size() - i) + " messages dropped");
+                    if (seqNo >= 0) {
+                        unconfirmed.remove(seqNo);
+                    }
+                    long bytes = 0;
+                    for (int j = i; j < batch.size(); j++) {
+                        bytes += batch.get(j).length;
+                    }
+                    release(bytes);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void handleAck(long seqNo, boolean multiple) {
+            confirmed(multiple ? unconfirmed.headMap(seqNo, true) : unconfirmed.subMap(seqNo, true, seqNo, true), null);
+        }
+
+        @Override
+        public void handleNack(long seqNo, boolean multiple) {
+            confirmed(multiple ? unconfirmed.headMap(seqNo, true) : unconfirmed.subMap(seqNo, true, seqNo, true), "nacked");
+        }
+
+        private void confirmed(Map<Long, byte[]> messages, String failure) {
+            long bytes = 0;
+            int count = 0;
+            for (Iterator<byte[]> it = messages.values().iterator(); it.hasNext(); ) {
+                bytes += it.next().length;
+                it.remove();
+                count++;
+            }
+            if (failure != null && count > 0) {
+                log.error("Mq sender error: " + count + " messages " + failure + " by Rabbit MQ");
+            }
+            release(bytes);
+        }
+
+        private void release(long bytes) {
+            if (pendingBytes.addAndGet(-bytes) <= lowWatermark) {
+                resume();
+            }
+        }
+
+        private void resume() {
+            io.netty.channel.Channel client;
+            while ((client = paused.poll()) != null) {
+                client.config().setAutoRead(true);
+            }
+        }
+
+        void close() {
+            thread.interrupt();
         }
     }
 }
@@ -67,6 +67,9 @@ public class NettyMqServer {
         if (bossGroup != null) {
             bossGroup.shutdownGracefully();
         }
+        if (mqSender != null) {
+            mqSender.close();
+        }
 
         log.info("Server is shut down");
     }
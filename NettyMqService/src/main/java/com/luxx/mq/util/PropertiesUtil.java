@@ -39,4 +39,14 @@ public class PropertiesUtil {
         String value = prop.getProperty(key);
         return Integer.valueOf(value);
     }
+
+    public int getPropertyAsInt(String key, int defaultValue) {
+        String value = prop.getProperty(key);
+        return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+    }
+
+    public boolean getPropertyAsBoolean(String key, boolean defaultValue) {
+        String value = prop.getProperty(key);
+        return value != null ? Boolean.parseBoolean(value.trim()) : defaultValue;
+    }
 }
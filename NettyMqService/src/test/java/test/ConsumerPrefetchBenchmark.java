@@ -0,0 +1,150 @@
+package test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.luxx.mq.server.BroadcastConsumer;
+import com.luxx.mq.server.ClientBroadcaster;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Broadcast messages/s of one consumer channel by prefetch, without RabbitMQ.
+ * A stand-in broker delivers to a BroadcastConsumer and takes its acks half a round trip later,
+ * the broadcasts go to clients connected over loopback.
+ * Usage: ConsumerPrefetchBenchmark [clients] [round trip us] [seconds per prefetch]
+ */
+public class ConsumerPrefetchBenchmark {
+    private static final int PORT = 18867;
+    private static final int[] PREFETCHES = {1, 4, 16, 64, 256};
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        long roundTripMicros = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        EventLoopGroup serverGroup = new NioEventLoopGroup();
+        EventLoopGroup clientGroup = new NioEventLoopGroup();
+        try {
+            new ServerBootstrap().group(serverGroup).channel(NioServerSocketChannel.class)
+                    .childHandler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel ch) {
+                            ClientBroadcaster.getInstance().add(ch);
+                        }
+                    }).bind(PORT).sync();
+            Bootstrap client = new Bootstrap().group(clientGroup).channel(NioSocketChannel.class)
+                    .handler(new DiscardHandler());
+            for (int i = 0; i < clients; i++) {
+                client.connect("127.0.0.1", PORT).sync();
+            }
+            while (ClientBroadcaster.getInstance().size() < clients) {
+                Thread.sleep(10);
+            }
+
+            for (int prefetch : PREFETCHES) {
+                int ackBatch = Math.max(1, prefetch / 4);
+                StandInBroker broker = new StandInBroker(prefetch, ackBatch, roundTripMicros / 2, new byte[256]);
+                long acked = broker.run(seconds);
+                System.out.println(String.format("prefetch %4d ack batch %3d: %,10d msg/s %6.1f msgs per ack",
+                        prefetch, ackBatch, acked / seconds, (double) acked / broker.ackFrames));
+            }
+        } finally {
+            clientGroup.shutdownGracefully();
+            serverGroup.shutdownGracefully();
+        }
+    }
+
+    @ChannelHandler.Sharable
+    private static class DiscardHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    /**
+     * Delivers broadcast messages in order to one consumer, up to prefetch unacked,
+     * on a dispatch thread like the RabbitMQ client does for a channel.
+     * Everything but the dispatch runs on the broker thread.
+     */
+    private static class StandInBroker implements InvocationHandler {
+        private final ScheduledExecutorService broker = Executors.newSingleThreadScheduledExecutor();
+        private final ExecutorService dispatch = Executors.newSingleThreadExecutor();
+        private final int prefetch;
+        private final long halfRoundTripMicros;
+        private final byte[] body;
+        private final BroadcastConsumer consumer;
+        private boolean running = true;
+        private long nextTag = 1;
+        private long acked = 0;
+        private long ackFrames = 0;
+
+        StandInBroker(int prefetch, int ackBatch, long halfRoundTripMicros, byte[] body) {
+            this.prefetch = prefetch;
+            this.halfRoundTripMicros = halfRoundTripMicros;
+            this.body = body;
+            Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+                    new Class<?>[]{Channel.class}, this);
+            this.consumer = new BroadcastConsumer(channel, "mqListener", prefetch, ackBatch);
+        }
+
+        long run(int seconds) throws Exception {
+            broker.execute(this::deliver);
+            Thread.sleep(seconds * 1000L);
+            long result = broker.submit(() -> {
+                running = false;
+                return acked;
+            }).get();
+            // Let the deliveries in flight finish before the next run
+            Thread.sleep(200);
+            broker.shutdown();
+            dispatch.shutdown();
+            return result;
+        }
+
+        private void deliver() {
+            while (running && nextTag - 1 - acked < prefetch) {
+                final Envelope envelope = new Envelope(nextTag++, false, "NettyMqServerListenerExchange", "mqListener");
+                broker.schedule(() -> dispatch.execute(() -> consumer.handleDelivery("benchmark", envelope, null, body)),
+                        halfRoundTripMicros, TimeUnit.MICROSECONDS);
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("basicAck")) {
+                final long deliveryTag = (Long) args[0];
+                final boolean multiple = (Boolean) args[1];
+                broker.schedule(() -> {
+                    ackFrames++;
+                    acked = multiple ? deliveryTag : acked + 1;
+                    deliver();
+                }, halfRoundTripMicros, TimeUnit.MICROSECONDS);
+                return null;
+            }
+            if (method.getName().equals("toString")) {
+                return "StandInChannel";
+            }
+            throw new UnsupportedOperationException(method.getName());
+        }
+    }
+}
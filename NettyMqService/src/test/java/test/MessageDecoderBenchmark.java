@@ -0,0 +1,120 @@
+package test;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import com.luxx.mq.handler.MessageDecoder;
+import com.luxx.mq.message.Message;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Decode + echo throughput and allocation of the byte[] copying decoder and the slicing decoder.
+ * The pipeline is the server's one without RabbitMQ, running on an EmbeddedChannel.
+ * Usage: MessageDecoderBenchmark [payload bytes] [messages per round]
+ */
+public class MessageDecoderBenchmark {
+    private static final int FRAMES_PER_READ = 64;
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) {
+        int payloadBytes = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+        byte[] frames = frames(payloadBytes, FRAMES_PER_READ);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            run("copy ", new EmbeddedChannel(new LengthFieldBasedFrameDecoder(65536, 0, 4, -4, 0),
+                    new CopyingMessageDecoder(), new CopyingEchoHandler()), frames, messages);
+            run("slice", new EmbeddedChannel(new LengthFieldBasedFrameDecoder(65536, 0, 4, -4, 0),
+                    new MessageDecoder(), new SlicingEchoHandler()), frames, messages);
+        }
+    }
+
+    private static void run(String name, EmbeddedChannel channel, byte[] frames, int messages) {
+        channel.config().setAllocator(PooledByteBufAllocator.DEFAULT);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocatedStart = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        int reads = messages / FRAMES_PER_READ;
+        for (int i = 0; i < reads; i++) {
+            ByteBuf in = PooledByteBufAllocator.DEFAULT.directBuffer(frames.length);
+            in.writeBytes(frames);
+            channel.writeInbound(in);
+            Object echoed;
+            while ((echoed = channel.readOutbound()) != null) {
+                ReferenceCountUtil.release(echoed);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedStart;
+        channel.finishAndReleaseAll();
+        long decoded = (long) reads * FRAMES_PER_READ;
+        System.out.println(String.format("%s %,12d msg/s %8.1f heap bytes/msg", name,
+                decoded * 1000000000L / elapsed, (double) allocated / decoded));
+    }
+
+    private static byte[] frames(int payloadBytes, int count) {
+        ByteBuf frames = Unpooled.buffer();
+        byte[] payload = new byte[payloadBytes];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) ('a' + i % 26);
+        }
+        for (int i = 0; i < count; i++) {
+            frames.writeInt(5 + payloadBytes);
+            frames.writeByte(1);
+            frames.writeBytes(payload);
+        }
+        return ByteBufUtil.getBytes(frames);
+    }
+
+    // The payload is copied into a byte[] by the decoder, into a String and into a new buffer by the echo
+    private static class CopyingMessageDecoder extends ByteToMessageDecoder {
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+            if (in.readableBytes() < 5) {
+                return;
+            }
+            int msgLength = in.readInt();
+            in.readByte();
+            byte[] data = new byte[msgLength - 5];
+            in.readBytes(data);
+            out.add(data);
+        }
+    }
+
+    private static class CopyingEchoHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            byte[] data = (byte[]) msg;
+            String dataString = new String(data, CharsetUtil.UTF_8);
+            if (dataString.isEmpty()) {
+                return;
+            }
+            ctx.writeAndFlush(Unpooled.copiedBuffer(data));
+        }
+    }
+
+    // What EchoServerHandler does apart from publishing to RabbitMQ
+    private static class SlicingEchoHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            try {
+                Message message = (Message) msg;
+                ctx.writeAndFlush(message.getData().retainedDuplicate());
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+    }
+}
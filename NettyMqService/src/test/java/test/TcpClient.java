@@ -5,15 +5,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 
 import com.luxx.mq.message.Header;
 import com.luxx.mq.message.Message;
 
 /**
  * Tcp client for echo server. This client also receive message forwarded by
- * netty MQ server
+ * netty MQ server, for the topics given as arguments too
  */
 public class TcpClient {
 
@@ -33,6 +33,10 @@ public class TcpClient {
 
             startReceiveThread(in);
 
+            for (String topic : args) {
+                out.write(getMessageBytes(Header.TYPE_SUBSCRIBE, topic));
+            }
+
             // sendMsgToServerFromInput(out);
             sendMsgToServerFromThread(out);
         } catch (IOException ex) {
@@ -94,22 +98,19 @@ public class TcpClient {
     }
 
     public static byte[] getMessageBytes(String msg) {
+        return getMessageBytes(Header.TYPE_DATA, msg);
+    }
+
+    public static byte[] getMessageBytes(byte msgType, String msg) {
         msg = msg.trim();
         if (!msg.isEmpty()) {
-            byte[] data = msg.getBytes();
+            byte[] data = msg.getBytes(StandardCharsets.UTF_8);
 
             Header header = new Header();
-            byte msgType = new Byte("1");
             header.setMsgType(msgType);
             header.setMsgLength(5 + data.length);
 
-            Message message = new Message();
-            try {
-                message.setData(msg.getBytes("UTF-8"));
-            } catch (UnsupportedEncodingException e) {
-                e.printStackTrace();
-            }
-            message.setHeader(header);
+            Message message = new Message(header, data);
             return message.getBytes();
         }
 